@@ -0,0 +1,120 @@
+package client;
+
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONObject;
+
+/**
+ * One long-lived TCP connection to the student server that carries many
+ * JsonRPC calls. Every message is framed as a 4-byte big-endian length
+ * followed by that many bytes of UTF-8 JSON, so a reply of any size is read
+ * completely and the connection stays open for the next call.
+ * Several threads may send calls over the same connection at the same time.
+ * A reader thread takes the replies off the socket in whatever order they
+ * come and hands each one to the call with the same JsonRPC id.
+ */
+class RpcConnection {
+
+   static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+   private final Socket sock;
+   private final DataOutputStream out;
+   private final DataInputStream in;
+   // calls sent over this connection that have no reply yet, by JsonRPC id
+   private final Map<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+   private volatile boolean open = true;
+
+   RpcConnection(String host, int port) throws IOException {
+      sock = new Socket(host, port);
+      sock.setTcpNoDelay(true);
+      out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+      in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+      Thread reader = new Thread(this::readReplies, "rpc-reader-"+sock.getLocalPort());
+      reader.setDaemon(true);
+      reader.start();
+   }
+
+   boolean isOpen() {
+      return open;
+   }
+
+   /**
+    * Sends a call and returns right away, the future completes with the reply
+    * @param id the JsonRPC id of the call, the reply carries the same one
+    * @param request the JsonRPC request
+    */
+   CompletableFuture<String> send(int id, String request) {
+      CompletableFuture<String> reply = new CompletableFuture<>();
+      if (!open) {
+         reply.completeExceptionally(new IOException("connection closed"));
+         return reply;
+      }
+      pending.put(id, reply);
+      try {
+         byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+         // one frame at a time, or the frames of two threads get mixed up
+         synchronized (out) {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.flush();
+         }
+      } catch (IOException ex) {
+         pending.remove(id);
+         reply.completeExceptionally(ex);
+         close();
+      }
+      return reply;
+   }
+
+   /** gives up on a call, for example because it timed out */
+   void forget(int id) {
+      pending.remove(id);
+   }
+
+   private void readReplies() {
+      try {
+         while (true) {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FRAME_BYTES) {
+               throw new IOException("Invalid frame length "+length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            String reply = new String(bytes, StandardCharsets.UTF_8);
+            int id = new JSONObject(reply).optInt("id", -1);
+            CompletableFuture<String> call = pending.remove(id);
+            if (call != null) {
+               call.complete(reply);
+            } else {
+               System.out.println("reply for an unknown call: "+reply);
+            }
+         }
+      } catch (Exception ex) {
+         if (open) {
+            System.out.println("connection to server lost: "+ex.getMessage());
+         }
+      }
+      close();
+   }
+
+   /** closes the connection, calls that are still waiting fail */
+   void close() {
+      open = false;
+      try {
+         sock.close();
+      } catch (IOException ex) {
+         // closing anyway
+      }
+      IOException closed = new IOException("connection closed");
+      for (Integer id : pending.keySet()) {
+         CompletableFuture<String> call = pending.remove(id);
+         if (call != null) {
+            call.completeExceptionally(closed);
+         }
+      }
+   }
+}
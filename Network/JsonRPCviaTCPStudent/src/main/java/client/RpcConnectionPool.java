@@ -0,0 +1,79 @@
+package client;
+
+import java.io.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A few long-lived connections to the student server that all calls share.
+ * Opening a TCP connection costs a round trip (and more with TLS or a slow
+ * network), so instead of one connection per call the pool opens its
+ * connections the first time they are needed and keeps them. Calls are spread
+ * over the connections one after the other, and many calls may be on the
+ * way over the same connection at once (see RpcConnection). A connection that
+ * broke is opened again by the next call that gets it.
+ */
+class RpcConnectionPool {
+
+   private final String host;
+   private final int port;
+   private final RpcConnection[] connections;
+   private final AtomicInteger next = new AtomicInteger();
+
+   /**
+    * @param size number of connections to keep open
+    */
+   RpcConnectionPool(String host, int port, int size) {
+      this.host = host;
+      this.port = port;
+      this.connections = new RpcConnection[Math.max(1, size)];
+   }
+
+   /**
+    * Sends a JsonRPC request over one of the connections and waits for its reply
+    * @param id the JsonRPC id of the request
+    * @param timeoutMillis how long to wait for the reply
+    * @return the JsonRPC reply
+    */
+   String call(int id, String request, long timeoutMillis) throws IOException {
+      RpcConnection connection = connection();
+      try {
+         return connection.send(id, request).get(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException ex) {
+         connection.forget(id);
+         throw new IOException("no reply within "+timeoutMillis+" ms");
+      } catch (ExecutionException ex) {
+         throw new IOException(ex.getCause().getMessage(), ex.getCause());
+      } catch (InterruptedException ex) {
+         connection.forget(id);
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while waiting for the reply");
+      }
+   }
+
+   private RpcConnection connection() throws IOException {
+      int slot = Math.floorMod(next.getAndIncrement(), connections.length);
+      synchronized (connections) {
+         RpcConnection connection = connections[slot];
+         if (connection == null || !connection.isOpen()) {
+            connection = new RpcConnection(host, port);
+            connections[slot] = connection;
+         }
+         return connection;
+      }
+   }
+
+   /** closes all connections */
+   void close() {
+      synchronized (connections) {
+         for (int i = 0; i < connections.length; i++) {
+            if (connections[i] != null) {
+               connections[i].close();
+               connections[i] = null;
+            }
+         }
+      }
+   }
+}
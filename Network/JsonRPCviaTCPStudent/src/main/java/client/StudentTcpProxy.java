@@ -2,9 +2,8 @@ package client;
 
 import server.Student;
 import server.StudentCollection;
-import java.net.*;
-import java.io.*;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONObject;
 import org.json.JSONArray;
 
@@ -14,6 +13,12 @@ import org.json.JSONArray;
  * by marshalling/unmarshalling parameters and results and using a TCP
  * connection to request the method be executed on the server.
  * Byte arrays are used for communication to support multiple langs.
+ * The calls share a small pool of connections that stay open (see
+ * RpcConnectionPool), every message is sent with a 4-byte length in front
+ * and the JsonRPC id tells which reply belongs to which call, so several
+ * threads may call methods on one proxy at the same time.
+ * -Drpc.connections sets the number of connections (2 by default) and
+ * -Drpc.timeout how many milliseconds a call waits for its reply.
  *
  * @author Tim Lindquist ASU Polytechnic Department of Engineering
  * @version April 2020
@@ -21,14 +26,25 @@ import org.json.JSONArray;
 public class StudentTcpProxy extends Object implements StudentCollection {
 
    private static final boolean debugOn = false;
-   private static final int buffSize = 4096;
-   private static int id = 0;
+   private static final int connections = Integer.getInteger("rpc.connections", 2);
+   private static final long timeoutMillis = Long.getLong("rpc.timeout", 30000);
+   // ids of all calls, unique so replies can be told apart
+   private static final AtomicInteger ids = new AtomicInteger();
    private String host;
    private int port;
+   private RpcConnectionPool pool;
    
    public StudentTcpProxy (String host, int port){
       this.host = host;
       this.port = port;
+      this.pool = new RpcConnectionPool(host, port, connections);
+   }
+
+   /**
+    * Closes the connections to the server
+    */
+   public void close() {
+      pool.close();
    }
 
    private void debug(String message) {
@@ -46,8 +62,8 @@ public class StudentTcpProxy extends Object implements StudentCollection {
       // create JSON RPC message
       JSONObject theCall = new JSONObject();
       String ret = "{}";
+      int id = ids.incrementAndGet();
       try{
-         debug("Request is: "+theCall.toString());
          theCall.put("method",method);
          theCall.put("id",id);
          theCall.put("jsonrpc","2.0");
@@ -57,28 +73,12 @@ public class StudentTcpProxy extends Object implements StudentCollection {
          }
          JSONArray paramsJson = new JSONArray(al);
          theCall.put("params",paramsJson);
+         debug("Request is: "+theCall.toString());
 
-         // prep connection and the byte array
-         Socket sock = new Socket(host,port);
-         OutputStream os = sock.getOutputStream();
-         InputStream is = sock.getInputStream();
-         int numBytesReceived;
-         int bufLen = 1024;
-         String strToSend = theCall.toString();
-         byte bytesReceived[] = new byte[buffSize];
-         byte bytesToSend[] = strToSend.getBytes();
-
-         // send the message
-         os.write(bytesToSend,0,bytesToSend.length);
-         // get response
-         numBytesReceived = is.read(bytesReceived,0,bufLen);
-         ret = new String(bytesReceived,0,numBytesReceived);
-         
-         // return
+         // send the message over a pooled connection and wait for the reply
+         // with the same id, the whole reply whatever its size
+         ret = pool.call(id, theCall.toString(), timeoutMillis);
          debug("callMethod received from server: "+ret);
-         os.close();
-         is.close();
-         sock.close();
       }catch(Exception ex){
          System.out.println("exception in callMethod: "+ex.getMessage());
       }
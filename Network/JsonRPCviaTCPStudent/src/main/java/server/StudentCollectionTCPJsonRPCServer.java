@@ -3,10 +3,16 @@ package server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A class for TCP client-server connections with a threaded server that
  * implements JsonRPC method calls for a collection of Students.
+ * A connection stays open for many calls: every message is a 4-byte
+ * big-endian length followed by that many bytes of UTF-8 JSON, and the
+ * replies are sent in the order the requests came. A client that sends a
+ * bare JSON request without the length (its first byte is '{') gets one
+ * reply the old way and the connection is closed.
  *
  * Ser321 Foundations of Distributed Software Systems
  * @author Tim Lindquist Tim.Lindquist@asu.edu
@@ -14,6 +20,7 @@ import java.util.*;
  * @version April 2020
  */
 public class StudentCollectionTCPJsonRPCServer extends Thread {
+   static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
    private Socket conn;
    private int id;
    private StudentCollectionSkeleton skeleton;
@@ -28,22 +35,28 @@ public class StudentCollectionTCPJsonRPCServer extends Thread {
    public void run() {
       // setup connection
       try {
-         OutputStream outSock = conn.getOutputStream();
-         InputStream inSock = conn.getInputStream();
-         byte clientInput[] = new byte[1024]; // up to 1024 bytes in a message.
-         
-         // receive request
-         int numr = inSock.read(clientInput,0,1024);
-         if (numr != -1) {
-            //System.out.println("read "+numr+" bytes");
-            String request = new String(clientInput,0,numr);
-            System.out.println("request is: "+request);
-
-            // prep and send response
-            String response = skeleton.callMethod(request);
-            byte clientOut[] = response.getBytes();
-	         outSock.write(clientOut,0,clientOut.length);
-            System.out.println("response is: "+response);
+         DataOutputStream outSock = new DataOutputStream(
+            new BufferedOutputStream(conn.getOutputStream()));
+         DataInputStream inSock = new DataInputStream(
+            new BufferedInputStream(conn.getInputStream()));
+         inSock.mark(1);
+         int first = inSock.read();
+         inSock.reset();
+         if (first == '{') {
+            callOnce(inSock, outSock);
+         } else if (first != -1) {
+            // receive requests until the client closes the connection
+            String request;
+            while ((request = readFrame(inSock)) != null) {
+               System.out.println("request is: "+request);
+               // prep and send response
+               String response = skeleton.callMethod(request);
+               byte clientOut[] = response.getBytes(StandardCharsets.UTF_8);
+               outSock.writeInt(clientOut.length);
+               outSock.write(clientOut,0,clientOut.length);
+               outSock.flush();
+               System.out.println("response is: "+response);
+            }
          }
          inSock.close();
          outSock.close();
@@ -52,6 +65,42 @@ public class StudentCollectionTCPJsonRPCServer extends Thread {
          System.out.println("I/O exception occurred for the connection:\n"+e.getMessage());
       }
    }
+
+   /**
+    * Reads one length prefixed message
+    * @return the message, null if the client closed the connection
+    */
+   private static String readFrame(DataInputStream in) throws IOException {
+      int length;
+      try {
+         length = in.readInt();
+      } catch (EOFException e) {
+         return null;
+      }
+      if (length < 0 || length > MAX_FRAME_BYTES) {
+         throw new IOException("Invalid message length "+length);
+      }
+      byte request[] = new byte[length];
+      in.readFully(request);
+      return new String(request, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * The old protocol: one request without a length, one response, done
+    */
+   private void callOnce(InputStream inSock, OutputStream outSock) throws IOException {
+      byte clientInput[] = new byte[1024]; // up to 1024 bytes in a message.
+      int numr = inSock.read(clientInput,0,1024);
+      if (numr != -1) {
+         String request = new String(clientInput,0,numr);
+         System.out.println("request is: "+request);
+         String response = skeleton.callMethod(request);
+         byte clientOut[] = response.getBytes();
+         outSock.write(clientOut,0,clientOut.length);
+         outSock.flush();
+         System.out.println("response is: "+response);
+      }
+   }
     
    public static void main (String args[]) {
       Socket sock;
@@ -0,0 +1,77 @@
+package fauxSolution.tcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+/**
+ * An answer that is turned into bytes once and then sent again and again.
+ *
+ * The JSON is kept without its closing '}': the id of a pipelined request is
+ * different every time, so it is added at the end when the answer is sent.
+ * Nothing here changes after the constructor, many connections may send the
+ * same Answer at the same time.
+ */
+final class Answer {
+
+  private static final byte[] CLOSE = { '}' };
+
+  // the JSON message (or the header of a binary frame) without the last '}'
+  private final byte[] json;
+  // raw bytes after the header of a binary frame, null for a JSON answer
+  private final byte[] body;
+
+  private Answer(JSONObject message, byte[] body) {
+    byte[] bytes = JsonUtils.toByteArray(message);
+    if (message.isEmpty()) {
+      // "{" + ",\"id\":1}" would not be JSON
+      throw new IllegalArgumentException("An answer needs at least one field");
+    }
+    this.json = Arrays.copyOf(bytes, bytes.length - 1);
+    this.body = body;
+  }
+
+  /** answer sent as a JSON message */
+  static Answer json(JSONObject message) {
+    return new Answer(message, null);
+  }
+
+  /** answer sent as a binary frame, only on connections with typed frames */
+  static Answer binary(JSONObject header, byte[] body) {
+    return new Answer(header, body);
+  }
+
+  boolean isBinary() {
+    return body != null;
+  }
+
+  /**
+   * Writes the answer as one frame, the caller holds the lock on out
+   * @param id id of the request, null if it had none
+   * @param typed the connection uses typed frames
+   */
+  void send(OutputStream out, Object id, boolean typed) throws IOException {
+    byte[] end = id == null ? CLOSE
+        : (",\"id\":" + JSONObject.valueToString(id) + "}").getBytes(StandardCharsets.UTF_8);
+    int jsonLength = json.length + end.length;
+    if (body != null) {
+      out.write(NetworkUtils.intToBytes(1 + 4 + jsonLength + body.length));
+      out.write(NetworkUtils.BINARY);
+      out.write(NetworkUtils.intToBytes(jsonLength));
+    } else if (typed) {
+      out.write(NetworkUtils.intToBytes(1 + jsonLength));
+      out.write(NetworkUtils.JSON);
+    } else {
+      out.write(NetworkUtils.intToBytes(jsonLength));
+    }
+    out.write(json);
+    out.write(end);
+    if (body != null) {
+      out.write(body);
+    }
+    out.flush();
+  }
+}
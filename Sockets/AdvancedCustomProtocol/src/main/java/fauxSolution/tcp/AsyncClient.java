@@ -0,0 +1,177 @@
+package fauxSolution.tcp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * Client that does not wait for an answer before it sends the next request.
+ *
+ * Every request gets an "id", send() returns a CompletableFuture right away.
+ * A reader thread takes the answers off the socket and completes the future
+ * whose id the answer carries, so answers may arrive in any order. Many
+ * threads can use one AsyncClient at the same time.
+ *
+ *   AsyncClient client = new AsyncClient("localhost", 9000);
+ *   CompletableFuture<JSONObject> joke = client.send(Client.joke());
+ *   CompletableFuture<JSONObject> image = client.send(Client.image());
+ *   System.out.println(joke.get().getString("data"));
+ *
+ * Needs the concurrent Server, the old one answered requests in order and did
+ * not send the id back.
+ *
+ * The client asks for typed frames when it connects. Image answers have the
+ * png bytes as a byte[] in "data", whether they came as a binary frame or as
+ * Base64 from a server without typed frames.
+ */
+public class AsyncClient implements Closeable {
+
+  private final Socket sock;
+  private final InputStream in;
+  private final OutputStream out;
+  private final AtomicLong nextId = new AtomicLong();
+  // requests that were sent and not answered yet, by id
+  private final Map<Long, CompletableFuture<JSONObject>> pending = new ConcurrentHashMap<>();
+  private final Thread reader;
+  private final boolean typed;
+  private volatile IOException failure;
+
+  public AsyncClient(String host, int port) throws IOException {
+    sock = new Socket(host, port);
+    sock.setTcpNoDelay(true);
+    in = new BufferedInputStream(sock.getInputStream());
+    // length and message go out in one write
+    out = new BufferedOutputStream(sock.getOutputStream());
+    typed = Client.typedFrames(in, out);
+    reader = new Thread(this::readAnswers, "async-client-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Sends a request without waiting for its answer
+   * @param request e.g. Client.joke(), it is not changed
+   * @return completes with the answer (its "id" removed), or exceptionally if
+   *     the connection breaks before the answer came
+   */
+  public CompletableFuture<JSONObject> send(JSONObject request) {
+    long id = nextId.incrementAndGet();
+    CompletableFuture<JSONObject> answer = new CompletableFuture<>();
+    pending.put(id, answer);
+    // copy, the caller may send the same request object again
+    JSONObject message = new JSONObject();
+    for (String key : request.keySet()) {
+      message.put(key, request.get(key));
+    }
+    message.put("id", id);
+    try {
+      if (failure != null) {
+        throw failure;
+      }
+      byte[] bytes = JsonUtils.toByteArray(message);
+      synchronized (out) {
+        if (typed) {
+          NetworkUtils.SendJson(out, bytes);
+        } else {
+          NetworkUtils.Send(out, bytes);
+        }
+      }
+    } catch (IOException e) {
+      pending.remove(id);
+      answer.completeExceptionally(e);
+    }
+    return answer;
+  }
+
+  /** requests that were sent and not answered yet */
+  public int pending() {
+    return pending.size();
+  }
+
+  private void readAnswers() {
+    try {
+      while (true) {
+        JSONObject response = receive();
+        Object id = response.remove("id");
+        CompletableFuture<JSONObject> answer = id instanceof Number ? pending.remove(((Number) id).longValue()) : null;
+        if (answer == null) {
+          System.out.println("Answer for an unknown request: " + response);
+          continue;
+        }
+        answer.complete(response);
+      }
+    } catch (IOException e) {
+      failure = e;
+    } catch (RuntimeException e) {
+      failure = new IOException("Invalid answer from the server", e);
+    }
+    // nothing more will come, fail what is still waiting
+    for (Long id : new ArrayList<>(pending.keySet())) {
+      CompletableFuture<JSONObject> answer = pending.remove(id);
+      if (answer != null) {
+        answer.completeExceptionally(failure);
+      }
+    }
+  }
+
+  private JSONObject receive() throws IOException {
+    if (!typed) {
+      JSONObject response = JsonUtils.fromByteArray(NetworkUtils.Receive(in));
+      if (response.optInt("datatype") == 2) {
+        response.put("data", Base64.getDecoder().decode(response.getString("data")));
+      }
+      return response;
+    }
+    NetworkUtils.Frame frame = NetworkUtils.ReceiveFrame(in);
+    JSONObject response = JsonUtils.fromByteArray(frame.header);
+    if (frame.type == NetworkUtils.BINARY) {
+      response.put("data", frame.body);
+    }
+    return response;
+  }
+
+  @Override
+  public void close() throws IOException {
+    sock.close();
+  }
+
+  /**
+   * Demo: sends requests of all kinds without waiting and prints how long all
+   * answers took, e.g. gradle TCPAsyncClient --args 200
+   */
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    try (AsyncClient client = new AsyncClient("localhost", 9000)) {
+      long start = System.nanoTime();
+      List<CompletableFuture<JSONObject>> answers = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        JSONObject request = i % 4 == 0 ? Client.image() : i % 4 == 1 ? Client.joke()
+            : i % 4 == 2 ? Client.quote() : Client.random();
+        answers.add(client.send(request));
+      }
+      CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0])).join();
+      long millis = (System.nanoTime() - start) / 1_000_000;
+
+      Map<String, Integer> types = new ConcurrentHashMap<>();
+      for (CompletableFuture<JSONObject> answer : answers) {
+        JSONObject response = answer.join();
+        types.merge(response.has("error") ? "error" : response.getString("type"), 1, Integer::sum);
+      }
+      System.out.println(count + " requests answered in " + millis + " ms: " + types
+          + (client.typed ? "" : " (server without typed frames)"));
+    }
+  }
+}
@@ -26,6 +26,9 @@ public class Client {
    * "quote", "image"> "data": <thing to return> }
    * 
    * error response: {"error": <error string> }
+   *
+   * The client first asks for typed frames (see Server), then images come as
+   * raw png bytes and not as Base64.
    */
   public static JSONObject joke() {
     JSONObject request = new JSONObject();
@@ -51,12 +54,26 @@ public class Client {
     return request;
   }
 
+  /**
+   * Asks the server for typed frames, call it right after connecting
+   * @return true if the server agreed, both sides use typed frames from now on
+   */
+  public static boolean typedFrames(InputStream in, OutputStream out) throws IOException {
+    JSONObject request = new JSONObject();
+    request.put("frames", "typed");
+    NetworkUtils.Send(out, JsonUtils.toByteArray(request));
+    JSONObject response = JsonUtils.fromByteArray(NetworkUtils.Receive(in));
+    // an older server answers with an error
+    return "typed".equals(response.opt("frames"));
+  }
+
   public static void main(String[] args) throws IOException {
     Socket sock;
     try {
       sock = new Socket("localhost", 9000);
       OutputStream out = sock.getOutputStream();
       InputStream in = sock.getInputStream();
+      boolean typed = typedFrames(in, out);
 
       Scanner input = new Scanner(System.in);
       int choice;
@@ -92,9 +109,15 @@ public class Client {
         }
 
         if (request != null) {
-          NetworkUtils.Send(out, JsonUtils.toByteArray(request));
-          byte[] responseBytes = NetworkUtils.Receive(in);
-          JSONObject response = JsonUtils.fromByteArray(responseBytes);
+          NetworkUtils.Frame answer;
+          if (typed) {
+            NetworkUtils.SendJson(out, JsonUtils.toByteArray(request));
+            answer = NetworkUtils.ReceiveFrame(in);
+          } else {
+            NetworkUtils.Send(out, JsonUtils.toByteArray(request));
+            answer = new NetworkUtils.Frame(NetworkUtils.JSON, NetworkUtils.Receive(in), new byte[0]);
+          }
+          JSONObject response = JsonUtils.fromByteArray(answer.header);
           if (response.has("error")) {
             System.out.println(response.getString("error"));
           } else {
@@ -105,8 +128,14 @@ public class Client {
               break;
             case (2): {
               System.out.println("Your image");
-              Base64.Decoder decoder = Base64.getDecoder();
-              byte[] bytes = decoder.decode(response.getString("data"));
+              byte[] bytes;
+              if (answer.type == NetworkUtils.BINARY) {
+                // the png as it is, nothing to decode
+                bytes = answer.body;
+              } else {
+                Base64.Decoder decoder = Base64.getDecoder();
+                bytes = decoder.decode(response.getString("data"));
+              }
               ImageIcon icon = null;
               try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
                 BufferedImage image = ImageIO.read(bais);
@@ -0,0 +1,209 @@
+package fauxSolution.tcp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * One client connection of the Server, runs on its own thread.
+ *
+ * The thread only reads: it takes one length-prefixed message after the other
+ * from the socket. A request with an "id" is handed to the workers right away
+ * and the thread reads the next one, so a client can send many requests
+ * without waiting (pipelining) and a slow image does not hold up the jokes
+ * behind it. Every answer carries the id of its request, that is how the
+ * client matches them, they may come back in any order. Requests without an
+ * id are answered on this thread in the order they came, like before.
+ *
+ * Answers are written by whoever finished them, one at a time (lock on out),
+ * so the frames of two answers never mix.
+ *
+ * After a {"frames": "typed"} request the connection uses typed frames (see
+ * NetworkUtils), images then go out as binary frames.
+ */
+final class Connection implements Runnable {
+
+  // requests of one client that may run at the same time, when there are more
+  // we stop reading until one is done, so one client cannot fill the server
+  static final int MAX_IN_FLIGHT = 32;
+
+  private final Socket sock;
+  private final ExecutorService workers;
+  private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+  private final String client;
+  private InputStream in;
+  private OutputStream out;
+  // set by the reading thread, answers in flight see it only after they are done
+  private volatile boolean typed;
+
+  Connection(Socket sock, ExecutorService workers) {
+    this.sock = sock;
+    this.workers = workers;
+    this.client = sock.getRemoteSocketAddress().toString();
+  }
+
+  /**
+   * One thread per connection: virtual threads if the JVM has them (Java 21
+   * and newer, looked up by reflection so this still compiles on older
+   * versions), platform threads otherwise
+   */
+  static ExecutorService threadPerConnection() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      AtomicInteger count = new AtomicInteger();
+      return Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "connection-" + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      in = new BufferedInputStream(sock.getInputStream());
+      // length and message go out in one write
+      out = new BufferedOutputStream(sock.getOutputStream());
+      System.out.println("Client connected: " + client);
+      while (true) {
+        byte[] messageBytes = typed ? receiveJson() : NetworkUtils.Receive(in);
+        JSONObject message;
+        try {
+          message = JsonUtils.fromByteArray(messageBytes);
+        } catch (JSONException e) {
+          send(Server.error("Invalid message received"));
+          continue;
+        }
+        if (message.has("frames")) {
+          negotiate(message);
+          continue;
+        }
+        if (!message.has("id")) {
+          answer(message);
+          continue;
+        }
+        inFlight.acquire();
+        try {
+          workers.execute(() -> {
+            try {
+              answer(message);
+            } finally {
+              inFlight.release();
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          inFlight.release();
+          throw new IOException("Server is shutting down");
+        }
+      }
+    } catch (EOFException e) {
+      // the client closed its side, answer what it is still waiting for
+      awaitInFlight();
+    } catch (IOException e) {
+      // connection is broken, nobody would get the answers anyway
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      System.out.println("Client disconnect: " + client);
+      try {
+        sock.close();
+      } catch (IOException e) {
+        // closed anyway
+      }
+    }
+  }
+
+  /**
+   * Requests are JSON frames, anything else gets an error (empty message)
+   */
+  private byte[] receiveJson() throws IOException {
+    NetworkUtils.Frame frame = NetworkUtils.ReceiveFrame(in);
+    return frame.type == NetworkUtils.JSON ? frame.header : new byte[0];
+  }
+
+  /**
+   * Answers a frames request, the answer is still in the old frames. Answers
+   * that are on their way would come after it in the new frames, so we wait
+   * for them first.
+   */
+  private void negotiate(JSONObject message) throws IOException, InterruptedException {
+    JSONObject returnMessage;
+    if ("typed".equals(message.opt("frames"))) {
+      returnMessage = new JSONObject();
+      returnMessage.put("frames", "typed");
+    } else {
+      returnMessage = Server.error("Unknown frames: " + message.opt("frames"));
+    }
+    if (message.has("id")) {
+      returnMessage.put("id", message.get("id"));
+    }
+    inFlight.acquire(MAX_IN_FLIGHT);
+    try {
+      send(returnMessage);
+      typed = typed || returnMessage.has("frames");
+    } finally {
+      inFlight.release(MAX_IN_FLIGHT);
+    }
+  }
+
+  /**
+   * Builds and sends the answer of one request, with its id if it had one
+   */
+  private void answer(JSONObject message) {
+    boolean binary = typed;
+    Answer returnMessage;
+    try {
+      returnMessage = Server.handle(message, binary);
+    } catch (Exception e) {
+      returnMessage = Answer.json(Server.error("Could not answer the request: " + e.getMessage()));
+    }
+    try {
+      // the answer is ready as bytes, only the id is added
+      synchronized (out) {
+        returnMessage.send(out, message.opt("id"), binary);
+      }
+    } catch (IOException e) {
+      // the client is gone or the frame is broken, closing also stops the
+      // reading thread so the client does not wait for the rest
+      try {
+        sock.close();
+      } catch (IOException closeFailed) {
+        // closed anyway
+      }
+    }
+  }
+
+  private void send(JSONObject returnMessage) throws IOException {
+    // we are converting the JSON object we have to a byte[]
+    byte[] output = JsonUtils.toByteArray(returnMessage);
+    synchronized (out) {
+      if (typed) {
+        NetworkUtils.SendJson(out, output);
+      } else {
+        NetworkUtils.Send(out, output);
+      }
+    }
+  }
+
+  private void awaitInFlight() {
+    try {
+      inFlight.acquire(MAX_IN_FLIGHT);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package fauxSolution.tcp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Base64;
+
+import org.json.JSONObject;
+
+/**
+ * Everything the Server sends, turned into bytes once.
+ *
+ * Before, every image request read the png from disk, decoded it, encoded it
+ * again and made Base64 out of it. Now the file is read once and both answers
+ * for it (Base64 in JSON for the old frames, a binary frame for typed ones)
+ * are made right away, a request only writes them to the socket. The png is
+ * sent as it is in the file, decoding and encoding it again gave the same
+ * picture.
+ *
+ * The file is read when the server starts, with -Dcontent.lazy=true only when
+ * it is asked for the first time. Every RECHECK_MS the store looks at its
+ * modification time and size, a changed file is read again, so a new picture
+ * shows up without restarting the server.
+ */
+final class ContentStore {
+
+  /** how often a request checks if the file changed */
+  static final long RECHECK_MS = 1000;
+
+  /** read the files when they are asked for and not at start */
+  static final boolean LAZY = Boolean.getBoolean("content.lazy");
+
+  private final Answer joke = Answer.json(Server.joke());
+  private final Answer quote = Answer.json(Server.quote());
+
+  private final Path imageFile;
+  // replaced as a whole when the file changed, never changed itself
+  private volatile Image image;
+  private volatile long checkedAt;
+
+  /** the answers for one version of the file */
+  private static final class Image {
+    final long modified;
+    final long size;
+    final Answer base64;
+    final Answer binary;
+
+    Image(long modified, long size, Answer base64, Answer binary) {
+      this.modified = modified;
+      this.size = size;
+      this.base64 = base64;
+      this.binary = binary;
+    }
+  }
+
+  ContentStore(Path imageFile) {
+    this.imageFile = imageFile;
+    if (!LAZY) {
+      try {
+        image();
+        System.out.println("Loaded " + imageFile + " (" + image.size + " bytes)");
+      } catch (IOException e) {
+        // the requests will get an error, maybe the file is there by then
+        System.err.println("Cannot load " + imageFile.toAbsolutePath() + ": " + e);
+      }
+    }
+  }
+
+  Answer joke() {
+    return joke;
+  }
+
+  Answer quote() {
+    return quote;
+  }
+
+  /**
+   * @param binary for a connection with typed frames
+   */
+  Answer image(boolean binary) throws IOException {
+    Image current = image();
+    return binary ? current.binary : current.base64;
+  }
+
+  private Image image() throws IOException {
+    Image current = image;
+    if (current != null && System.currentTimeMillis() - checkedAt < RECHECK_MS) {
+      return current;
+    }
+    return reload();
+  }
+
+  /**
+   * Reads the file again if it is new or changed. One thread at a time, the
+   * others wait and then take what it read.
+   */
+  private synchronized Image reload() throws IOException {
+    Image current = image;
+    if (current != null && System.currentTimeMillis() - checkedAt < RECHECK_MS) {
+      return current; // another thread just checked
+    }
+    BasicFileAttributes attributes = Files.readAttributes(imageFile, BasicFileAttributes.class);
+    long modified = attributes.lastModifiedTime().toMillis();
+    if (current == null || current.modified != modified || current.size != attributes.size()) {
+      if (attributes.size() > NetworkUtils.MAX_MESSAGE_BYTES / 2) {
+        // Base64 makes it a third bigger, and the client refuses big frames
+        throw new IOException(imageFile + " is too big to send");
+      }
+      byte[] bytes = Files.readAllBytes(imageFile);
+      current = new Image(modified, bytes.length, Answer.json(image(bytes)), Answer.binary(imageHeader(), bytes));
+      if (image != null) {
+        System.out.println("Reloaded " + imageFile);
+      }
+      image = current;
+    }
+    checkedAt = System.currentTimeMillis();
+    return current;
+  }
+
+  private static JSONObject image(byte[] png) {
+    JSONObject json = imageHeader();
+    json.put("data", Base64.getEncoder().encodeToString(png));
+    return json;
+  }
+
+  private static JSONObject imageHeader() {
+    JSONObject json = new JSONObject();
+    json.put("datatype", 2);
+    json.put("type", "image");
+    return json;
+  }
+}
@@ -1,10 +1,42 @@
 package fauxSolution.tcp;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 public class NetworkUtils {
+  // biggest message we accept, the length prefix could say anything
+  public static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+  /*
+   * Typed frames, used on a connection once client and server agreed on them
+   * (see Server). Every frame says what is in it:
+   *
+   * length(4 bytes, of everything after it) type(1 byte) payload
+   *   JSON:   payload is a JSON message
+   *   BINARY: headerLength(4 bytes) JSON header, then raw bytes
+   *
+   * With BINARY an image goes over as it is in the file: no Base64 that makes
+   * it a third bigger, and no JSON string that both sides copy around.
+   */
+  public static final byte JSON = 1;
+  public static final byte BINARY = 2;
+
+  public static class Frame {
+    public final byte type;
+    // the JSON message, or the JSON header of a binary frame
+    public final byte[] header;
+    // raw bytes of a binary frame, empty for JSON
+    public final byte[] body;
+
+    public Frame(byte type, byte[] header, byte[] body) {
+      this.type = type;
+      this.header = header;
+      this.body = body;
+    }
+  }
+
   // https://mkyong.com/java/java-convert-byte-to-int-and-vice-versa/
   public static byte[] intToBytes(final int data) {
     return new byte[] { (byte) ((data >> 24) & 0xff), (byte) ((data >> 16) & 0xff), (byte) ((data >> 8) & 0xff),
@@ -22,24 +54,51 @@ public class NetworkUtils {
     out.flush();
   }
 
-  // read the bytes on the stream
-  // read the bytes on the stream
+  // read the bytes on the stream, read() may return fewer bytes than asked for
+  // (the message arrives in several TCP segments), so we read until we have all
   private static byte[] Read(InputStream in, int length) throws IOException {
     byte[] bytes = new byte[length];
-    System.out.println("Read in bytes: " + length);
     int bytesRead = 0;
-    try {
-      bytesRead = in.read(bytes, 0, length);
-    } catch (IOException e1) {
-      e1.printStackTrace();
-    }
-    if (bytesRead < length && bytesRead > 0) {
-      byte[] newBytes = Read(in, length-bytesRead);
-      System.arraycopy(newBytes, 0, bytes, bytesRead, newBytes.length);
+    while (bytesRead < length) {
+      int read = in.read(bytes, bytesRead, length - bytesRead);
+      if (read == -1) {
+        // the other side closed the connection
+        throw new EOFException("Connection closed after " + bytesRead + " of " + length + " bytes");
+      }
+      bytesRead += read;
     }
     return bytes;
   }
 
+  // sends a JSON message as a typed frame
+  public static void SendJson(OutputStream out, byte[] json) throws IOException {
+    out.write(intToBytes(json.length + 1));
+    out.write(JSON);
+    out.write(json);
+    out.flush();
+  }
+
+  // reads one typed frame, every part is read straight into its own array
+  public static Frame ReceiveFrame(InputStream in) throws IOException {
+    int length = NetworkUtils.bytesToInt(Read(in, 4));
+    if (length < 1 || length > MAX_MESSAGE_BYTES) {
+      throw new IOException("Invalid frame length: " + length);
+    }
+    byte type = Read(in, 1)[0];
+    if (type == JSON) {
+      return new Frame(JSON, Read(in, length - 1), new byte[0]);
+    }
+    if (type != BINARY) {
+      throw new IOException("Unknown frame type: " + type);
+    }
+    int headerLength = NetworkUtils.bytesToInt(Read(in, 4));
+    if (headerLength < 0 || headerLength > length - 5) {
+      throw new IOException("Invalid header length: " + headerLength);
+    }
+    byte[] header = Read(in, headerLength);
+    return new Frame(BINARY, header, Read(in, length - 5 - headerLength));
+  }
+
   // first 4 bytes we read give us the length of the message we are about to receive
   // next we call read again with the length of the actual bytes in the data we are interested in 
   public static byte[] Receive(InputStream in) throws IOException {
@@ -47,6 +106,10 @@ public class NetworkUtils {
     if (lengthBytes == null)
       return new byte[0];
     int length = NetworkUtils.bytesToInt(lengthBytes);
+    if (length < 0 || length > MAX_MESSAGE_BYTES) {
+      // not our protocol, and we do not want to allocate gigabytes for it
+      throw new IOException("Invalid message length: " + length);
+    }
     byte[] message = Read(in, length);
     if (message == null)
       return new byte[0];
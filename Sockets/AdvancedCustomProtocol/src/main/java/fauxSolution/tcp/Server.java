@@ -1,31 +1,43 @@
 package fauxSolution.tcp;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.EOFException;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Base64;
-import java.util.Random;
-
-import javax.imageio.ImageIO;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.json.*;
 
 public class Server {
   /*
-   * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random> }
+   * request: { "selected": <int: 1=joke, 2=quote, 3=image, 4=random>,
+   * (optional)"id": <any> }
    * 
    * response: {"datatype": <int: 1-string, 2-byte array>, "type": <"joke",
-   * "quote", "image">, "data": <thing to return> }
+   * "quote", "image">, "data": <thing to return>, "id": <id of the request> }
    * 
-   * error response: {"error": <error string> }
+   * error response: {"error": <error string>, "id": <id of the request> }
+   *
+   * Requests with an "id" may be sent without waiting for the answers
+   * (pipelining), the answers can come back in a different order and carry
+   * the id of their request. Requests without an id are answered in order.
+   *
+   * frames request: { "frames": "typed" }
+   *
+   * frames response: { "frames": "typed" }, from the next message on both
+   * sides send typed frames (see NetworkUtils) on this connection. Images are
+   * then sent as a binary frame, header {"datatype": 2, "type": "image"} and
+   * the bytes of the png file. A server that does not know typed frames
+   * answers with an error, the client keeps to the old frames.
    */
 
+  public static final Path IMAGE = Path.of("img/To-Funny-For-Words1.png");
+
+  // the answers, made once when the server starts (see ContentStore)
+  private static final ContentStore CONTENT = new ContentStore(IMAGE);
+
   public static JSONObject joke() {
     JSONObject json = new JSONObject();
     json.put("datatype", 1);
@@ -43,44 +55,15 @@ public class Server {
     return json;
   }
 
-  public static JSONObject image() throws IOException {
-    JSONObject json = new JSONObject();
-    json.put("datatype", 2);
-
-    json.put("type", "image");
-
-    File file = new File("img/To-Funny-For-Words1.png");
-    if (!file.exists()) {
-      System.err.println("Cannot find file: " + file.getAbsolutePath());
-      System.exit(-1);
-    }
-    // Read in image
-    BufferedImage img = ImageIO.read(file);
-    byte[] bytes = null;
-    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-      ImageIO.write(img, "png", out);
-      bytes = out.toByteArray();
-    }
-    if (bytes != null) {
-      Base64.Encoder encoder = Base64.getEncoder();
-      json.put("data", encoder.encodeToString(bytes));
-      return json;
-    }
-    return error("Unable to save image to byte array");
-  }
-
-  public static JSONObject random() throws IOException {
-    Random rand = new Random();
-    int random = rand.nextInt(3);
-    JSONObject json = new JSONObject();
+  // one random number generator for all threads, each gets its own stream
+  static Answer random(boolean binary) throws IOException {
+    int random = ThreadLocalRandom.current().nextInt(3);
     if (random == 0) {
-      json = joke();
+      return CONTENT.joke();
     } else if (random == 1) {
-      json = quote();
-    } else if (random == 2) {
-      json = image();
+      return CONTENT.quote();
     }
-    return json;
+    return CONTENT.image(binary);
   }
 
   public static JSONObject error(String err) {
@@ -89,58 +72,51 @@ public class Server {
     return json;
   }
 
+  /**
+   * Builds the answer for one request, runs on the connection's thread or on a
+   * worker (see Connection)
+   * @param binary the connection uses typed frames, an image is answered with
+   *     a binary frame
+   */
+  static Answer handle(JSONObject message, boolean binary) throws IOException {
+    if (!message.has("selected")) {
+      return Answer.json(error("Invalid message received"));
+    }
+    if (!(message.get("selected") instanceof Long || message.get("selected") instanceof Integer)) {
+      return Answer.json(error("Selection must be an integer"));
+    }
+    int choice = message.getInt("selected");
+    switch (choice) {
+    case (1):
+      return CONTENT.joke();
+    case (2):
+      return CONTENT.quote();
+    case (3):
+      return CONTENT.image(binary);
+    case (4):
+      return random(binary);
+    default:
+      return Answer.json(error("Invalid selection: " + choice + " is not an option"));
+    }
+  }
+
   public static void main(String[] args) throws IOException {
+    int port = 9000;
+    if (args.length > 0) {
+      port = Integer.parseInt(args[0]);
+    }
+    // every connection gets its own thread that reads its requests, so many
+    // clients are served at the same time. Pipelined requests (with an "id")
+    // of one client run in parallel on the workers, see Connection
+    ExecutorService connections = Connection.threadPerConnection();
+    ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
     ServerSocket serv = null;
     try {
-      serv = new ServerSocket(9000);
-      // NOTE: SINGLE-THREADED, only one connection at a time
+      serv = new ServerSocket(port);
+      System.out.println("Server listening on port " + port);
       while (true) {
-        Socket sock = null;
-        try {
-          sock = serv.accept(); // blocking wait
-          OutputStream out = sock.getOutputStream();
-          InputStream in = sock.getInputStream();
-          while (true) {
-            byte[] messageBytes = NetworkUtils.Receive(in);
-            JSONObject message = JsonUtils.fromByteArray(messageBytes);
-            JSONObject returnMessage;
-            if (message.has("selected")) {
-              if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
-                int choice = message.getInt("selected");
-                switch (choice) {
-                case (1):
-                  returnMessage = joke();
-                  break;
-                case (2):
-                  returnMessage = quote();
-                  break;
-                case (3):
-                  returnMessage = image();
-                  break;
-                case (4):
-                  returnMessage = random();
-                  break;
-                default:
-                  returnMessage = error("Invalid selection: " + choice + " is not an option");
-                }
-              } else {
-                returnMessage = error("Selection must be an integer");
-              }
-            } else {
-              returnMessage = error("Invalid message received");
-            }
-
-            // we are converting the JSON object we have to a byte[]
-            byte[] output = JsonUtils.toByteArray(returnMessage);
-            NetworkUtils.Send(out, output);
-          }
-        } catch (Exception e) {
-          System.out.println("Client disconnect");
-        } finally {
-          if (sock != null) {
-            sock.close();
-          }
-        }
+        Socket sock = serv.accept(); // blocking wait
+        connections.execute(new Connection(sock, workers));
       }
     } catch (IOException e) {
       e.printStackTrace();
@@ -148,6 +124,10 @@ public class Server {
       if (serv != null) {
         serv.close();
       }
+      workers.shutdown();
     }
   }
-}
\ No newline at end of file
+
+  // threads that build the answers of pipelined requests
+  static final int WORKERS = Runtime.getRuntime().availableProcessors() * 2;
+}
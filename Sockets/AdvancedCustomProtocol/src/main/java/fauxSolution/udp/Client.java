@@ -58,7 +58,9 @@ public static JSONObject random() {
     try {
       InetAddress address = InetAddress.getByName("localhost");
       int port = 9000;
-      sock = new DatagramSocket();
+      // -Dudp.reliable=true: lost packets are sent again, the server needs it too
+      ReliableSocket reliable = ReliableSocket.ENABLED ? ReliableSocket.open(0) : null;
+      sock = reliable == null ? new DatagramSocket() : null;
 
       Scanner input = new Scanner(System.in);
       int choice;
@@ -88,8 +90,19 @@ public static JSONObject random() {
         }
 
         if (request != null) {
-          NetworkUtils.Send(sock, address, port, JsonUtils.toByteArray(request));
-          NetworkUtils.Tuple responseTuple = NetworkUtils.Receive(sock);
+          NetworkUtils.Tuple responseTuple;
+          if (reliable != null) {
+            reliable.send(address, port, JsonUtils.toByteArray(request));
+            responseTuple = reliable.receive();
+            if (ReliableSocket.DROP > 0) {
+              // -Dudp.drop: how the losses were made up for
+              System.out.println("(sent again: " + reliable.retransmissions() + " packets, rebuilt from parity: "
+                  + reliable.rebuilt() + " packets)");
+            }
+          } else {
+            NetworkUtils.Send(sock, address, port, JsonUtils.toByteArray(request));
+            responseTuple = NetworkUtils.Receive(sock);
+          }
           JSONObject response = JsonUtils.fromByteArray(responseTuple.Payload);
           if (response.has("error")) {
               System.out.println(response.getString("error"));
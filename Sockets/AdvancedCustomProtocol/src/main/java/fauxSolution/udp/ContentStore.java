@@ -0,0 +1,89 @@
+package fauxSolution.udp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Base64;
+
+import org.json.JSONObject;
+
+/**
+ * Everything the Server sends, turned into bytes once.
+ *
+ * Before, every image request read the png from disk, decoded it, encoded it
+ * again and made Base64 out of it. Now the file is read once and the answer
+ * is kept as the bytes that go into the packets. The png is sent as it is in
+ * the file, decoding and encoding it again gave the same picture.
+ *
+ * The file is read when the server starts, with -Dcontent.lazy=true only when
+ * it is asked for the first time. Every RECHECK_MS the store looks at its
+ * modification time and size, a changed file is read again.
+ *
+ * The arrays handed out are shared, they must not be changed.
+ */
+final class ContentStore {
+
+  /** how often a request checks if the file changed */
+  static final long RECHECK_MS = 1000;
+
+  /** read the files when they are asked for and not at start */
+  static final boolean LAZY = Boolean.getBoolean("content.lazy");
+
+  private final byte[] joke = JsonUtils.toByteArray(Server.joke());
+  private final byte[] quote = JsonUtils.toByteArray(Server.quote());
+
+  private final Path imageFile;
+  private byte[] image;
+  private long modified;
+  private long size;
+  private long checkedAt;
+
+  ContentStore(Path imageFile) {
+    this.imageFile = imageFile;
+    if (!LAZY) {
+      try {
+        image();
+        System.out.println("Loaded " + imageFile + " (" + size + " bytes)");
+      } catch (IOException e) {
+        // the requests will get an error, maybe the file is there by then
+        System.err.println("Cannot load " + imageFile.toAbsolutePath() + ": " + e);
+      }
+    }
+  }
+
+  byte[] joke() {
+    return joke;
+  }
+
+  byte[] quote() {
+    return quote;
+  }
+
+  /**
+   * The image answer, read again if the file changed. The workers call this
+   * at the same time, one of them checks the file and the others wait.
+   */
+  synchronized byte[] image() throws IOException {
+    if (image != null && System.currentTimeMillis() - checkedAt < RECHECK_MS) {
+      return image;
+    }
+    BasicFileAttributes attributes = Files.readAttributes(imageFile, BasicFileAttributes.class);
+    long fileModified = attributes.lastModifiedTime().toMillis();
+    if (image == null || modified != fileModified || size != attributes.size()) {
+      byte[] bytes = Files.readAllBytes(imageFile);
+      JSONObject json = new JSONObject();
+      json.put("datatype", 2);
+      json.put("type", "image");
+      json.put("data", Base64.getEncoder().encodeToString(bytes));
+      if (image != null) {
+        System.out.println("Reloaded " + imageFile);
+      }
+      image = JsonUtils.toByteArray(json);
+      modified = fileModified;
+      size = bytes.length;
+    }
+    checkedAt = System.currentTimeMillis();
+    return image;
+  }
+}
@@ -28,11 +28,12 @@ public class NetworkUtils {
    */
   public static void Send(DatagramSocket sock, InetAddress addr, int port, byte... bytes) throws IOException {
     int maxBufferLength = 1024 - 12;
-    int packetsTotal = bytes.length / maxBufferLength + 1;
+    // rounded up, and an empty message is one empty packet
+    int packetsTotal = Math.max(1, (bytes.length + maxBufferLength - 1) / maxBufferLength);
     
     int offset = 0;
     int packetNum = 0;
-    while (offset < bytes.length) {
+    while (packetNum < packetsTotal) {
       int bytesLeftToSend = bytes.length - offset;
       int length = Math.min(maxBufferLength, bytesLeftToSend);
       
@@ -94,11 +95,18 @@ public class NetworkUtils {
     public final InetAddress Address;
     public final int Port;
     public final byte[] Payload;
+    // came as a reliable message (see ReliableSocket), the answer has to as well
+    public final boolean Reliable;
     
     public Tuple(InetAddress address, int port, byte[] payload) {
+      this(address, port, payload, false);
+    }
+
+    public Tuple(InetAddress address, int port, byte[] payload, boolean reliable) {
       Address = address;
       Port = port;
       Payload = payload;
+      Reliable = reliable;
     }
   }
   
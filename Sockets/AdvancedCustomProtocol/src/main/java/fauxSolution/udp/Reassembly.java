@@ -0,0 +1,319 @@
+package fauxSolution.udp;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Puts the packets of many messages back together, every message on its own.
+ *
+ * A message is known by who sent it (address and port) and its message id, so
+ * packets of two clients that send at the same time do not end up in the same
+ * message. When the first packet of a message comes, one buffer for the whole
+ * message is allocated (fragments * fragmentSize bytes) and every packet is
+ * copied right into its slot, the order in which they come does not matter.
+ * Every packet says how big the fragments of its message are, senders with a
+ * bigger MTU send bigger fragments.
+ *
+ * A sender may also send a parity packet for every group of fragments: the
+ * XOR of all their payloads. When all fragments of a group but one are there,
+ * the missing one is the XOR of the parity and the others, it is rebuilt
+ * right here and the sender does not need to send it again.
+ *
+ * So that nobody can take all the memory:
+ * - a sender may have at most maxBytesPerSender in messages that are not
+ *   complete yet, packets of more messages are refused
+ * - a message that got no new packet for a while is dropped, its sender
+ *   stopped or lost interest
+ *
+ * Only the receiving thread uses a Reassembly, there is no locking.
+ */
+final class Reassembly {
+
+  /** a message that is not complete yet */
+  static final class Message {
+    final SocketAddress sender;
+    final int messageId;
+    final int total;
+    final int fragmentSize;
+    final byte[] buffer;
+    final boolean[] have;
+    int received;
+    int next; // first fragment that is missing
+    int lastLength = -1; // length of the last fragment, when it is there
+    long lastActivity;
+    // fragments per parity packet and the parity of every group, when the
+    // sender sends them
+    int group;
+    byte[][] parity;
+    int parityLastLength; // length of the last fragment, says the parity
+
+    Message(SocketAddress sender, int messageId, int total, int fragmentSize) {
+      this.sender = sender;
+      this.messageId = messageId;
+      this.total = total;
+      this.fragmentSize = fragmentSize;
+      this.buffer = new byte[total * fragmentSize];
+      this.have = new boolean[total];
+    }
+
+    boolean complete() {
+      return received == total;
+    }
+
+    /** bit i set: fragment next + 1 + i is there */
+    long sackBits() {
+      long bits = 0;
+      for (int i = 0; i < 64 && next + 1 + i < total; i++) {
+        if (have[next + 1 + i]) {
+          bits |= 1L << i;
+        }
+      }
+      return bits;
+    }
+
+    /** the bytes of a complete message */
+    byte[] bytes() {
+      int length = (total - 1) * fragmentSize + lastLength;
+      if (length == buffer.length) {
+        return buffer;
+      }
+      byte[] bytes = new byte[length];
+      System.arraycopy(buffer, 0, bytes, 0, length);
+      return bytes;
+    }
+  }
+
+  /** a message of a sender */
+  static final class Key {
+    final SocketAddress sender;
+    final int messageId;
+
+    Key(SocketAddress sender, int messageId) {
+      this.sender = sender;
+      this.messageId = messageId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && ((Key) o).sender.equals(sender) && ((Key) o).messageId == messageId;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(sender, messageId);
+    }
+  }
+
+  private final int maxMessageBytes;
+  private final long maxBytesPerSender;
+  private final long timeoutNanos;
+  private final Map<Key, Message> messages = new HashMap<>();
+  // bytes allocated for the incomplete messages of every sender
+  private final Map<SocketAddress, Long> bytesPerSender = new HashMap<>();
+  // read by other threads
+  private final LongAdder rebuilt = new LongAdder();
+
+  /**
+   * @param maxMessageBytes biggest message
+   * @param maxBytesPerSender buffers one sender may have at the same time
+   * @param timeoutMillis a message is dropped when no packet came for this long
+   */
+  Reassembly(int maxMessageBytes, long maxBytesPerSender, long timeoutMillis) {
+    this.maxMessageBytes = maxMessageBytes;
+    this.maxBytesPerSender = maxBytesPerSender;
+    this.timeoutNanos = timeoutMillis * 1_000_000L;
+  }
+
+  /**
+   * Copies a packet into the slot of its message
+   * @param fragmentSize payload bytes of every packet of the message but the last
+   * @param data the packet, offset and length are the payload in it
+   * @return the message, complete or not, null if the packet was refused
+   */
+  Message add(SocketAddress sender, int messageId, int seq, int total, int fragmentSize, ByteBuffer data, int offset,
+      int length) {
+    if (!fits(total, fragmentSize) || seq < 0 || seq >= total || length > fragmentSize
+        || (seq < total - 1 && length != fragmentSize)) {
+      return null; // not a packet that can belong to a message
+    }
+    Key key = new Key(sender, messageId);
+    Message message = message(key, total, fragmentSize);
+    if (message == null) {
+      return null;
+    }
+    if (!message.have[seq]) {
+      data.get(offset, message.buffer, seq * fragmentSize, length);
+      arrived(message, seq, length);
+      if (message.parity != null) {
+        rebuild(message, seq / message.group);
+      }
+    }
+    if (message.complete()) {
+      remove(key, message);
+    }
+    return message;
+  }
+
+  /**
+   * Keeps the parity of a group of fragments, and rebuilds the one fragment
+   * of the group that is missing if there is one
+   * @param first first fragment of the group
+   * @param group fragments per group, the last group may have less
+   * @param lastLength length of the last fragment of the message
+   * @return the message, complete or not, null if the packet was refused
+   */
+  Message addParity(SocketAddress sender, int messageId, int first, int total, int fragmentSize, int group,
+      int lastLength, ByteBuffer data, int offset, int length) {
+    if (!fits(total, fragmentSize) || group < 1 || first < 0 || first >= total || first % group != 0
+        || length != fragmentSize || lastLength > fragmentSize) {
+      return null;
+    }
+    Key key = new Key(sender, messageId);
+    Message message = message(key, total, fragmentSize);
+    if (message == null) {
+      return null;
+    }
+    if (message.parity == null) {
+      message.group = group;
+      message.parity = new byte[(total + group - 1) / group][];
+      message.parityLastLength = lastLength;
+    }
+    int index = first / group;
+    if (message.group == group && message.parity[index] == null) {
+      byte[] parity = new byte[fragmentSize];
+      data.get(offset, parity, 0, length);
+      message.parity[index] = parity;
+      rebuild(message, index);
+    }
+    if (message.complete()) {
+      remove(key, message);
+    }
+    return message;
+  }
+
+  /** fragments rebuilt from parity packets so far */
+  long rebuilt() {
+    return rebuilt.sum();
+  }
+
+  private boolean fits(int total, int fragmentSize) {
+    return fragmentSize >= 1 && total >= 1 && (long) (total - 1) * fragmentSize < maxMessageBytes;
+  }
+
+  /**
+   * @return the message the key stands for, new if there is none yet, null
+   *     if the sender has too much already
+   */
+  private Message message(Key key, int total, int fragmentSize) {
+    Message message = messages.get(key);
+    if (message != null && (message.total != total || message.fragmentSize != fragmentSize)) {
+      // the old protocol has no message ids: a new message of the sender
+      remove(key, message);
+      message = null;
+    }
+    if (message == null) {
+      long bytes = (long) total * fragmentSize;
+      long used = bytesPerSender.getOrDefault(key.sender, 0L);
+      if (used + bytes > maxBytesPerSender) {
+        return null;
+      }
+      message = new Message(key.sender, key.messageId, total, fragmentSize);
+      messages.put(key, message);
+      bytesPerSender.put(key.sender, used + bytes);
+    }
+    message.lastActivity = System.nanoTime();
+    return message;
+  }
+
+  private static void arrived(Message message, int seq, int length) {
+    message.have[seq] = true;
+    message.received++;
+    if (seq == message.total - 1) {
+      message.lastLength = length;
+    }
+    while (message.next < message.total && message.have[message.next]) {
+      message.next++;
+    }
+  }
+
+  /**
+   * The missing fragment of a group is the XOR of its parity and all other
+   * fragments of the group (the last fragment counts as padded with zeros)
+   */
+  private void rebuild(Message message, int index) {
+    byte[] parity = message.parity[index];
+    if (parity == null) {
+      return;
+    }
+    int first = index * message.group;
+    int end = Math.min(message.total, first + message.group);
+    int missing = -1;
+    for (int seq = first; seq < end; seq++) {
+      if (!message.have[seq]) {
+        if (missing >= 0) {
+          return; // two missing, XOR cannot tell them apart
+        }
+        missing = seq;
+      }
+    }
+    if (missing < 0) {
+      return;
+    }
+    int size = message.fragmentSize;
+    byte[] buffer = message.buffer;
+    int at = missing * size;
+    System.arraycopy(parity, 0, buffer, at, size);
+    for (int seq = first; seq < end; seq++) {
+      if (seq != missing) {
+        int from = seq * size;
+        for (int i = 0; i < size; i++) {
+          buffer[at + i] ^= buffer[from + i];
+        }
+      }
+    }
+    arrived(message, missing, missing == message.total - 1 ? message.parityLastLength : size);
+    rebuilt.increment();
+  }
+
+  /**
+   * Drops the messages that got no packet for the timeout
+   * @return how many were dropped
+   */
+  int expire() {
+    long now = System.nanoTime();
+    int dropped = 0;
+    for (Iterator<Map.Entry<Key, Message>> it = messages.entrySet().iterator(); it.hasNext();) {
+      Message message = it.next().getValue();
+      if (now - message.lastActivity > timeoutNanos) {
+        it.remove();
+        release(message);
+        dropped++;
+      }
+    }
+    return dropped;
+  }
+
+  /** messages that are not complete yet */
+  int incomplete() {
+    return messages.size();
+  }
+
+  private void remove(Key key, Message message) {
+    messages.remove(key);
+    release(message);
+  }
+
+  private void release(Message message) {
+    long left = bytesPerSender.get(message.sender) - message.buffer.length;
+    if (left == 0) {
+      bytesPerSender.remove(message.sender);
+    } else {
+      bytesPerSender.put(message.sender, left);
+    }
+  }
+}
@@ -0,0 +1,750 @@
+package fauxSolution.udp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Messages over UDP that arrive even if packets get lost (selective repeat).
+ *
+ * NetworkUtils sends the packets of a message once and hopes for the best,
+ * one lost packet and the receiver waits forever. Here the receiver answers
+ * every packet with an ACK that says which packets it has, and the sender
+ * sends again what did not arrive.
+ *
+ * data packet (MTU max, 1024 bytes by default)
+ * [
+ *   type(1 byte, 0x81),
+ *   messageId(4-byte int),  -- new for every message of a sender
+ *   fragment#(4-byte int),  -- number of this packet in the message
+ *   fragments(4-byte int),  -- number of packets of the message
+ *   fragmentSize(2 bytes),  -- payload of every packet but the last
+ *   timestamp(4-byte int),  -- when it was sent, in microseconds
+ *   payload(byte[])
+ * ]
+ *
+ * ack packet
+ * [
+ *   type(1 byte, 0x82),
+ *   messageId(4-byte int),
+ *   next(4-byte int),       -- all fragments before this one arrived
+ *   sack(8 bytes),          -- bit i set: fragment next + 1 + i arrived too
+ *   timestamp(4-byte int)   -- of the data packet that caused this ack
+ * ]
+ *
+ * parity packet, with -Dudp.fec=n for messages of at least n fragments
+ * [
+ *   type(1 byte, 0x83),
+ *   messageId(4-byte int),
+ *   first(4-byte int),      -- first fragment of the group
+ *   fragments(4-byte int),
+ *   fragmentSize(2 bytes),
+ *   timestamp(4-byte int),
+ *   group(2 bytes),         -- n, fragments per group
+ *   lastLength(2 bytes),    -- payload of the last fragment of the message
+ *   parity(fragmentSize bytes) -- XOR of the payloads of the group
+ * ]
+ *
+ * Sender: it has at most WINDOW packets on the way. Each one that was not
+ * acked after the retransmission timeout (RTO) is sent again, and the RTO
+ * doubles until the next ack comes. A packet that is missing in the SACK bits
+ * while later ones are there is a NACK: it was most likely lost, so it is sent
+ * again right away and not only after the timeout. The RTO comes from the
+ * round trip times measured with the echoed timestamps (srtt + 4 * rttvar,
+ * like TCP), so it is a few milliseconds on a LAN and longer over the
+ * internet.
+ *
+ * Receiver: it keeps every fragment only once and acks duplicates again, the
+ * sender may have lost the first ack. It also remembers the last messages it
+ * got completely, a sender that missed the last ack sends the end again and
+ * only gets the ack, the message is not delivered twice.
+ *
+ * One thread reads every packet that comes to the socket: it puts the
+ * messages of all senders together at the same time (see Reassembly), acks
+ * them, and hands the acks for our own messages to the thread that sends that
+ * message. So many threads can send and receive on one ReliableSocket, the
+ * Server answers many clients at once.
+ *
+ * Packets in the old format of NetworkUtils are put together as well, per
+ * sender, so the Server also answers clients that do not use this. Reliable
+ * is only what came as reliable: with -Dudp.reliable=true the Client sends
+ * this way.
+ *
+ * The socket is a DatagramChannel and packets are read from and written to
+ * direct buffers that are used again and again, the kernel copies straight
+ * from and to them. A message that is sent is laid out once in a direct
+ * buffer, every fragment with its header in front, so sending a packet (also
+ * a second time) only writes the new timestamp into it and hands that part of
+ * the buffer to the kernel, nothing is copied or allocated per packet.
+ * With -Dudp.mtu the packets get bigger than 1024 bytes (1472 fit into an
+ * ethernet frame, on localhost up to 65507 work), every packet says how big
+ * its fragments are so both sides may use different sizes. -Dudp.rcvbuf and
+ * -Dudp.sndbuf set the socket buffers, a window of big packets needs more
+ * than the system gives by default.
+ *
+ * Forward error correction: with -Dudp.fec=n a parity packet follows every n
+ * fragments of a big message (an image, not a joke that fits into one packet).
+ * If one fragment of the group gets lost the receiver rebuilds it from the
+ * parity and the others, and acks it as if it had come, without waiting a
+ * round trip for it to be sent again. Two lost in one group are sent again
+ * like before. It costs one packet more for every n.
+ *
+ * To try out losses without a bad network, -Dudp.drop=0.1 makes the socket
+ * throw away a tenth of the packets it sends, at random.
+ */
+final class ReliableSocket implements Closeable {
+
+  /** the Client sends reliable messages, -Dudp.reliable=true */
+  static final boolean ENABLED = Boolean.getBoolean("udp.reliable");
+
+  static final byte DATA = (byte) 0x81;
+  static final byte ACK = (byte) 0x82;
+  static final byte PARITY = (byte) 0x83;
+
+  /** biggest packet we send, -Dudp.mtu, 1024 like NetworkUtils by default */
+  static final int MTU = Math.max(64, Math.min(65507, Integer.getInteger("udp.mtu", 1024)));
+
+  /** socket buffers in bytes, -Dudp.rcvbuf and -Dudp.sndbuf, 0: what the system gives */
+  static final int RCVBUF = Integer.getInteger("udp.rcvbuf", 0);
+  static final int SNDBUF = Integer.getInteger("udp.sndbuf", 0);
+
+  /** packets on the way at the same time, the 64 SACK bits cover them */
+  static final int WINDOW = 64;
+
+  /** fragments per parity packet, -Dudp.fec, 0: no forward error correction */
+  static final int FEC_GROUP = Math.max(0, Math.min(WINDOW, Integer.getInteger("udp.fec", 0)));
+
+  /** part of the packets that are dropped on purpose, -Dudp.drop, to try out losses */
+  static final double DROP = Double.parseDouble(System.getProperty("udp.drop", "0"));
+
+  static final int DATA_HEADER = 1 + 4 + 4 + 4 + 2 + 4;
+  static final int TIMESTAMP_OFFSET = DATA_HEADER - 4;
+  static final int PARITY_HEADER = DATA_HEADER + 2 + 2;
+  static final int ACK_LENGTH = 1 + 4 + 4 + 8 + 4;
+  // the old format: packets, packet#, length, packets of 1024 bytes
+  static final int CLASSIC_HEADER = 12;
+  static final int CLASSIC_PACKET = 1024;
+
+  // biggest UDP packet, whatever MTU the other side uses it fits
+  private static final int MAX_PACKET = 65535;
+
+  static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * buffers of incomplete messages one sender may have,
+   * -Dudp.maxBytesPerSender, two of the biggest messages by default
+   */
+  static final long MAX_BYTES_PER_SENDER = Long.getLong("udp.maxBytesPerSender", 2L * MAX_MESSAGE_BYTES);
+
+  static final long INITIAL_RTO_NANOS = 200_000_000L;
+  static final long MIN_RTO_NANOS = 5_000_000L;
+  static final long MAX_RTO_NANOS = 3_000_000_000L;
+
+  /** timeouts in a row without any progress, then send gives up */
+  static final int MAX_TIMEOUTS = 10;
+
+  /** a half received message is dropped when nothing came for this long */
+  static final int RECEIVE_IDLE_MS = 5000;
+
+  /** messages remembered as received, to recognize them when they come again */
+  static final int COMPLETED_REMEMBERED = 1024;
+
+  /** complete messages nobody took yet, more are dropped */
+  static final int MAX_WAITING = 1024;
+
+  // the receiving thread looks for stale messages this often
+  private static final int TICK_MS = 100;
+
+  // the direct buffer a sending thread keeps for its next message, bigger
+  // messages get one of their own
+  private static final int KEEP_BYTES = 1024 * 1024;
+  private static final ThreadLocal<ByteBuffer> FRAMES = new ThreadLocal<>();
+  private static final ThreadLocal<ByteBuffer> CLASSIC = ThreadLocal
+      .withInitial(() -> ByteBuffer.allocateDirect(CLASSIC_PACKET));
+
+  private final DatagramChannel channel;
+  private final int fecGroup;
+  private final double drop;
+  private final Selector selector;
+  private final AtomicInteger nextMessageId = new AtomicInteger(new Random().nextInt());
+  // measured round trip times of everyone we sent to
+  private final Map<SocketAddress, Rtt> rtts = new ConcurrentHashMap<>();
+  // messages that are being sent, their acks go to the sending thread
+  private final Map<Reassembly.Key, Outgoing> sending = new ConcurrentHashMap<>();
+  // complete messages, for receive()
+  private final BlockingQueue<NetworkUtils.Tuple> received = new LinkedBlockingQueue<>(MAX_WAITING);
+  private final LongAdder retransmissions = new LongAdder();
+  private volatile IOException failure;
+
+  // only used by the receiving thread
+  private final Reassembly reliable = new Reassembly(MAX_MESSAGE_BYTES, MAX_BYTES_PER_SENDER, RECEIVE_IDLE_MS);
+  private final Reassembly classic = new Reassembly(MAX_MESSAGE_BYTES, MAX_BYTES_PER_SENDER, RECEIVE_IDLE_MS);
+  // messages received completely, value is their number of fragments
+  private final Map<Reassembly.Key, Integer> completed = new LinkedHashMap<Reassembly.Key, Integer>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Reassembly.Key, Integer> eldest) {
+      return size() > COMPLETED_REMEMBERED;
+    }
+  };
+  private final ByteBuffer packet = ByteBuffer.allocateDirect(MAX_PACKET);
+  private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(ACK_LENGTH);
+
+  /**
+   * Opens a socket with the configured buffers and starts the thread that
+   * reads it
+   * @param port 0 for any free port, for a client
+   */
+  static ReliableSocket open(int port) throws IOException {
+    return open(port, FEC_GROUP, DROP);
+  }
+
+  /**
+   * Opens a socket that does not take -Dudp.fec and -Dudp.drop, the tests
+   * lose packets on purpose with it
+   * @param fecGroup fragments per parity packet, 0: no forward error correction
+   * @param drop part of the packets that are dropped on purpose
+   */
+  static ReliableSocket open(int port, int fecGroup, double drop) throws IOException {
+    DatagramChannel channel = DatagramChannel.open();
+    try {
+      if (RCVBUF > 0) {
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RCVBUF);
+      }
+      if (SNDBUF > 0) {
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SNDBUF);
+      }
+      if (RCVBUF > 0 || SNDBUF > 0) {
+        // the system may give less than asked for (net.core.rmem_max on linux)
+        System.out.println("Socket buffers: receive " + channel.getOption(StandardSocketOptions.SO_RCVBUF)
+            + " bytes, send " + channel.getOption(StandardSocketOptions.SO_SNDBUF) + " bytes");
+      }
+      channel.bind(new InetSocketAddress(port));
+      return new ReliableSocket(channel, Math.max(0, Math.min(WINDOW, fecGroup)), drop);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private ReliableSocket(DatagramChannel channel, int fecGroup, double drop) throws IOException {
+    this.channel = channel;
+    this.fecGroup = fecGroup;
+    this.drop = drop;
+    // the receiving thread waits in the selector so it can look for stale
+    // messages every tick, and a sender whose socket buffer is full is not
+    // blocked while it holds the channel
+    channel.configureBlocking(false);
+    this.selector = Selector.open();
+    channel.register(selector, SelectionKey.OP_READ);
+    Thread receiver = new Thread(this::receiveLoop, "udp-receiver");
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  /** closes the socket, the receiving thread stops */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+    selector.close();
+  }
+
+  /** round trip time of one peer, smoothed like TCP does it (RFC 6298) */
+  private static final class Rtt {
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = INITIAL_RTO_NANOS;
+
+    synchronized void sample(long nanos) {
+      if (srtt < 0) {
+        srtt = nanos;
+        rttvar = nanos / 2;
+      } else {
+        rttvar = (3 * rttvar + Math.abs(srtt - nanos)) / 4;
+        srtt = (7 * srtt + nanos) / 8;
+      }
+      rto = Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, srtt + 4 * rttvar));
+    }
+
+    /** no ack came in time, maybe the network is slower than we thought */
+    synchronized void backoff() {
+      rto = Math.min(MAX_RTO_NANOS, rto * 2);
+    }
+
+    synchronized long rto() {
+      return rto;
+    }
+
+    synchronized long srtt() {
+      return srtt;
+    }
+  }
+
+  /** what an ack packet says */
+  private static final class Ack {
+    final int next;
+    final long sack;
+    final int echoed;
+
+    Ack(int next, long sack, int echoed) {
+      this.next = next;
+      this.sack = sack;
+      this.echoed = echoed;
+    }
+  }
+
+  /** a message we send, which of its fragments were acked */
+  private static final class Outgoing {
+    final InetSocketAddress peer;
+    final int messageId;
+    final int length;
+    final int total;
+    final int payload; // bytes of the message in one packet
+    final int fecGroup;
+    final int groups; // parity packets, 0 without forward error correction
+    // all packets of the message with their headers, one every MTU bytes,
+    // the parity packets after the data
+    final ByteBuffer frames;
+    // the part of frames that is sent next
+    final ByteBuffer view;
+    final long[] sentAt; // nanoTime of the last send, 0 = not sent yet
+    final boolean[] acked;
+    // filled by the receiving thread
+    final BlockingQueue<Ack> acks = new LinkedBlockingQueue<>();
+    int base; // first fragment that is not acked
+    int ackedCount;
+
+    Outgoing(InetSocketAddress peer, int messageId, byte[] bytes, int fecGroup) {
+      this.peer = peer;
+      this.messageId = messageId;
+      this.length = bytes.length;
+      // a parity packet is as big as the payload plus its header, it must fit too
+      this.payload = MTU - (fecGroup > 0 ? PARITY_HEADER : DATA_HEADER);
+      this.fecGroup = fecGroup;
+      // at least one packet, an empty message is one empty packet
+      this.total = Math.max(1, (bytes.length + payload - 1) / payload);
+      this.groups = fecGroup > 0 && total >= fecGroup ? (total + fecGroup - 1) / fecGroup : 0;
+      this.frames = frames((total + groups) * MTU);
+      for (int seq = 0; seq < total; seq++) {
+        int offset = seq * payload;
+        frames.position(seq * MTU);
+        frames.put(DATA).putInt(messageId).putInt(seq).putInt(total).putShort((short) payload).putInt(0);
+        frames.put(bytes, offset, Math.min(payload, bytes.length - offset));
+      }
+      byte[] parity = new byte[payload];
+      int lastLength = bytes.length - (total - 1) * payload;
+      for (int group = 0; group < groups; group++) {
+        int first = group * fecGroup;
+        int end = Math.min(bytes.length, (first + fecGroup) * payload);
+        Arrays.fill(parity, (byte) 0);
+        for (int offset = first * payload; offset < end; offset++) {
+          parity[offset % payload] ^= bytes[offset];
+        }
+        frames.position((total + group) * MTU);
+        frames.put(PARITY).putInt(messageId).putInt(first).putInt(total).putShort((short) payload).putInt(0);
+        frames.putShort((short) fecGroup).putShort((short) lastLength).put(parity);
+      }
+      this.view = frames.duplicate();
+      this.sentAt = new long[total];
+      this.acked = new boolean[total];
+    }
+
+    /** the direct buffer of this thread, or a new one if it is too small */
+    private static ByteBuffer frames(int size) {
+      ByteBuffer frames = FRAMES.get();
+      if (frames != null && frames.capacity() >= size) {
+        frames.clear();
+        return frames;
+      }
+      frames = ByteBuffer.allocateDirect(size);
+      if (size <= KEEP_BYTES) {
+        FRAMES.set(frames);
+      }
+      return frames;
+    }
+
+    /** @return the packet of a fragment, stamped with the time it is sent */
+    ByteBuffer packet(int seq) {
+      return slot(seq, DATA_HEADER + Math.min(payload, length - seq * payload));
+    }
+
+    /** @return the parity packet of a group, stamped with the time it is sent */
+    ByteBuffer parity(int group) {
+      return slot(total + group, PARITY_HEADER + payload);
+    }
+
+    private ByteBuffer slot(int index, int size) {
+      int start = index * MTU;
+      frames.putInt(start + TIMESTAMP_OFFSET, micros());
+      view.limit(start + size).position(start);
+      return view;
+    }
+
+    /** @return true if the fragment was not acked before */
+    boolean ack(int seq) {
+      if (seq < 0 || seq >= total || acked[seq]) {
+        return false;
+      }
+      acked[seq] = true;
+      ackedCount++;
+      while (base < total && acked[base]) {
+        base++;
+      }
+      return true;
+    }
+  }
+
+  /** packets that were sent again, because they or their ack got lost */
+  long retransmissions() {
+    return retransmissions.sum();
+  }
+
+  /** received fragments that were lost and rebuilt from a parity packet */
+  long rebuilt() {
+    return reliable.rebuilt();
+  }
+
+  /** the port the socket is bound to */
+  int port() throws IOException {
+    return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+  }
+
+  /**
+   * Waits for the next complete message, from any sender
+   * @return the message and who sent it
+   */
+  NetworkUtils.Tuple receive() throws IOException {
+    try {
+      while (true) {
+        NetworkUtils.Tuple message = received.poll(TICK_MS, TimeUnit.MILLISECONDS);
+        if (message != null) {
+          return message;
+        }
+        if (failure != null) {
+          throw failure;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a message");
+    }
+  }
+
+  /**
+   * Answers a message the way it came: reliable, or in the old format
+   */
+  void reply(NetworkUtils.Tuple request, byte[] bytes) throws IOException {
+    if (request.Reliable) {
+      send(request.Address, request.Port, bytes);
+    } else {
+      sendClassic(new InetSocketAddress(request.Address, request.Port), bytes);
+    }
+  }
+
+  /**
+   * Sends a message in the format of NetworkUtils, all packets in one go
+   */
+  private void sendClassic(InetSocketAddress target, byte[] bytes) throws IOException {
+    int maxPayload = CLASSIC_PACKET - CLASSIC_HEADER;
+    int packetsTotal = Math.max(1, (bytes.length + maxPayload - 1) / maxPayload);
+    ByteBuffer buffer = CLASSIC.get();
+    for (int packetNum = 0; packetNum < packetsTotal; packetNum++) {
+      int offset = packetNum * maxPayload;
+      int length = Math.min(maxPayload, bytes.length - offset);
+      buffer.clear();
+      buffer.putInt(packetsTotal).putInt(packetNum).putInt(length).put(bytes, offset, length).flip();
+      send(buffer, target);
+    }
+  }
+
+  /**
+   * Sends a message and returns once the receiver has all of it. Many threads
+   * may send at the same time.
+   * @throws IOException if the receiver did not answer for MAX_TIMEOUTS
+   *     timeouts in a row
+   */
+  void send(InetAddress addr, int port, byte[] bytes) throws IOException {
+    if (bytes.length > MAX_MESSAGE_BYTES) {
+      throw new IOException("Message too big: " + bytes.length + " bytes");
+    }
+    InetSocketAddress peer = new InetSocketAddress(addr, port);
+    Rtt rtt = rtts.computeIfAbsent(peer, p -> new Rtt());
+    Outgoing out = new Outgoing(peer, nextMessageId.getAndIncrement(), bytes, fecGroup);
+    Reassembly.Key key = new Reassembly.Key(peer, out.messageId);
+    sending.put(key, out);
+    try {
+      int timeouts = 0;
+      while (out.ackedCount < out.total) {
+        if (failure != null) {
+          throw failure;
+        }
+        // new packets while the window has room, and the ones whose ack is
+        // late, right after each other
+        long now = System.nanoTime();
+        long rto = rtt.rto();
+        boolean timedOut = false;
+        int end = Math.min(out.total, out.base + WINDOW);
+        for (int seq = out.base; seq < end; seq++) {
+          if (out.acked[seq]) {
+            continue;
+          }
+          if (out.sentAt[seq] == 0) {
+            sendData(out, seq);
+            // the parity right after the last fragment of its group
+            if (out.groups > 0 && (seq % out.fecGroup == out.fecGroup - 1 || seq == out.total - 1)) {
+              send(out.parity(seq / out.fecGroup), out.peer);
+            }
+          } else if (now - out.sentAt[seq] >= rto) {
+            timedOut = true;
+            retransmissions.increment();
+            sendData(out, seq);
+          }
+        }
+        if (timedOut) {
+          rtt.backoff();
+          if (++timeouts > MAX_TIMEOUTS) {
+            throw new IOException("No ack from " + peer + " for message " + out.messageId + ", "
+                + out.ackedCount + " of " + out.total + " packets arrived");
+          }
+        }
+
+        // wait for acks until the oldest packet on the way times out
+        long oldest = Long.MAX_VALUE;
+        for (int seq = out.base; seq < end; seq++) {
+          if (!out.acked[seq]) {
+            oldest = Math.min(oldest, out.sentAt[seq]);
+          }
+        }
+        long waitNanos = Math.max(1_000_000L, oldest + rtt.rto() - System.nanoTime());
+        Ack ack = out.acks.poll(Math.min(waitNanos, TICK_MS * 1_000_000L), TimeUnit.NANOSECONDS);
+        while (ack != null) {
+          if (onAck(out, ack, rtt)) {
+            timeouts = 0;
+          }
+          ack = out.acks.poll();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while sending");
+    } finally {
+      sending.remove(key);
+    }
+  }
+
+  /**
+   * @return true if the ack acked something new
+   */
+  private boolean onAck(Outgoing out, Ack ack, Rtt rtt) throws IOException {
+    long rttNanos = (micros() - ack.echoed) * 1000L;
+    if (rttNanos >= 0) {
+      rtt.sample(rttNanos);
+    }
+
+    boolean progress = false;
+    for (int seq = out.base; seq < Math.min(ack.next, out.total); seq++) {
+      progress |= out.ack(seq);
+    }
+    int highest = -1;
+    for (int i = 0; i < 64; i++) {
+      if ((ack.sack & (1L << i)) != 0) {
+        progress |= out.ack(ack.next + 1 + i);
+        highest = ack.next + 1 + i;
+      }
+    }
+
+    // NACK: fragments missing below one that arrived. Sent again if they
+    // are on the way for a round trip already, a resend that is still on its
+    // way is not sent a third time
+    long now = System.nanoTime();
+    long srtt = rtt.srtt();
+    for (int seq = ack.next; seq < Math.min(highest, out.total); seq++) {
+      if (!out.acked[seq] && out.sentAt[seq] != 0 && now - out.sentAt[seq] >= srtt) {
+        retransmissions.increment();
+        sendData(out, seq);
+      }
+    }
+    return progress;
+  }
+
+  private void sendData(Outgoing out, int seq) throws IOException {
+    send(out.packet(seq), out.peer);
+    out.sentAt[seq] = System.nanoTime();
+  }
+
+  /**
+   * Sends one packet. The channel does not block: when the socket buffer is
+   * full we wait a moment for the kernel to send some of it.
+   */
+  private void send(ByteBuffer packet, SocketAddress target) throws IOException {
+    if (drop > 0 && ThreadLocalRandom.current().nextDouble() < drop) {
+      return; // lost on purpose
+    }
+    while (channel.send(packet, target) == 0) {
+      LockSupport.parkNanos(50_000);
+    }
+  }
+
+  /**
+   * The receiving thread: reads every packet and looks what it is
+   */
+  private void receiveLoop() {
+    long lastExpire = System.nanoTime();
+    try {
+      while (true) {
+        selector.select(TICK_MS);
+        selector.selectedKeys().clear();
+        // all packets that are there, one after the other into the same buffer
+        SocketAddress sender;
+        while ((sender = channel.receive(packet.clear())) != null) {
+          packet.flip();
+          if (!packet.hasRemaining()) {
+            continue;
+          }
+          byte type = packet.get(0);
+          if (type == DATA) {
+            onData(sender);
+          } else if (type == ACK) {
+            onAck(sender);
+          } else if (type == PARITY) {
+            onParity(sender);
+          } else {
+            onClassic(sender);
+          }
+        }
+        if (System.nanoTime() - lastExpire > TICK_MS * 1_000_000L) {
+          int dropped = reliable.expire() + classic.expire();
+          if (dropped > 0) {
+            System.out.println("Dropped " + dropped + " incomplete messages, their senders went quiet");
+          }
+          lastExpire = System.nanoTime();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // the socket was closed (ClosedSelectorException is a RuntimeException)
+      failure = e instanceof IOException ? (IOException) e : new IOException("Socket closed", e);
+    }
+  }
+
+  private void onData(SocketAddress sender) throws IOException {
+    if (packet.remaining() < DATA_HEADER) {
+      return;
+    }
+    int messageId = packet.getInt(1);
+    int seq = packet.getInt(5);
+    int total = packet.getInt(9);
+    int fragmentSize = packet.getShort(13) & 0xffff;
+    int timestamp = packet.getInt(TIMESTAMP_OFFSET);
+    Reassembly.Key key = new Reassembly.Key(sender, messageId);
+
+    Integer done = completed.get(key);
+    if (done != null) {
+      // the sender missed our last ack
+      sendAck(key, done, 0, timestamp);
+      return;
+    }
+    Reassembly.Message message = reliable.add(sender, messageId, seq, total, fragmentSize, packet, DATA_HEADER,
+        packet.remaining() - DATA_HEADER);
+    acknowledge(key, message, timestamp);
+  }
+
+  private void onParity(SocketAddress sender) throws IOException {
+    if (packet.remaining() < PARITY_HEADER) {
+      return;
+    }
+    int messageId = packet.getInt(1);
+    int first = packet.getInt(5);
+    int total = packet.getInt(9);
+    int fragmentSize = packet.getShort(13) & 0xffff;
+    int timestamp = packet.getInt(TIMESTAMP_OFFSET);
+    int group = packet.getShort(19) & 0xffff;
+    int lastLength = packet.getShort(21) & 0xffff;
+    Reassembly.Key key = new Reassembly.Key(sender, messageId);
+
+    Integer done = completed.get(key);
+    if (done != null) {
+      sendAck(key, done, 0, timestamp);
+      return;
+    }
+    Reassembly.Message message = reliable.addParity(sender, messageId, first, total, fragmentSize, group, lastLength,
+        packet, PARITY_HEADER, packet.remaining() - PARITY_HEADER);
+    acknowledge(key, message, timestamp);
+  }
+
+  /** acks what we have of the message, and hands it out when it is complete */
+  private void acknowledge(Reassembly.Key key, Reassembly.Message message, int timestamp) throws IOException {
+    if (message == null) {
+      return; // refused, no ack: the sender sends it again later
+    }
+    sendAck(key, message.next, message.sackBits(), timestamp);
+    if (message.complete()) {
+      completed.put(key, message.total);
+      deliver(key.sender, message.bytes(), true);
+    }
+  }
+
+  private void onAck(SocketAddress sender) {
+    if (packet.remaining() < ACK_LENGTH) {
+      return;
+    }
+    Outgoing out = sending.get(new Reassembly.Key(sender, packet.getInt(1)));
+    if (out != null) {
+      out.acks.offer(new Ack(packet.getInt(5), packet.getLong(9), packet.getInt(17)));
+    }
+    // else a late ack of a message that is acked already
+  }
+
+  /** a packet in the format of NetworkUtils: no message id, no acks */
+  private void onClassic(SocketAddress sender) {
+    if (packet.remaining() < CLASSIC_HEADER) {
+      return;
+    }
+    int total = packet.getInt(0);
+    int seq = packet.getInt(4);
+    Reassembly.Message message = classic.add(sender, 0, seq, total, CLASSIC_PACKET - CLASSIC_HEADER, packet,
+        CLASSIC_HEADER, packet.remaining() - CLASSIC_HEADER);
+    if (message != null && message.complete()) {
+      deliver(sender, message.bytes(), false);
+    }
+  }
+
+  private void deliver(SocketAddress sender, byte[] bytes, boolean reliable) {
+    InetSocketAddress from = (InetSocketAddress) sender;
+    NetworkUtils.Tuple message = new NetworkUtils.Tuple(from.getAddress(), from.getPort(), bytes, reliable);
+    if (!received.offer(message)) {
+      // nobody takes the messages fast enough
+      System.out.println("Too many messages waiting, dropped one from " + sender);
+    }
+  }
+
+  private void sendAck(Reassembly.Key key, int next, long sack, int timestamp) throws IOException {
+    ackBuffer.clear();
+    ackBuffer.put(ACK).putInt(key.messageId).putInt(next).putLong(sack).putInt(timestamp).flip();
+    send(ackBuffer, key.sender);
+  }
+
+  // time stamp for the packets, wraps around after about an hour which is
+  // fine for a difference of a few seconds
+  private static int micros() {
+    return (int) (System.nanoTime() / 1000);
+  }
+}
@@ -1,14 +1,10 @@
 package fauxSolution.udp;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.util.Base64;
+import java.nio.file.Path;
 import java.util.Random;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.json.*;
 
@@ -23,6 +19,9 @@ public class Server {
    * error response: {"error": <error string> }
    */
 
+  // the answers, made once when the server starts (see ContentStore)
+  private static final ContentStore CONTENT = new ContentStore(Path.of("img/To-Funny-For-Words1.png"));
+
   public static JSONObject joke() {
     JSONObject json = new JSONObject();
     json.put("datatype", 1);
@@ -40,44 +39,17 @@ public class Server {
     return json;
   }
 
-  public static JSONObject image() throws IOException {
-    JSONObject json = new JSONObject();
-    json.put("datatype", 2);
-
-    json.put("type", "image");
-
-    File file = new File("img/To-Funny-For-Words1.png");
-    if (!file.exists()) {
-      System.err.println("Cannot find file: " + file.getAbsolutePath());
-      System.exit(-1);
-    }
-    // Read in image
-    BufferedImage img = ImageIO.read(file);
-    byte[] bytes = null;
-    try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-      ImageIO.write(img, "png", out);
-      bytes = out.toByteArray();
-    }
-    if (bytes != null) {
-      Base64.Encoder encoder = Base64.getEncoder();
-      json.put("data", encoder.encodeToString(bytes));
-      return json;
-    }
-    return error("Unable to save image to byte array");
-  }
+  // one random number generator for the whole server, the workers share it
+  private static final Random RANDOM = new Random();
 
-  public static JSONObject random() throws IOException {
-    Random rand = new Random();
-    int random = rand.nextInt(3);
-    JSONObject json = new JSONObject();
+  public static byte[] random() throws IOException {
+    int random = RANDOM.nextInt(3);
     if (random == 0) {
-      json = joke();
+      return CONTENT.joke();
     } else if (random == 1) {
-      json = quote();
-    } else if (random == 2) {
-      json = image();
+      return CONTENT.quote();
     }
-    return json;
+    return CONTENT.image();
   }
 
   public static JSONObject error(String err) {
@@ -86,56 +58,63 @@ public class Server {
     return json;
   }
 
-  public static void main(String[] args) throws IOException {
-    DatagramSocket sock = null;
+  /**
+   * Builds the answer for one request, runs on a worker
+   */
+  static byte[] handle(byte[] request) throws IOException {
+    JSONObject message;
     try {
-      sock = new DatagramSocket(9000);
-      // NOTE: SINGLE-THREADED, only one connection at a time
-      while (true) {
-        try {
-          while (true) {
-            NetworkUtils.Tuple messageTuple = NetworkUtils.Receive(sock);
-            JSONObject message = JsonUtils.fromByteArray(messageTuple.Payload);
-            JSONObject returnMessage;
-            if (message.has("selected")) {
-              if (message.get("selected") instanceof Long || message.get("selected") instanceof Integer) {
-                int choice = message.getInt("selected");
-                switch (choice) {
-                case (1):
-                  returnMessage = joke();
-                  break;
-                case (2):
-                  returnMessage = quote();
-                  break;
-                case (3):
-                  returnMessage = image();
-                  break;
-                case (4):
-                  returnMessage = random();
-                  break;
-                default:
-                  returnMessage = error("Invalid selection: " + choice + " is not an option");
-                }
-              } else {
-                returnMessage = error("Selection must be an integer");
-              }
-            } else {
-              returnMessage = error("Invalid message received");
-            }
+      message = JsonUtils.fromByteArray(request);
+    } catch (JSONException e) {
+      return JsonUtils.toByteArray(error("Invalid message received"));
+    }
+    // the answers are ready as bytes, only errors are made here
+    if (!message.has("selected")) {
+      return JsonUtils.toByteArray(error("Invalid message received"));
+    }
+    if (!(message.get("selected") instanceof Long || message.get("selected") instanceof Integer)) {
+      return JsonUtils.toByteArray(error("Selection must be an integer"));
+    }
+    int choice = message.getInt("selected");
+    switch (choice) {
+    case (1):
+      return CONTENT.joke();
+    case (2):
+      return CONTENT.quote();
+    case (3):
+      return CONTENT.image();
+    case (4):
+      return random();
+    default:
+      return JsonUtils.toByteArray(error("Invalid selection: " + choice + " is not an option"));
+    }
+  }
 
-            byte[] output = JsonUtils.toByteArray(returnMessage);
-            NetworkUtils.Send(sock, messageTuple.Address, messageTuple.Port, output);
+  public static void main(String[] args) throws IOException {
+    ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+    // one thread reads all packets and puts the messages of every sender
+    // together on its own, reliable ones (-Dudp.reliable=true on the client)
+    // and ones in the old format (see ReliableSocket). The workers answer,
+    // so many clients are served at the same time
+    try (ReliableSocket endpoint = ReliableSocket.open(9000)) {
+      while (true) {
+        NetworkUtils.Tuple messageTuple = endpoint.receive();
+        workers.execute(() -> {
+          try {
+            endpoint.reply(messageTuple, handle(messageTuple.Payload));
+          } catch (IOException e) {
+            System.out.println("Could not answer " + messageTuple.Address + ":" + messageTuple.Port + ": "
+                + e.getMessage());
           }
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+        });
       }
     } catch (IOException e) {
       e.printStackTrace();
     } finally {
-      if (sock != null) {
-        sock.close();
-      }
+      workers.shutdown();
     }
   }
-}
\ No newline at end of file
+
+  // threads that answer, a reliable answer keeps its worker until it is acked
+  static final int WORKERS = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+}
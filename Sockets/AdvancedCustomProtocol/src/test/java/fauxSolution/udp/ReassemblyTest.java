@@ -0,0 +1,205 @@
+package fauxSolution.udp;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Gives Reassembly the payloads the receiving thread takes out of the
+ * packets, without a socket.
+ */
+public class ReassemblyTest {
+
+  private static final int SIZE = 100; // fragment size
+  private static final SocketAddress ALICE = new InetSocketAddress("127.0.0.1", 5001);
+  private static final SocketAddress BOB = new InetSocketAddress("127.0.0.1", 5002);
+
+  private static byte[] message(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static int fragments(byte[] bytes) {
+    return Math.max(1, (bytes.length + SIZE - 1) / SIZE);
+  }
+
+  /** the payload of a fragment, behind a header like in a real packet */
+  private static Reassembly.Message add(Reassembly reassembly, SocketAddress sender, int id, byte[] bytes, int seq) {
+    int offset = seq * SIZE;
+    int length = Math.min(SIZE, bytes.length - offset);
+    ByteBuffer packet = ByteBuffer.allocate(ReliableSocket.DATA_HEADER + length);
+    packet.position(ReliableSocket.DATA_HEADER);
+    packet.put(bytes, offset, length);
+    return reassembly.add(sender, id, seq, fragments(bytes), SIZE, packet, ReliableSocket.DATA_HEADER, length);
+  }
+
+  /** the parity packet of a group, built like the sender does it */
+  private static Reassembly.Message addParity(Reassembly reassembly, byte[] bytes, int group, int index) {
+    int total = fragments(bytes);
+    int first = index * group;
+    byte[] parity = new byte[SIZE];
+    for (int offset = first * SIZE; offset < Math.min(bytes.length, (first + group) * SIZE); offset++) {
+      parity[offset % SIZE] ^= bytes[offset];
+    }
+    int lastLength = bytes.length - (total - 1) * SIZE;
+    return reassembly.addParity(ALICE, 1, first, total, SIZE, group, lastLength, ByteBuffer.wrap(parity), 0, SIZE);
+  }
+
+  @Test
+  public void fragmentsOutOfOrder() {
+    Reassembly reassembly = new Reassembly(1 << 20, 1 << 20, 10_000);
+    byte[] bytes = message(450);
+
+    int[] order = {3, 0, 4, 2};
+    for (int seq : order) {
+      Reassembly.Message message = add(reassembly, ALICE, 7, bytes, seq);
+      assertFalse(message.complete());
+    }
+    // the same packet again changes nothing
+    assertEquals(4, add(reassembly, ALICE, 7, bytes, 2).received);
+    Reassembly.Message message = add(reassembly, ALICE, 7, bytes, 1);
+
+    assertTrue(message.complete());
+    assertArrayEquals(bytes, message.bytes());
+    assertEquals(0, reassembly.incomplete());
+  }
+
+  @Test
+  public void messagesOfTwoSendersWithTheSameId() {
+    Reassembly reassembly = new Reassembly(1 << 20, 1 << 20, 10_000);
+    byte[] fromAlice = message(250);
+    byte[] fromBob = message(260);
+
+    for (int seq = 0; seq < 2; seq++) {
+      add(reassembly, ALICE, 1, fromAlice, seq);
+      add(reassembly, BOB, 1, fromBob, seq);
+    }
+    assertEquals(2, reassembly.incomplete());
+    assertArrayEquals(fromAlice, add(reassembly, ALICE, 1, fromAlice, 2).bytes());
+    assertArrayEquals(fromBob, add(reassembly, BOB, 1, fromBob, 2).bytes());
+  }
+
+  @Test
+  public void badFragmentsAreRefused() {
+    Reassembly reassembly = new Reassembly(1000, 1 << 20, 10_000);
+    ByteBuffer data = ByteBuffer.allocate(SIZE);
+
+    assertNull(reassembly.add(ALICE, 1, 3, 3, SIZE, data, 0, SIZE)); // seq past the end
+    assertNull(reassembly.add(ALICE, 1, 0, 3, SIZE, data, 0, SIZE - 1)); // short, not the last one
+    assertNull(reassembly.add(ALICE, 1, 2, 3, SIZE - 1, data, 0, SIZE)); // longer than the fragments
+    assertNull(reassembly.add(ALICE, 1, 0, 11, SIZE, data, 0, SIZE)); // bigger than 1000 bytes
+    assertEquals(0, reassembly.incomplete());
+  }
+
+  @Test
+  public void senderOverItsCapIsRefused() {
+    // room for two messages of 3 fragments
+    Reassembly reassembly = new Reassembly(1 << 20, 6 * SIZE, 10_000);
+    byte[] bytes = message(300);
+
+    assertNotNull(add(reassembly, ALICE, 1, bytes, 0));
+    assertNotNull(add(reassembly, ALICE, 2, bytes, 0));
+    assertNull(add(reassembly, ALICE, 3, bytes, 0));
+    // the cap is for every sender on its own
+    assertNotNull(add(reassembly, BOB, 3, bytes, 0));
+
+    // a complete message gives its bytes back
+    add(reassembly, ALICE, 1, bytes, 1);
+    assertTrue(add(reassembly, ALICE, 1, bytes, 2).complete());
+    assertNotNull(add(reassembly, ALICE, 3, bytes, 0));
+  }
+
+  @Test
+  public void staleMessagesExpire() throws InterruptedException {
+    Reassembly reassembly = new Reassembly(1 << 20, 3 * SIZE, 0);
+    byte[] bytes = message(300);
+
+    add(reassembly, ALICE, 1, bytes, 0);
+    add(reassembly, BOB, 1, bytes, 1);
+    Thread.sleep(1);
+    assertEquals(2, reassembly.expire());
+    assertEquals(0, reassembly.incomplete());
+    assertEquals(0, reassembly.expire());
+
+    // the bytes of the dropped message are free again
+    assertNotNull(add(reassembly, ALICE, 2, bytes, 0));
+  }
+
+  @Test
+  public void oneMissingFragmentPerGroupIsRebuilt() {
+    Reassembly reassembly = new Reassembly(1 << 20, 1 << 20, 10_000);
+    // 10 fragments, the last one 50 bytes: groups 0-3, 4-7 and 8-9
+    byte[] bytes = message(950);
+
+    Reassembly.Message message = null;
+    for (int seq = 0; seq < 10; seq++) {
+      if (seq != 1 && seq != 6 && seq != 8) {
+        message = add(reassembly, ALICE, 1, bytes, seq);
+      }
+    }
+    for (int index = 0; index < 3; index++) {
+      message = addParity(reassembly, bytes, 4, index);
+    }
+
+    assertTrue(message.complete());
+    assertArrayEquals(bytes, message.bytes());
+    assertEquals(3, reassembly.rebuilt());
+    assertEquals(0, reassembly.incomplete());
+  }
+
+  @Test
+  public void parityBeforeTheFragments() {
+    Reassembly reassembly = new Reassembly(1 << 20, 1 << 20, 10_000);
+    byte[] bytes = message(800);
+
+    addParity(reassembly, bytes, 8, 0);
+    Reassembly.Message message = null;
+    for (int seq = 1; seq < 8; seq++) {
+      message = add(reassembly, ALICE, 1, bytes, seq);
+    }
+
+    assertTrue(message.complete());
+    assertArrayEquals(bytes, message.bytes());
+    assertEquals(1, reassembly.rebuilt());
+  }
+
+  @Test
+  public void twoMissingFragmentsAreNotRebuilt() {
+    Reassembly reassembly = new Reassembly(1 << 20, 1 << 20, 10_000);
+    byte[] bytes = message(400);
+
+    add(reassembly, ALICE, 1, bytes, 0);
+    add(reassembly, ALICE, 1, bytes, 3);
+    Reassembly.Message message = addParity(reassembly, bytes, 4, 0);
+    assertFalse(message.complete());
+    assertEquals(0, reassembly.rebuilt());
+
+    // the retransmission of one of them is enough for the other
+    message = add(reassembly, ALICE, 1, bytes, 2);
+    assertTrue(message.complete());
+    assertArrayEquals(bytes, message.bytes());
+    assertEquals(1, reassembly.rebuilt());
+  }
+
+  @Test
+  public void shortLastFragmentIsRebuilt() {
+    Reassembly reassembly = new Reassembly(1 << 20, 1 << 20, 10_000);
+    byte[] bytes = message(317);
+
+    for (int seq = 0; seq < 3; seq++) {
+      add(reassembly, ALICE, 1, bytes, seq);
+    }
+    Reassembly.Message message = addParity(reassembly, bytes, 4, 0);
+
+    assertTrue(message.complete());
+    assertEquals(17, message.lastLength);
+    assertArrayEquals(bytes, message.bytes());
+    assertEquals(1, reassembly.rebuilt());
+  }
+}
@@ -0,0 +1,82 @@
+package fauxSolution.udp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Clients and a server on the loopback interface that lose packets on
+ * purpose, every message has to come through anyway.
+ */
+public class ReliableSocketTest {
+
+  private static final int CLIENTS = 4;
+  private static final int MESSAGES = 50;
+  private static final int FEC_GROUP = 8;
+  private static final double DROP = 0.05;
+
+  @Test(timeout = 120_000)
+  public void lossyRoundTrips() throws Exception {
+    ExecutorService threads = Executors.newFixedThreadPool(CLIENTS + 1);
+    List<ReliableSocket> clients = new ArrayList<>();
+    try (ReliableSocket server = ReliableSocket.open(0, FEC_GROUP, DROP)) {
+      int port = server.port();
+      // answers every message with the same bytes
+      threads.submit(() -> {
+        while (true) {
+          NetworkUtils.Tuple request = server.receive();
+          server.reply(request, request.Payload);
+        }
+      });
+      List<Future<Integer>> results = new ArrayList<>();
+      for (int i = 0; i < CLIENTS; i++) {
+        ReliableSocket client = ReliableSocket.open(0, FEC_GROUP, DROP);
+        clients.add(client);
+        Random random = new Random(i);
+        results.add(threads.submit(() -> roundTrips(client, port, random)));
+      }
+      for (Future<Integer> result : results) {
+        assertEquals(MESSAGES, (int) result.get());
+      }
+
+      long rebuilt = server.rebuilt();
+      for (ReliableSocket client : clients) {
+        rebuilt += client.rebuilt();
+      }
+      assertTrue("no fragment was rebuilt from a parity packet", rebuilt > 0);
+    } finally {
+      for (ReliableSocket client : clients) {
+        client.close();
+      }
+      threads.shutdownNow();
+      threads.awaitTermination(5, TimeUnit.SECONDS);
+    }
+  }
+
+  /** @return how many answers were the bytes that were sent */
+  private static int roundTrips(ReliableSocket client, int port, Random random) throws IOException {
+    InetAddress loopback = InetAddress.getLoopbackAddress();
+    int good = 0;
+    for (int i = 0; i < MESSAGES; i++) {
+      // up to 20 fragments, so most messages have parity packets
+      byte[] bytes = new byte[random.nextInt(20 * ReliableSocket.MTU)];
+      random.nextBytes(bytes);
+      client.send(loopback, port, bytes);
+      if (Arrays.equals(bytes, client.receive().Payload)) {
+        good++;
+      }
+    }
+    return good;
+  }
+}
@@ -0,0 +1,244 @@
+package loadGenerator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A very small HTTP/1.1 client on a plain Socket, just enough to send GET
+ * requests and read the answers of our servers: Content-Length, chunked or
+ * "read until the server closes". The body is read and thrown away, only its
+ * size is kept.
+ *
+ * It does not use HttpURLConnection or java.net.http on purpose: we want to
+ * decide ourselves when a connection is opened, reused or closed, and the
+ * client should cost as little time as possible so we measure the server.
+ */
+final class HttpConnection implements Closeable {
+
+  /** what came back for one request */
+  static final class Result {
+    final int status;
+    final long bodyBytes;
+    final boolean serverCloses;
+
+    Result(int status, long bodyBytes, boolean serverCloses) {
+      this.status = status;
+      this.bodyBytes = bodyBytes;
+      this.serverCloses = serverCloses;
+    }
+  }
+
+  private final InetSocketAddress address;
+  private final int timeoutMillis;
+  private final byte[] skip = new byte[64 * 1024];
+  private Socket socket;
+  private InputStream in;
+  private OutputStream out;
+  private long retries;
+
+  /**
+   * Nothing is connected yet, that happens with the first request
+   */
+  HttpConnection(InetSocketAddress address, int timeoutMillis) {
+    this.address = address;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Builds the bytes of a GET request once, they are sent again and again
+   * @param host value of the Host header, e.g. "localhost:9000"
+   * @param target e.g. "/multiply?num1=3&num2=4"
+   * @param keepAlive false sends "Connection: close"
+   */
+  static byte[] request(String host, String target, boolean keepAlive) {
+    return ("GET " + target + " HTTP/1.1\r\n"
+        + "Host: " + host + "\r\n"
+        + "User-Agent: ser321-load-generator\r\n"
+        + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+        + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Sends one request and reads the whole answer, connects first if needed.
+   * The connection is closed afterwards if the server or the request said so.
+   *
+   * A server may close a keep-alive connection at any time it is idle (idle
+   * timeout, graceful shutdown). If that happens while our request is on its
+   * way, the connection is closed or reset before anything comes back; like
+   * browsers do, the request is sent once more on a new connection. A server
+   * that does not answer within the timeout is not retried: that is an error
+   * to measure, and sending again would only add to its load.
+   */
+  Result exchange(byte[] request, boolean keepAlive) throws IOException {
+    boolean reused = socket != null;
+    if (!reused) {
+      connect();
+    }
+    boolean answered = false;
+    try {
+      out.write(request);
+      out.flush();
+      in.mark(1);
+      if (in.read() == -1) {
+        throw new EOFException("Connection closed before the response");
+      }
+      answered = true;
+      in.reset();
+      Result result = readResponse();
+      if (!keepAlive || result.serverCloses) {
+        close();
+      }
+      return result;
+    } catch (EOFException | SocketException e) {
+      close();
+      if (reused && !answered) {
+        retries++;
+        return exchange(request, keepAlive);
+      }
+      throw e;
+    } catch (IOException e) {
+      // e.g. SocketTimeoutException
+      close();
+      throw e;
+    }
+  }
+
+  /** requests that were sent again because a reused connection was closed */
+  long retries() {
+    return retries;
+  }
+
+  private void connect() throws IOException {
+    Socket s = new Socket();
+    s.setTcpNoDelay(true);
+    s.setSoTimeout(timeoutMillis);
+    s.connect(address, timeoutMillis);
+    socket = s;
+    in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+    out = new BufferedOutputStream(s.getOutputStream());
+  }
+
+  private Result readResponse() throws IOException {
+    String statusLine = readLine();
+    // "HTTP/1.1 200 OK"
+    String[] parts = statusLine.split(" ", 3);
+    if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+      throw new IOException("Not an HTTP response: " + statusLine);
+    }
+    int status;
+    try {
+      status = Integer.parseInt(parts[1]);
+    } catch (NumberFormatException e) {
+      throw new IOException("Not an HTTP response: " + statusLine);
+    }
+
+    long length = -1;
+    boolean chunked = false;
+    boolean closes = parts[0].equals("HTTP/1.0");
+    String line;
+    while (!(line = readLine()).isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon <= 0) {
+        continue;
+      }
+      String name = line.substring(0, colon).trim();
+      String value = line.substring(colon + 1).trim();
+      if (name.equalsIgnoreCase("Content-Length")) {
+        length = Long.parseLong(value);
+      } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+        chunked = value.equalsIgnoreCase("chunked");
+      } else if (name.equalsIgnoreCase("Connection")) {
+        closes = value.equalsIgnoreCase("close");
+      }
+    }
+
+    long body;
+    if (status == 204 || status == 304) {
+      body = 0;
+    } else if (chunked) {
+      body = skipChunked();
+    } else if (length >= 0) {
+      skipExactly(length);
+      body = length;
+    } else {
+      // no length: the body ends when the server closes the connection
+      body = skipToEnd();
+      closes = true;
+    }
+    return new Result(status, body, closes);
+  }
+
+  private long skipChunked() throws IOException {
+    long body = 0;
+    while (true) {
+      String sizeLine = readLine();
+      int semicolon = sizeLine.indexOf(';');
+      long size = Long.parseLong((semicolon == -1 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+      if (size == 0) {
+        // trailers end with an empty line
+        while (!readLine().isEmpty()) {
+        }
+        return body;
+      }
+      skipExactly(size);
+      body += size;
+      readLine(); // the "\r\n" after the chunk
+    }
+  }
+
+  private void skipExactly(long length) throws IOException {
+    long left = length;
+    while (left > 0) {
+      int read = in.read(skip, 0, (int) Math.min(skip.length, left));
+      if (read == -1) {
+        throw new EOFException("Connection closed " + left + " bytes before the end of the body");
+      }
+      left -= read;
+    }
+  }
+
+  private long skipToEnd() throws IOException {
+    long body = 0;
+    int read;
+    while ((read = in.read(skip)) != -1) {
+      body += read;
+    }
+    return body;
+  }
+
+  /** one header line without the "\r\n" */
+  private String readLine() throws IOException {
+    StringBuilder line = new StringBuilder(64);
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) {
+        throw new EOFException("Connection closed by the server");
+      }
+      if (b != '\r') {
+        line.append((char) b);
+      }
+    }
+    return line.toString();
+  }
+
+  @Override
+  public void close() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // nothing left to do
+      }
+      socket = null;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package loadGenerator;
+
+/**
+ * Log-linear histogram of latencies in microseconds, like HdrHistogram: values
+ * up to 16 get a bucket each, above that every power of two is split into 16
+ * buckets, so every value is stored with about 6% precision no matter if it is
+ * 50 microseconds or 5 seconds.
+ *
+ * Not thread-safe: every connection thread records into its own histograms and
+ * they are added together at the end.
+ */
+final class LatencyHistogram {
+
+  static final int SUB_BITS = 4;
+  static final int SUB_BUCKETS = 1 << SUB_BITS;
+  // values above 2^40 microseconds (12 days) go into the last bucket
+  static final int MAX_MAGNITUDE = 40;
+
+  private final long[] counts = new long[SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BITS + 1) * SUB_BUCKETS];
+  private long total;
+  private long sum;
+  private long max;
+
+  void record(long micros) {
+    record(Math.max(0, micros), 1);
+  }
+
+  private void record(long micros, long count) {
+    counts[index(micros)] += count;
+    total += count;
+    sum += micros * count;
+    max = Math.max(max, micros);
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int magnitude = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_MAGNITUDE);
+    int shift = magnitude - SUB_BITS;
+    // the 4 bits after the highest one bit
+    int sub = (int) Math.min(value >>> shift, 2 * SUB_BUCKETS - 1) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+  }
+
+  /** biggest value that goes into the bucket */
+  static long upperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+    int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+  }
+
+  /** adds the values of another histogram to this one */
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    total += other.total;
+    sum += other.sum;
+    max = Math.max(max, other.max);
+  }
+
+  long count() {
+    return total;
+  }
+
+  long max() {
+    return max;
+  }
+
+  double mean() {
+    return total == 0 ? 0 : (double) sum / total;
+  }
+
+  /**
+   * @param quantile e.g. 0.99
+   * @return the upper bound of the bucket that holds the quantile (never above
+   *     the biggest value seen), 0 if empty
+   */
+  long quantile(double quantile) {
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Corrects for coordinated omission, the same way as HdrHistogram's
+   * copyCorrectedForCoordinatedOmission.
+   *
+   * A closed-loop client only sends its next request after the last answer.
+   * When the server stalls for a second, the client waits with it and records
+   * one slow request, while a real user population would have kept sending and
+   * all their requests in that second would have been slow. So for every value
+   * bigger than the expected interval between two requests, the requests that
+   * should have been sent in the meantime are added with the latency they would
+   * have seen: value - interval, value - 2 * interval, ...
+   * @param expectedIntervalMicros time between two requests of one connection
+   *     when nothing stalls
+   * @return a corrected copy, this histogram is not changed
+   */
+  LatencyHistogram corrected(long expectedIntervalMicros) {
+    LatencyHistogram copy = new LatencyHistogram();
+    copy.add(this);
+    if (expectedIntervalMicros <= 0) {
+      return copy;
+    }
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] == 0) {
+        continue;
+      }
+      long value = Math.min(upperBound(i), max);
+      for (long missing = value - expectedIntervalMicros; missing >= expectedIntervalMicros;
+          missing -= expectedIntervalMicros) {
+        copy.record(missing, counts[i]);
+      }
+    }
+    return copy;
+  }
+}
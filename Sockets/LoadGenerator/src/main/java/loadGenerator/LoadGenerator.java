@@ -0,0 +1,537 @@
+/*
+Load generator for the web servers in this folder (funHttpServer.WebServer,
+httpServer.WebServer and SimpleWebServer).
+
+Two ways to put load on a server:
+
+closed loop (default): every connection sends a request, waits for the answer
+  and sends the next one right away. Shows the most the server can do with that
+  many clients. Because a client waits whenever the server stalls, it sends
+  fewer requests exactly when things are slow and the slow times hardly show up
+  in the numbers ("coordinated omission"). The latency is corrected for that
+  afterwards, see LatencyHistogram.corrected.
+
+open loop (--rate): requests are sent at a fixed rate no matter how fast the
+  server answers, like many independent users would. The latency of a request
+  is measured from the time it should have been sent, so waiting for a free
+  connection counts as well. This is the honest number for "what latency do
+  users see at N requests per second".
+
+Only localhost is allowed, this is for measuring our own servers and not for
+loading anybody else's machine.
+
+Results are printed and written as JSON (with the git commit), so two runs can
+be compared:
+  gradle run --args "--port 9000 --duration 30 --compare results/before.json"
+*/
+
+package loadGenerator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONObject;
+
+public class LoadGenerator {
+
+  /** the routes of funHttpServer, weight:target */
+  static final String DEFAULT_MIX = "4:/,2:/json,3:/multiply?num1=3&num2=4,1:/file/www/index.html";
+
+  /** percentiles in the report and the JSON */
+  static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  static final String USAGE = "Options (all optional):\n"
+      + "  --host localhost       only loopback addresses are allowed\n"
+      + "  --port 9000\n"
+      + "  --connections 16       connections (one thread each)\n"
+      + "  --duration 30          seconds that are measured\n"
+      + "  --warmup 5             seconds before that, not measured\n"
+      + "  --rate 0               requests per second in total, 0 = closed loop\n"
+      + "  --keep-alive true      false opens a new connection for every request\n"
+      + "  --mix " + DEFAULT_MIX + "\n"
+      + "                         weight:target, comma separated\n"
+      + "  --timeout 5000         milliseconds to wait for an answer\n"
+      + "  --label <git commit>   name of the run in the results\n"
+      + "  --out results/<time>-<label>.json\n"
+      + "  --compare old.json     prints the change against an earlier run";
+
+  /**
+   * One entry of the route mix, the request bytes are built once
+   */
+  static final class Route {
+    final String target;
+    final int weight;
+    final byte[] request;
+
+    Route(String target, int weight, byte[] request) {
+      this.target = target;
+      this.weight = weight;
+      this.request = request;
+    }
+  }
+
+  // settings
+  private String host = "localhost";
+  private int port = 9000;
+  private int connections = 16;
+  private int durationSeconds = 30;
+  private int warmupSeconds = 5;
+  private double rate = 0;
+  private boolean keepAlive = true;
+  private String mixText = DEFAULT_MIX;
+  private int timeoutMillis = 5000;
+  private String label;
+  private String out;
+  private String compare;
+
+  private List<Route> routes;
+  private int totalWeight;
+
+  public static void main(String[] args) {
+    LoadGenerator generator = new LoadGenerator();
+    try {
+      generator.parseArgs(args);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      System.out.println(USAGE);
+      System.exit(2);
+    }
+    try {
+      generator.run();
+    } catch (IOException e) {
+      System.out.println("Error: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  void parseArgs(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      String name = args[i];
+      if (name.equals("--help")) {
+        throw new IllegalArgumentException("Load generator for the web servers");
+      }
+      if (i + 1 >= args.length) {
+        throw new IllegalArgumentException("Missing value for " + name);
+      }
+      String value = args[++i];
+      try {
+        switch (name) {
+          case "--host": host = value; break;
+          case "--port": port = Integer.parseInt(value); break;
+          case "--connections": connections = Integer.parseInt(value); break;
+          case "--duration": durationSeconds = Integer.parseInt(value); break;
+          case "--warmup": warmupSeconds = Integer.parseInt(value); break;
+          case "--rate": rate = Double.parseDouble(value); break;
+          case "--keep-alive": keepAlive = Boolean.parseBoolean(value); break;
+          case "--mix": mixText = value; break;
+          case "--timeout": timeoutMillis = Integer.parseInt(value); break;
+          case "--label": label = value; break;
+          case "--out": out = value; break;
+          case "--compare": compare = value; break;
+          default: throw new IllegalArgumentException("Unknown option " + name);
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(name + " must be a number");
+      }
+    }
+    if (connections < 1 || durationSeconds < 1 || warmupSeconds < 0 || rate < 0) {
+      throw new IllegalArgumentException("--connections and --duration must be positive");
+    }
+    routes = parseMix(mixText);
+  }
+
+  /**
+   * "4:/,2:/json" -> "/" four times as often as "/json". Without a weight a target counts once.
+   */
+  List<Route> parseMix(String mix) {
+    List<Route> parsed = new ArrayList<>();
+    totalWeight = 0;
+    for (String entry : mix.split(",")) {
+      entry = entry.trim();
+      if (entry.isEmpty()) {
+        continue;
+      }
+      int colon = entry.indexOf(':');
+      int weight = 1;
+      String target = entry;
+      if (colon > 0 && entry.charAt(0) != '/') {
+        weight = Integer.parseInt(entry.substring(0, colon).trim());
+        target = entry.substring(colon + 1).trim();
+      }
+      if (!target.startsWith("/") || weight < 1) {
+        throw new IllegalArgumentException("Invalid route in --mix: " + entry);
+      }
+      parsed.add(new Route(target, weight, HttpConnection.request(host + ":" + port, target, keepAlive)));
+      totalWeight += weight;
+    }
+    if (parsed.isEmpty()) {
+      throw new IllegalArgumentException("--mix has no routes");
+    }
+    return parsed;
+  }
+
+  private int pickRoute() {
+    int ticket = ThreadLocalRandom.current().nextInt(totalWeight);
+    for (int i = 0; i < routes.size(); i++) {
+      ticket -= routes.get(i).weight;
+      if (ticket < 0) {
+        return i;
+      }
+    }
+    return routes.size() - 1;
+  }
+
+  /**
+   * Everything one connection measured, only its own thread writes to it
+   */
+  private final class Worker implements Runnable {
+    final HttpConnection connection;
+    final AtomicLong sequence;
+    final long start;
+    final long measureFrom;
+    final long end;
+
+    // open loop: from the planned send time, closed loop: same as service
+    final LatencyHistogram latency = new LatencyHistogram();
+    // from the moment the request was really sent
+    final LatencyHistogram service = new LatencyHistogram();
+    final LatencyHistogram[] byRoute = new LatencyHistogram[routes.size()];
+    final Map<Integer, Long> statusCounts = new HashMap<>();
+    long requests;
+    long errors;
+    long bodyBytes;
+    long maxSendDelayNanos;
+    String lastError;
+
+    Worker(InetSocketAddress address, AtomicLong sequence, long start, long measureFrom, long end) {
+      this.connection = new HttpConnection(address, timeoutMillis);
+      this.sequence = sequence;
+      this.start = start;
+      this.measureFrom = measureFrom;
+      this.end = end;
+      for (int i = 0; i < byRoute.length; i++) {
+        byRoute[i] = new LatencyHistogram();
+      }
+    }
+
+    @Override
+    public void run() {
+      waitUntil(start);
+      try {
+        if (rate > 0) {
+          openLoop();
+        } else {
+          closedLoop();
+        }
+      } finally {
+        connection.close();
+      }
+    }
+
+    private void closedLoop() {
+      while (System.nanoTime() < end) {
+        long sent = System.nanoTime();
+        if (!send(pickRoute(), sent, sent, sent >= measureFrom)) {
+          // do not spin when the server is down
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+      }
+    }
+
+    private void openLoop() {
+      double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+      while (true) {
+        // the connections share one schedule, whoever is free takes the next slot
+        long planned = start + Math.round(sequence.getAndIncrement() * intervalNanos);
+        if (planned >= end) {
+          return;
+        }
+        waitUntil(planned);
+        long sent = System.nanoTime();
+        if (planned >= measureFrom) {
+          maxSendDelayNanos = Math.max(maxSendDelayNanos, sent - planned);
+        }
+        send(pickRoute(), planned, sent, planned >= measureFrom);
+      }
+    }
+
+    /**
+     * @return false if the request failed
+     */
+    private boolean send(int route, long planned, long sent, boolean measured) {
+      try {
+        HttpConnection.Result result = connection.exchange(routes.get(route).request, keepAlive);
+        long done = System.nanoTime();
+        if (measured) {
+          long micros = (done - planned) / 1000;
+          latency.record(micros);
+          service.record((done - sent) / 1000);
+          byRoute[route].record(micros);
+          statusCounts.merge(result.status, 1L, Long::sum);
+          requests++;
+          bodyBytes += result.bodyBytes;
+        }
+        return true;
+      } catch (IOException | RuntimeException e) {
+        if (measured) {
+          errors++;
+          lastError = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+        return false;
+      }
+    }
+  }
+
+  private static void waitUntil(long nanoTime) {
+    long left;
+    while ((left = nanoTime - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(left);
+    }
+  }
+
+  void run() throws IOException {
+    InetAddress address = InetAddress.getByName(host);
+    if (!address.isLoopbackAddress()) {
+      throw new IOException(host + " is not this machine, the load generator only runs against localhost");
+    }
+    if (label == null) {
+      label = gitCommit();
+    }
+
+    System.out.println((rate > 0 ? "Open loop at " + rate + " requests/s" : "Closed loop") + " with "
+        + connections + " connections" + (keepAlive ? "" : " (no keep-alive)") + " against " + host + ":" + port
+        + ", " + warmupSeconds + " s warmup + " + durationSeconds + " s");
+
+    // give all threads a moment to start so they begin together
+    long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+    long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+    long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+    AtomicLong sequence = new AtomicLong();
+
+    List<Worker> workers = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      Worker worker = new Worker(new InetSocketAddress(address, port), sequence, start, measureFrom, end);
+      Thread thread = new Thread(worker, "load-" + i);
+      thread.setDaemon(true);
+      workers.add(worker);
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      try {
+        // a request that started just before the end may take up to the timeout
+        thread.join(TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()) + timeoutMillis + 1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    JSONObject result = report(workers);
+    Path file = Paths.get(out != null ? out
+        : "results/" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + "-"
+            + label.replaceAll("[^A-Za-z0-9._-]", "_") + ".json");
+    if (file.toAbsolutePath().getParent() != null) {
+      Files.createDirectories(file.toAbsolutePath().getParent());
+    }
+    Files.write(file, result.toString(2).getBytes(StandardCharsets.UTF_8));
+    System.out.println("Results written to " + file);
+
+    if (compare != null) {
+      compare(new JSONObject(new String(Files.readAllBytes(Paths.get(compare)), StandardCharsets.UTF_8)), result);
+    }
+  }
+
+  /**
+   * Adds up the workers, prints the summary and builds the JSON
+   */
+  JSONObject report(List<Worker> workers) {
+    LatencyHistogram latency = new LatencyHistogram();
+    LatencyHistogram service = new LatencyHistogram();
+    LatencyHistogram[] byRoute = new LatencyHistogram[routes.size()];
+    for (int i = 0; i < byRoute.length; i++) {
+      byRoute[i] = new LatencyHistogram();
+    }
+    Map<Integer, Long> statusCounts = new TreeMap<>();
+    long requests = 0;
+    long errors = 0;
+    long retries = 0;
+    long bodyBytes = 0;
+    long maxSendDelayNanos = 0;
+    String lastError = null;
+    for (Worker worker : workers) {
+      latency.add(worker.latency);
+      service.add(worker.service);
+      for (int i = 0; i < byRoute.length; i++) {
+        byRoute[i].add(worker.byRoute[i]);
+      }
+      worker.statusCounts.forEach((status, count) -> statusCounts.merge(status, count, Long::sum));
+      requests += worker.requests;
+      errors += worker.errors;
+      retries += worker.connection.retries();
+      bodyBytes += worker.bodyBytes;
+      maxSendDelayNanos = Math.max(maxSendDelayNanos, worker.maxSendDelayNanos);
+      if (worker.lastError != null) {
+        lastError = worker.lastError;
+      }
+    }
+
+    // open loop: measured from the planned send time, nothing to correct.
+    // closed loop: fill in the requests a stalled connection did not send, one
+    // connection normally sends a request every "median service time"
+    long expectedInterval = rate > 0 ? 0 : service.quantile(0.5);
+    LatencyHistogram corrected = rate > 0 ? latency : latency.corrected(expectedInterval);
+    double throughput = (double) requests / durationSeconds;
+
+    JSONObject json = new JSONObject();
+    json.put("label", label);
+    json.put("time", Instant.now().toString());
+    JSONObject config = new JSONObject();
+    config.put("host", host);
+    config.put("port", port);
+    config.put("mode", rate > 0 ? "open" : "closed");
+    config.put("rate", rate);
+    config.put("connections", connections);
+    config.put("keepAlive", keepAlive);
+    config.put("durationSeconds", durationSeconds);
+    config.put("warmupSeconds", warmupSeconds);
+    config.put("mix", mixText);
+    json.put("config", config);
+    json.put("requests", requests);
+    json.put("errors", errors);
+    json.put("retries", retries);
+    json.put("throughput", round(throughput));
+    json.put("bodyBytes", bodyBytes);
+    JSONObject statuses = new JSONObject();
+    statusCounts.forEach((status, count) -> statuses.put(String.valueOf(status), count));
+    json.put("status", statuses);
+    json.put("latencyMicros", percentiles(corrected));
+    json.put("serviceTimeMicros", percentiles(service));
+    json.put("correction", rate > 0 ? "measured from the planned send time"
+        : "coordinated omission backfill, expected interval " + expectedInterval + " us");
+    if (rate > 0) {
+      json.put("maxSendDelayMicros", maxSendDelayNanos / 1000);
+    }
+    JSONObject perRoute = new JSONObject();
+    for (int i = 0; i < byRoute.length; i++) {
+      JSONObject entry = percentiles(byRoute[i]);
+      entry.put("requests", byRoute[i].count());
+      perRoute.put(routes.get(i).target, entry);
+    }
+    json.put("routes", perRoute);
+
+    System.out.println();
+    System.out.printf("Requests:    %d in %d s, %.1f requests/s, %d errors, %d sent again on a new connection%n",
+        requests, durationSeconds, throughput, errors, retries);
+    System.out.println("Status:      " + statusCounts);
+    printPercentiles("Latency:     ", corrected);
+    printPercentiles("Service:     ", service);
+    System.out.println("             (" + json.getString("correction") + ")");
+    for (int i = 0; i < byRoute.length; i++) {
+      printPercentiles(String.format("%-12s ", routes.get(i).target), byRoute[i]);
+    }
+    if (lastError != null) {
+      System.out.println("Last error:  " + lastError);
+    }
+    if (rate > 0 && maxSendDelayNanos > TimeUnit.MILLISECONDS.toNanos(100)) {
+      System.out.println("Requests were sent up to " + maxSendDelayNanos / 1_000_000
+          + " ms late because all connections were busy, the latency includes that wait."
+          + " Use more --connections if the server should get the full rate.");
+    }
+    return json;
+  }
+
+  private static JSONObject percentiles(LatencyHistogram histogram) {
+    JSONObject json = new JSONObject();
+    for (double p : PERCENTILES) {
+      json.put(percentileName(p), histogram.quantile(p));
+    }
+    json.put("max", histogram.max());
+    json.put("mean", round(histogram.mean()));
+    return json;
+  }
+
+  private static void printPercentiles(String title, LatencyHistogram histogram) {
+    StringBuilder line = new StringBuilder(title);
+    for (double p : PERCENTILES) {
+      line.append(percentileName(p)).append('=').append(millis(histogram.quantile(p))).append("  ");
+    }
+    line.append("max=").append(millis(histogram.max()));
+    System.out.println(line);
+  }
+
+  /** 0.999 -> "p99.9" */
+  private static String percentileName(double p) {
+    String text = Double.toString(p * 100);
+    return "p" + (text.endsWith(".0") ? text.substring(0, text.length() - 2) : text);
+  }
+
+  private static String millis(long micros) {
+    return String.format("%.2fms", micros / 1000.0);
+  }
+
+  private static double round(double value) {
+    return Math.round(value * 10) / 10.0;
+  }
+
+  /**
+   * Prints how throughput and latency changed against an earlier run
+   */
+  static void compare(JSONObject before, JSONObject now) {
+    System.out.println();
+    System.out.println("Compared with " + before.optString("label") + " (" + before.optString("time") + "):");
+    System.out.println(change("throughput", before.getDouble("throughput"), now.getDouble("throughput"), true));
+    JSONObject oldLatency = before.getJSONObject("latencyMicros");
+    JSONObject newLatency = now.getJSONObject("latencyMicros");
+    for (double p : PERCENTILES) {
+      String name = percentileName(p);
+      System.out.println(change("latency " + name, oldLatency.getDouble(name), newLatency.getDouble(name), false));
+    }
+    if (!before.getJSONObject("config").similar(now.getJSONObject("config"))) {
+      System.out.println("Note: the runs used different settings");
+    }
+  }
+
+  private static String change(String name, double before, double now, boolean higherIsBetter) {
+    double percent = before == 0 ? 0 : (now - before) * 100 / before;
+    boolean better = higherIsBetter ? now >= before : now <= before;
+    return String.format("  %-14s %12.1f -> %12.1f  %+6.1f%%%s", name, before, now, percent,
+        Math.abs(percent) >= 5 && !better ? "  <- worse" : "");
+  }
+
+  /**
+   * Short hash of the checked out commit, so results can be matched to the code
+   */
+  private static String gitCommit() {
+    try {
+      Process git = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+      String commit = new String(git.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+      if (git.waitFor(5, TimeUnit.SECONDS) && git.exitValue() == 0 && !commit.isEmpty()) {
+        return commit;
+      }
+    } catch (IOException e) {
+      // no git here
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return "unknown";
+  }
+}
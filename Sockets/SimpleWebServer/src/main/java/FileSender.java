@@ -0,0 +1,319 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends a file to a client without copying it into a byte[] first.
+ *
+ * Big files are sent with FileChannel.transferTo, on Linux that is the
+ * sendfile system call: the kernel copies straight from the file cache to the
+ * socket and the data never passes through our heap. Memory use stays the same
+ * no matter how big the file is.
+ *
+ * Small files are memory-mapped once and the mapping is kept, so a popular
+ * small file is served from memory without reading it again. The mapping is
+ * dropped when the file's size or modification time changes.
+ *
+ * Clients can ask for parts of a file with a Range header ("bytes=0-499",
+ * "bytes=500-", "bytes=-500" or several of them separated by commas). They
+ * get "206 Partial Content" with just those bytes, several parts are sent as
+ * multipart/byteranges. That way an interrupted download can continue where
+ * it stopped and download managers can fetch pieces in parallel. If-Range
+ * makes sure the file did not change in between.
+ */
+class FileSender {
+
+    /** files up to this size are memory-mapped and cached */
+    static final long MAP_THRESHOLD = 64 * 1024;
+
+    /** at most this many small files are kept mapped */
+    static final int MAX_MAPPED_FILES = 256;
+
+    /** requests with more ranges than this get the whole file */
+    static final int MAX_RANGES = 16;
+
+    /** what send() wrote */
+    static final class Sent {
+        /** status code of the response, e.g. 206 */
+        final int status;
+        /** bytes of the body that were written, without the header */
+        final long bytes;
+
+        Sent(int status, long bytes) {
+            this.status = status;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class Mapped {
+        final long size;
+        final long lastModified;
+        final MappedByteBuffer buffer;
+
+        Mapped(long size, long lastModified, MappedByteBuffer buffer) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Map<Path, Mapped> mapped = new ConcurrentHashMap<>();
+
+    /**
+     * Writes a 200 response with Content-Type, Content-Length and the file
+     * @param file an existing file
+     * @param channel socket channel of the client, in blocking mode
+     * @return the status code and the body bytes that were sent
+     */
+    public Sent send(File file, SocketChannel channel) throws IOException {
+        return send(file, channel, null, null);
+    }
+
+    /**
+     * Writes the whole file (200), the requested ranges (206) or 416 if none of
+     * the ranges is inside the file
+     * @param file an existing file
+     * @param channel socket channel of the client, in blocking mode
+     * @param range value of the Range header or null
+     * @param ifRange value of the If-Range header or null
+     * @return the status code that was sent, e.g. 206, and the body bytes
+     */
+    public Sent send(File file, SocketChannel channel, String range, String ifRange) throws IOException {
+        // one channel for the whole response, the headers announce the size
+        // of what it reads even if the file changes in the meantime
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return send(file, in, channel, range, ifRange);
+        }
+    }
+
+    private Sent send(File file, FileChannel in, SocketChannel channel, String range, String ifRange)
+            throws IOException {
+        long size = in.size();
+        String etag = etag(file);
+        String lastModified = httpDate(file.lastModified());
+
+        // If-Range: only send parts if the client's copy is still the same file
+        List<long[]> ranges = null;
+        if (range != null && (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified))) {
+            ranges = parseRanges(range, size);
+        }
+
+        String validators = "Accept-Ranges: bytes\r\n"
+                + "ETag: " + etag + "\r\n"
+                + "Last-Modified: " + lastModified + "\r\n";
+
+        if (ranges == null) {
+            write(channel, head("200 OK", validators
+                    + "Content-Type: " + contentType(file) + "\r\n"
+                    + "Content-Length: " + size + "\r\n"));
+            writeRange(file, in, size, 0, size, channel);
+            return new Sent(200, size);
+        } else if (ranges.isEmpty()) {
+            write(channel, head("416 Range Not Satisfiable", validators
+                    + "Content-Range: bytes */" + size + "\r\n"
+                    + "Content-Length: 0\r\n"));
+            return new Sent(416, 0);
+        } else if (ranges.size() == 1) {
+            long start = ranges.get(0)[0];
+            long end = ranges.get(0)[1];
+            write(channel, head("206 Partial Content", validators
+                    + "Content-Type: " + contentType(file) + "\r\n"
+                    + "Content-Range: bytes " + start + "-" + end + "/" + size + "\r\n"
+                    + "Content-Length: " + (end - start + 1) + "\r\n"));
+            writeRange(file, in, size, start, end - start + 1, channel);
+            return new Sent(206, end - start + 1);
+        } else {
+            return new Sent(206, sendMultipart(file, in, size, channel, ranges, validators));
+        }
+    }
+
+    /**
+     * Several ranges: every part gets its own small header, separated by a boundary
+     * @return the Content-Length, the part headers and boundaries included
+     */
+    private long sendMultipart(File file, FileChannel in, long size, SocketChannel channel, List<long[]> ranges,
+            String validators) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        String type = contentType(file);
+
+        // the part headers are small, build them first so we know the Content-Length
+        List<byte[]> partHeaders = new ArrayList<>();
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] r = ranges.get(i);
+            byte[] partHeader = ((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                    + "Content-Type: " + type + "\r\n"
+                    + "Content-Range: bytes " + r[0] + "-" + r[1] + "/" + size + "\r\n"
+                    + "\r\n").getBytes();
+            partHeaders.add(partHeader);
+            length += partHeader.length + (r[1] - r[0] + 1);
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes();
+        length += end.length;
+
+        write(channel, head("206 Partial Content", validators
+                + "Content-Type: multipart/byteranges; boundary=" + boundary + "\r\n"
+                + "Content-Length: " + length + "\r\n"));
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] r = ranges.get(i);
+            write(channel, ByteBuffer.wrap(partHeaders.get(i)));
+            writeRange(file, in, size, r[0], r[1] - r[0] + 1, channel);
+        }
+        write(channel, ByteBuffer.wrap(end));
+        return length;
+    }
+
+    /**
+     * Sends length bytes of the file starting at start. Both ways read at a
+     * position, nothing before start is read.
+     * @param size size of the file when the headers were written
+     * @throws EOFException if the file got shorter since then
+     */
+    private void writeRange(File file, FileChannel in, long size, long start, long length, SocketChannel channel)
+            throws IOException {
+        if (size <= MAP_THRESHOLD) {
+            // duplicate so every request has its own position in the shared mapping
+            ByteBuffer body = map(file, in, size).duplicate();
+            body.position((int) start);
+            body.limit((int) (start + length));
+            write(channel, body);
+        } else {
+            long sent = 0;
+            while (sent < length) {
+                // the socket blocks, so 0 means there is nothing left to read
+                long n = in.transferTo(start + sent, length - sent, channel);
+                if (n == 0) {
+                    throw new EOFException(file + " ended after " + (start + sent) + " of " + size + " bytes");
+                }
+                sent += n;
+            }
+        }
+    }
+
+    /**
+     * Parses "bytes=0-499,500-,-200"
+     * @return the ranges as inclusive {start, end} pairs, an empty list if none
+     *     is inside the file, or null if the header is invalid and should be ignored
+     */
+    static List<long[]> parseRanges(String header, long size) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash == -1) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    // "-500" means the last 500 bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    // "9000-" on a smaller file is not invalid, just outside of it
+                    end = last.isEmpty() ? Math.max(start, size - 1) : Long.parseLong(last);
+                    if (end < start) {
+                        return null; // "500-100" is invalid
+                    }
+                    // an end past the file just means "until the end"
+                    end = Math.min(end, size - 1);
+                }
+                if (start < size && start <= end) {
+                    ranges.add(new long[] { start, end });
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Status line and headers, the connection is closed after every response
+     */
+    static ByteBuffer head(String status, String headers) {
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + headers
+                + "Connection: close\r\n"
+                + "\r\n";
+        return ByteBuffer.wrap(head.getBytes());
+    }
+
+    /**
+     * Guesses the type from the file name, unknown files are sent as raw bytes
+     */
+    static String contentType(File file) {
+        String type = URLConnection.guessContentTypeFromName(file.getName());
+        return type == null ? "application/octet-stream" : type;
+    }
+
+    /**
+     * Changes when the file's size or modification time changes
+     */
+    static String etag(File file) {
+        return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+    }
+
+    static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Returns the cached mapping of a small file, maps it again if it changed
+     */
+    private MappedByteBuffer map(File file, FileChannel in, long size) throws IOException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        long lastModified = file.lastModified();
+
+        Mapped current = mapped.get(path);
+        if (current != null && current.size == size && current.lastModified == lastModified) {
+            return current.buffer;
+        }
+
+        // the mapping stays valid after the channel is closed
+        MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (mapped.size() >= MAX_MAPPED_FILES) {
+            mapped.clear();
+        }
+        mapped.put(path, new Mapped(size, lastModified, buffer));
+        return buffer;
+    }
+}
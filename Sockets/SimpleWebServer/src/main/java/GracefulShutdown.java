@@ -0,0 +1,181 @@
+/*
+Graceful shutdown and hand-off for the SimpleWebServer (same idea as
+funHttpServer.GracefulShutdown).
+
+Without this, stopping the server (kill, Ctrl-C, a deploy) ends the JVM in the
+middle of requests: the clients get a reset connection or half a file. Now
+SIGTERM and SIGINT run a shutdown hook that
+1. stops accepting: the accept loop takes the connections that are already
+   waiting in the listen queue and then closes the listener
+2. lets the running requests finish (every connection has one request)
+3. gives up after the grace period (-Dshutdown.grace=10 seconds), the JVM
+   exit closes what is still open
+Only then the JVM exits. kill -9 still stops it at once.
+
+Hand-off (-Dhandoff=true) is for restarts without downtime. The listener is
+bound with SO_REUSEPORT, so a new process started with the same flag can bind
+the same port while the old one still runs, the kernel spreads new
+connections over both. As soon as the new process listens it sends SIGTERM to
+the old one, whose pid it finds in logs/server-<port>.pid (or -Dpid.file),
+and the old one drains as above.
+*/
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class GracefulShutdown {
+
+    // how long running requests may take to finish, -Dshutdown.grace in seconds
+    static final long GRACE_MS = Long.getLong("shutdown.grace", 10) * 1000;
+
+    // bind with SO_REUSEPORT and take over from the old process, -Dhandoff=true
+    static final boolean HANDOFF = Boolean.getBoolean("handoff");
+
+    // accept() gives up after this long to check if we are draining. While
+    // draining the listener is closed once nothing arrived for this long.
+    static final int ACCEPT_TIMEOUT_MS = 100;
+
+    // while draining, accept for at most this long, a busy port is never quiet
+    static final int LAST_ACCEPTS_MS = 1000;
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final CountDownLatch listenerClosed = new CountDownLatch(1);
+    private volatile boolean draining;
+    private volatile long drainStart;
+    private Path pidFile;
+
+    /**
+     * Opens the listener through a channel (so the accepted sockets have a
+     * SocketChannel for FileSender), with SO_REUSEPORT in hand-off mode
+     */
+    static ServerSocket listen(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        if (HANDOFF) {
+            if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } else {
+                System.out.println("SO_REUSEPORT is not supported here, hand-off needs the port to be free");
+            }
+        }
+        ServerSocket server = channel.socket();
+        server.bind(new InetSocketAddress(port));
+        server.setSoTimeout(ACCEPT_TIMEOUT_MS);
+        return server;
+    }
+
+    /**
+     * Installs the shutdown hook. Call it once the listener is open: in hand-off
+     * mode this also stops the process that served the port before us.
+     * @param stopped runs after the last request, e.g. closes the access log
+     */
+    void install(int port, Runnable stopped) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            drain();
+            stopped.run();
+        }, "graceful-shutdown"));
+        if (HANDOFF) {
+            takeOver(port);
+        }
+    }
+
+    /**
+     * Stops the old process: its pid is in the pid file, ours goes in now
+     */
+    private void takeOver(int port) {
+        pidFile = Path.of(System.getProperty("pid.file", "logs/server-" + port + ".pid"));
+        long self = ProcessHandle.current().pid();
+        try {
+            Optional<ProcessHandle> old = Optional.empty();
+            if (Files.exists(pidFile)) {
+                long pid = Long.parseLong(Files.readString(pidFile, StandardCharsets.US_ASCII).trim());
+                // the pid of a dead server may be used by some other program by now
+                old = ProcessHandle.of(pid).filter(p -> p.pid() != self && p.isAlive()
+                        && p.info().command().map(command -> command.contains("java")).orElse(false));
+            }
+            Files.createDirectories(pidFile.toAbsolutePath().getParent());
+            Files.writeString(pidFile, self + "\n", StandardCharsets.US_ASCII);
+            if (old.isPresent()) {
+                // SIGTERM, its shutdown hook drains
+                old.get().destroy();
+                System.out.println("Took over port " + port + " from process " + old.get().pid());
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Hand-off: cannot use " + pidFile + ": " + e.getMessage());
+        }
+    }
+
+    /** true once the shutdown started */
+    boolean draining() {
+        return draining;
+    }
+
+    /**
+     * @return false when the accept loop has to stop: LAST_ACCEPTS_MS after the
+     *     shutdown started
+     */
+    boolean accepting() {
+        return !draining || System.currentTimeMillis() - drainStart < LAST_ACCEPTS_MS;
+    }
+
+    /** the accept loop closed the listener */
+    void listenerClosed() {
+        listenerClosed.countDown();
+    }
+
+    void connectionOpened() {
+        open.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        open.decrementAndGet();
+    }
+
+    /**
+     * Runs in the shutdown hook: stops accepting and waits for the open
+     * connections until the grace period is over
+     */
+    private void drain() {
+        long deadline = System.currentTimeMillis() + GRACE_MS;
+        drainStart = System.currentTimeMillis();
+        draining = true;
+        System.out.println("Shutting down, " + open.get() + " connections open");
+        try {
+            listenerClosed.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            while (open.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (open.get() > 0) {
+            System.out.println("Grace period over, closing " + open.get() + " connections");
+        }
+        releasePidFile();
+        System.out.println("Stopped");
+    }
+
+    /** removes the pid file, unless a new process wrote its own pid into it */
+    private void releasePidFile() {
+        if (pidFile == null) {
+            return;
+        }
+        try {
+            String pid = Files.readString(pidFile, StandardCharsets.US_ASCII).trim();
+            if (pid.equals(String.valueOf(ProcessHandle.current().pid()))) {
+                Files.delete(pidFile);
+            }
+        } catch (IOException e) {
+            // gone already
+        }
+    }
+}
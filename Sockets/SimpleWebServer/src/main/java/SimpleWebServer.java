@@ -1,5 +1,9 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 public class SimpleWebServer {
@@ -7,11 +11,15 @@ public class SimpleWebServer {
     // 
     public static void main(String args[]) {
         int port = 9099; // default port
-        if (args.length != 1) {
+        String workers = "pool"; // default execution mode
+        if (args.length < 1 || args.length > 2) {
 
-            System.out.println("Expected arguments: <port(int)>");
+            System.out.println("Expected arguments: <port(int)> [workers(inline|pool|virtual)]");
             System.exit(1);
         }
+        if (args.length == 2) {
+            workers = args[1];
+        }
         System.out.println("running");
 try {
             port = Integer.parseInt(args[0]);
@@ -20,11 +28,30 @@ try {
             System.exit(2);
         }
 
-        SimpleWebServer server = new SimpleWebServer(port);
+        // who runs the client handlers, see WorkerPool
+        WorkerPool pool = WorkerPool.fromName(workers, WORKER_THREADS, WORKER_QUEUE);
+        if (pool == null) {
+            System.out.println("[workers] must be inline, pool or virtual");
+            System.exit(2);
+        }
+
+        SimpleWebServer server = new SimpleWebServer(port, pool);
 
     }
 
-    public SimpleWebServer(int port) {
+    // platform threads of the worker pool
+    static final int WORKER_THREADS = 64;
+    // clients that may wait for a worker before we answer with 503
+    static final int WORKER_QUEUE = 1000;
+
+    private final WorkerPool workers;
+
+    // stops the server without cutting off running requests, see GracefulShutdown
+    static final GracefulShutdown shutdown = new GracefulShutdown();
+
+    public SimpleWebServer(int port, WorkerPool workers) {
+
+        this.workers = workers;
 
         ServerSocket server = null;
         Socket sock = null;
@@ -33,37 +60,68 @@ try {
 
             //*** Open the server socket on the specified port
             //*** Loop forever accepting socket requests
-            //***   Get the response bytes from createResponse
-            //***   Write the bytes to the socket's output stream
+            //***   Hand the socket to a ClientHandler, which writes the
+            //***   response to the socket's output stream
             //***   close streams and socket appropriately
 
-            server = new ServerSocket(port);
+            // opened through a channel so the accepted sockets have a
+            // SocketChannel, which FileChannel.transferTo can write to.
+            // accept() times out now and then so the loop notices a shutdown
+            server = GracefulShutdown.listen(port);
 
         } catch (IOException ex) {
             ex.printStackTrace();
+            System.exit(1);
         }
 
-        while (server.isBound() && !server.isClosed()) {
-            System.out.println("Ready...");
+        // requests are not printed, they go to logs/access.log (see AccessLog)
+        System.out.println("Ready...");
+        ClientHandler.accessLog.closeManually();
+        shutdown.install(port, ClientHandler.accessLog::close);
+        while (shutdown.accepting()) {
             try {
                 sock = server.accept();
                 createClientThread(sock);
+            } catch (SocketTimeoutException ex) {
+                if (shutdown.draining()) {
+                    break; // nothing is waiting anymore
+                }
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
         }
+        try {
+            server.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        shutdown.listenerClosed();
+        workers.shutdown();
     }
 
     /**
-     * Take the newly accepted socket and make it a thread by passing it to
-     * inner class ClientHandler which implements Runnable; subsequently start
-     * the thread up so it can be processed.
+     * Take the newly accepted socket and pass it to inner class ClientHandler
+     * which implements Runnable; subsequently hand it to the worker pool so it
+     * can be processed. Instead of one new thread per socket the pool limits
+     * how many clients are served at once, if it is full the client gets a 503.
      *
      * @param sock
      */
     private void createClientThread(Socket sock) {
-        Thread thread = new Thread(new ClientHandler(sock));
-        thread.start();
+        shutdown.connectionOpened();
+        if (!workers.submit(new ClientHandler(sock))) {
+            shutdown.connectionClosed();
+            try {
+                byte[] busy = ("HTTP/1.1 503 Service Unavailable\r\n"
+                        + "Retry-After: 1\r\n"
+                        + "Connection: close\r\n\r\n").getBytes();
+                sock.getOutputStream().write(busy);
+                ClientHandler.accessLog.log(sock.getInetAddress().getHostAddress(), null, 503, 0, 0);
+                sock.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
     }
 }
 
@@ -76,7 +134,16 @@ try {
  */
 class ClientHandler implements Runnable {
 
+    // sends files with sendfile/memory mapping, shared by all clients so
+    // mapped small files are reused
+    static final FileSender files = new FileSender();
+
+    // one line per request in logs/access.log (or -Daccess.log), written by a
+    // background thread so the handlers never wait for the console or the disk
+    static final AccessLog accessLog = AccessLog.open();
+
     //establish a new socket to read client input from (via BufferedReader)
+    Socket sock = null;
     InputStream in = null;
     OutputStream out = null;
 
@@ -90,6 +157,7 @@ class ClientHandler implements Runnable {
     public ClientHandler(Socket clientSocket) {
         try {
             //Set local socket to clientSocket received via constructor
+            sock = clientSocket;
             in = clientSocket.getInputStream();
             out = clientSocket.getOutputStream();
 
@@ -98,80 +166,80 @@ class ClientHandler implements Runnable {
         }
     }//end constructor
 
-    public byte[] createResponse(InputStream inStream) {
+    /**
+     * Reads the request line and the headers and returns the requested file
+     *
+     * @param headers filled with the request headers, names in lower case
+     * @return the file name from the GET line or null if there is none
+     */
+    public static String readRequest(InputStream inStream, Map<String, String> headers) throws IOException {
 
-        byte[] response = null;
-        BufferedReader in = null;
+        // Read from socket's input stream.  Must use an
+        // InputStreamReader to bridge from streams to a reader
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(inStream, "UTF-8"));
 
-        try {
+        // Get header and save the filename from the GET line:
+        //    example GET format: GET /index.html HTTP/1.1
 
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                    new InputStreamReader(inStream, "UTF-8"));
-
-            // Get header and save the filename from the GET line:
-            //    example GET format: GET /index.html HTTP/1.1
-
-            String filename = null;
-            String line = in.readLine();
-            System.out.println("Received: " + line);
-            if (line != null && !line.trim().equals("")) {
-                StringTokenizer st = new StringTokenizer(line);
-                if (st.nextToken().equals("GET") && st.hasMoreTokens()) {
-                    filename = st.nextToken();
-                    if (filename.startsWith("/")) {
-                        filename = filename.substring(1);
-                    }
+        String filename = null;
+        String line = in.readLine();
+        if (line != null && !line.trim().equals("")) {
+            StringTokenizer st = new StringTokenizer(line);
+            if (st.nextToken().equals("GET") && st.hasMoreTokens()) {
+                filename = st.nextToken();
+                if (filename.startsWith("/")) {
+                    filename = filename.substring(1);
                 }
             }
-            System.out.println("FINISHED REQUEST, STARTING RESPONSE\n");
-
-            // Generate an appropriate response to the user
-            if (filename == null) {
-                response =
-                        "<html>Illegal request: no GET</html>".getBytes();
-            } else {
-                File file = new File(filename);
-                if (!file.exists()) {
-                    response = ("<html>File not found: "
-                            + filename + "</html>").getBytes();
-                } else {
-                    response = readFileInBytes(file);
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            response = ("<html>ERROR: "
-                    + e.getMessage() + "</html").getBytes();
         }
-        System.out.println("RESPONSE GENERATED!");
-        return response;
-    }
 
-    /**
-     * Read bytes from a file and return them in the byte array. We read in
-     * blocks of 512 bytes for efficiency.
-     */
-    public static byte[] readFileInBytes(File f)
-            throws IOException {
-
-        byte[] result = new byte[(int) f.length()];
-
-        try {
-            new FileInputStream(f).read(result);
-        } catch (Exception ex) {
-            ex.printStackTrace();
+        // the rest of the header, e.g. "Range: bytes=0-499", until the empty line
+        while (line != null && !line.isEmpty()) {
+            line = in.readLine();
+            int colon = line == null ? -1 : line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
         }
-
-        return result;
+        return filename;
     }
 
     @Override
     public void run() {
-        System.out.println("Starting thread");
+        long start = System.nanoTime();
+        String filename = null;
+        int status = 0;
+        long bytes = -1;
         try {
-            out.write(createResponse(in));
+            Map<String, String> headers = new HashMap<>();
+            filename = readRequest(in, headers);
+            File file = filename == null ? null : new File(filename);
+            if (file != null && file.isFile()) {
+                // straight from disk to the socket, no byte[] copy of the file,
+                // Range / If-Range let a client fetch parts or resume a download
+                FileSender.Sent sent = files.send(file, sock.getChannel(), headers.get("range"),
+                        headers.get("if-range"));
+                status = sent.status;
+                bytes = sent.bytes;
+            } else {
+                // Content-Length counts bytes, a filename with non-ASCII
+                // characters has more bytes than chars
+                byte[] body = (filename == null ? "<html>Illegal request: no GET</html>"
+                        : "<html>File not found: " + filename + "</html>").getBytes(StandardCharsets.UTF_8);
+                status = filename == null ? 400 : 404;
+                byte[] head = ("HTTP/1.1 "
+                        + (filename == null ? "400 Bad Request" : "404 Not Found") + "\r\n"
+                        + "Content-Type: text/html\r\n"
+                        + "Content-Length: " + body.length + "\r\n"
+                        + "Connection: close\r\n\r\n").getBytes();
+                ByteBuffer response = ByteBuffer.allocate(head.length + body.length).put(head).put(body).flip();
+                bytes = body.length;
+                while (response.hasRemaining()) {
+                    sock.getChannel().write(response);
+                }
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
         } finally {
@@ -183,6 +251,7 @@ class ClientHandler implements Runnable {
             }
         }
 
-        System.out.println("Ending thread");
+        accessLog.log(sock.getInetAddress().getHostAddress(), filename, status, bytes, System.nanoTime() - start);
+        SimpleWebServer.shutdown.connectionClosed();
     }
 }
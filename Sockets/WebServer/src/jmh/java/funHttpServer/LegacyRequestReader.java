@@ -0,0 +1,128 @@
+package funHttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The way WebServer read requests before RequestParser, only kept as the
+ * baseline of RequestParserBenchmark: the header is read byte by byte into a
+ * byte[], then a BufferedReader makes a String of every line and prints it.
+ */
+final class LegacyRequestReader {
+
+  private LegacyRequestReader() {
+  }
+
+  /**
+   * Reads exactly one request header from a stream, byte by byte, so nothing
+   * of a following (pipelined) request is consumed
+   * @param in buffered stream of the connection
+   * @return the header bytes including the blank line or null if the client closed the connection
+   * @throws IOException on socket errors, timeouts or a header bigger than MAX_HEADER_SIZE
+   */
+  static byte[] readHeader(InputStream in) throws IOException {
+    ByteArrayOutputStream head = new ByteArrayOutputStream(512);
+    int newlines = 0; // newlines seen without other characters in between
+    int b;
+    while ((b = in.read()) != -1) {
+      head.write(b);
+      if (b == '\n') {
+        newlines++;
+        if (newlines == 2) {
+          return head.toByteArray();
+        }
+      } else if (b != '\r') {
+        newlines = 0;
+      }
+      if (head.size() > HttpFraming.MAX_HEADER_SIZE) {
+        throw new IOException("Request header too large");
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Looks up a header value in a raw request header
+   * @param head raw request header
+   * @param name header name, case does not matter
+   * @return the trimmed value or null
+   */
+  static String header(byte[] head, String name) {
+    String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r?\n");
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase(name)) {
+        return lines[i].substring(colon + 1).trim();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Decides if the client wants to keep the connection open. HTTP/1.1 keeps it
+   * open unless "Connection: close" is sent, HTTP/1.0 only with "Connection: keep-alive".
+   * @param head raw request header
+   * @return true if the connection can be reused
+   */
+  static boolean wantsKeepAlive(byte[] head) {
+    int lineEnd = 0;
+    while (lineEnd < head.length && head[lineEnd] != '\r' && head[lineEnd] != '\n') {
+      lineEnd++;
+    }
+    String requestLine = new String(head, 0, lineEnd, StandardCharsets.ISO_8859_1);
+    String connection = header(head, "Connection");
+    if (requestLine.endsWith("HTTP/1.1")) {
+      return connection == null || !connection.equalsIgnoreCase("close");
+    }
+    return connection != null && connection.equalsIgnoreCase("keep-alive");
+  }
+
+  /**
+   * Reads the header line by line, what createResponse(InputStream) did
+   * @param inStream the bytes of one request header
+   * @return the request, null if there is no GET line
+   */
+  static Request readRequest(InputStream inStream) throws IOException {
+    // Read from socket's input stream. Must use an
+    // InputStreamReader to bridge from streams to a reader
+    BufferedReader in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
+
+    // Get header and save the request from the GET line:
+    // example GET format: GET /index.html HTTP/1.1
+    String request = null;
+    Map<String, String> headers = new HashMap<>();
+
+    boolean done = false;
+    while (!done) {
+      String line = in.readLine();
+
+      System.out.println("Received: " + line);
+
+      // find end of header("\n\n")
+      if (line == null || line.equals(""))
+        done = true;
+      // parse GET format ("GET <path> HTTP/1.1")
+      else if (line.startsWith("GET")) {
+        int firstSpace = line.indexOf(" ");
+        int secondSpace = line.indexOf(" ", firstSpace + 1);
+
+        // extract the request, basically everything after the GET up to HTTP/1.1
+        request = line.substring(firstSpace + 2, secondSpace);
+      }
+      // remember the other headers ("Name: value"), some routes look at them
+      else if (line.indexOf(":") > 0) {
+        int colon = line.indexOf(":");
+        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+      }
+    }
+    System.out.println("FINISHED PARSING HEADER\n");
+
+    return request == null ? null : new Request(request, headers);
+  }
+}
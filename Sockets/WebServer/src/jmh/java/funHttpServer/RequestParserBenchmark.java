@@ -0,0 +1,116 @@
+package funHttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the old way of reading a request (LegacyRequestReader, splitQuery)
+ * with RequestParser + Request.param.
+ *
+ * gradle jmh
+ *
+ * The gc profiler is switched on in build.gradle, look at gc.alloc.rate.norm
+ * (bytes allocated per request) next to the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParserBenchmark {
+
+  // what a browser sends, most of the headers are not used by any route
+  private static final byte[] REQUEST = ("GET /multiply?num1=3&num2=4 HTTP/1.1\r\n"
+      + "Host: localhost:9000\r\n"
+      + "Connection: keep-alive\r\n"
+      + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+      + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+      + "Accept-Encoding: gzip, deflate, br\r\n"
+      + "Accept-Language: en-US,en;q=0.9\r\n"
+      + "Cache-Control: max-age=0\r\n"
+      + "Sec-Fetch-Dest: document\r\n"
+      + "Sec-Fetch-Mode: navigate\r\n"
+      + "Upgrade-Insecure-Requests: 1\r\n"
+      + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+  private WebServer server;
+  private ByteBuffer buffer;
+  private RequestParser parser;
+
+  @Setup
+  public void setup() {
+    // LegacyRequestReader prints every header line, the console would
+    // be all we measure
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    server = new WebServer();
+    buffer = ByteBuffer.allocate(HttpFraming.MAX_HEADER_SIZE);
+    parser = new RequestParser(HttpFraming.MAX_HEADER_SIZE);
+  }
+
+  /**
+   * Parsing only, the way serveConnection did it before RequestParser
+   */
+  @Benchmark
+  public Map<String, String> parseStream() throws IOException {
+    byte[] head = LegacyRequestReader.readHeader(new ByteArrayInputStream(REQUEST));
+    boolean keepAlive = LegacyRequestReader.wantsKeepAlive(head);
+    String line = new String(head, 0, head.length, StandardCharsets.UTF_8).split("\r\n")[0];
+    String target = line.substring(5, line.lastIndexOf(' '));
+    Map<String, String> query = WebServer.splitQuery(target.substring(target.indexOf('?') + 1));
+    query.put("keepAlive", String.valueOf(keepAlive));
+    return query;
+  }
+
+  /**
+   * Parsing only with the reusable buffer and RequestParser
+   */
+  @Benchmark
+  public String parseBuffer() {
+    buffer.clear();
+    buffer.put(REQUEST);
+    parser.reset();
+    parser.parse(buffer);
+    Request request = parser.toRequest();
+    return request.param("num1") + request.param("num2") + parser.keepAlive();
+  }
+
+  /**
+   * Request to response, the old serveConnection path
+   */
+  @Benchmark
+  public byte[] respondStream() throws IOException {
+    byte[] head = LegacyRequestReader.readHeader(new ByteArrayInputStream(REQUEST));
+    Request request = LegacyRequestReader.readRequest(new ByteArrayInputStream(head));
+    return request == null ? WebServer.illegalRequest() : server.createResponse(request);
+  }
+
+  /**
+   * Request to response, the serveConnection / NioEngine path now
+   */
+  @Benchmark
+  public byte[] respondBuffer() throws IOException {
+    buffer.clear();
+    buffer.put(REQUEST);
+    parser.reset();
+    parser.parse(buffer);
+    return server.createResponse(parser);
+  }
+}
@@ -0,0 +1,298 @@
+/*
+Access log for the web server.
+
+Printing every request with System.out.println is slow under load: all threads
+wait for the same console lock and the terminal. Here a request thread only
+copies a few numbers and the target into a free slot of a ring buffer, which
+needs no lock (the slot is claimed with one compareAndSet). One background
+thread takes the records out in batches, formats them and writes them to a
+log file. When the file gets too big it is renamed to access.log.1 (the older
+ones move up to .2, .3, ...) and a new one is started.
+
+If the writer cannot keep up and the ring is full, the record is dropped and
+counted instead of making the request wait.
+
+One line per request (key=value, easy to grep and to parse):
+time=2026-10-18T12:00:00.123Z client=127.0.0.1 target="/multiply?num1=3&num2=4" status=200 bytes=152 micros=87
+*/
+
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+final class AccessLog {
+
+  /** records that fit into the ring, a power of two */
+  static final int DEFAULT_CAPACITY = 8192;
+
+  /** the file is rotated when it gets bigger than this */
+  static final long DEFAULT_MAX_FILE_BYTES = 10 * 1024 * 1024;
+
+  /** how many rotated files are kept */
+  static final int DEFAULT_KEEP_FILES = 5;
+
+  /** longer targets are cut off */
+  static final int MAX_TARGET = 256;
+
+  /** longest client address (IPv6) */
+  static final int MAX_CLIENT = 46;
+
+  /**
+   * One record, allocated once and reused every time the ring wraps around
+   */
+  private static final class Slot {
+    // the sequence number of the record in this slot, set last so the writer
+    // only reads a slot that is completely filled
+    volatile long published = -1;
+    long time;
+    long micros;
+    long bytes;
+    int status;
+    final byte[] client = new byte[MAX_CLIENT];
+    int clientLength;
+    final byte[] target = new byte[MAX_TARGET];
+    int targetLength;
+  }
+
+  private final Slot[] ring;
+  private final int mask;
+  // next sequence number a producer may claim
+  private final AtomicLong claimed = new AtomicLong();
+  // everything below this was written by the writer thread
+  private final AtomicLong consumed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+
+  private final Path file;
+  private final long maxFileBytes;
+  private final int keepFiles;
+  private final Thread writer;
+  private volatile boolean running = true;
+  private final Thread closer = new Thread(this::close, "access-log-close");
+
+  /**
+   * Opens the log with the default sizes, the file can be set with -Daccess.log=path
+   */
+  static AccessLog open() {
+    return new AccessLog(Path.of(System.getProperty("access.log", "logs/access.log")), DEFAULT_CAPACITY,
+        DEFAULT_MAX_FILE_BYTES, DEFAULT_KEEP_FILES);
+  }
+
+  /**
+   * Starts the writer thread
+   * @param file the log file, its folder is created if needed
+   * @param capacity records that fit into the ring, rounded up to a power of two
+   * @param maxFileBytes size at which the file is rotated
+   * @param keepFiles how many rotated files are kept
+   */
+  AccessLog(Path file, int capacity, long maxFileBytes, int keepFiles) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.ring = new Slot[size];
+    for (int i = 0; i < size; i++) {
+      ring[i] = new Slot();
+    }
+    this.mask = size - 1;
+    this.file = file;
+    this.maxFileBytes = maxFileBytes;
+    this.keepFiles = keepFiles;
+
+    writer = new Thread(this::writeLoop, "access-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+    // write what is still in the ring when the server is stopped
+    Runtime.getRuntime().addShutdownHook(closer);
+  }
+
+  /**
+   * The caller closes the log itself, e.g. after the last request of a
+   * graceful shutdown. Shutdown hooks all run at the same time, the one of
+   * the log could close it before the last requests are logged.
+   */
+  void closeManually() {
+    Runtime.getRuntime().removeShutdownHook(closer);
+  }
+
+  /**
+   * Adds a record, never blocks
+   * @param client address of the client, e.g. "127.0.0.1"
+   * @param target what was requested, e.g. "multiply?num1=3", null if unknown
+   * @param status status code of the response, 0 if unknown
+   * @param bytes size of the response, -1 if unknown
+   * @param nanos how long the request took
+   * @return false if the ring was full and the record was dropped
+   */
+  boolean log(String client, String target, int status, long bytes, long nanos) {
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - consumed.get() >= ring.length) {
+        dropped.incrementAndGet();
+        return false;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+    Slot slot = ring[(int) (sequence & mask)];
+    slot.time = System.currentTimeMillis();
+    slot.micros = nanos / 1000;
+    slot.bytes = bytes;
+    slot.status = status;
+    slot.clientLength = copy(client, slot.client);
+    slot.targetLength = copy(target, slot.target);
+    slot.published = sequence;
+    return true;
+  }
+
+  /**
+   * Copies the characters as single bytes, no String.getBytes copy
+   */
+  private static int copy(String text, byte[] into) {
+    if (text == null) {
+      return 0;
+    }
+    int length = Math.min(text.length(), into.length);
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      into[i] = c < 0x20 || c > 0x7e || c == '"' ? (byte) '?' : (byte) c;
+    }
+    return length;
+  }
+
+  /** records that were dropped because the ring was full */
+  long dropped() {
+    return dropped.get();
+  }
+
+  /** records that were written to the file */
+  long written() {
+    return written.get();
+  }
+
+  /**
+   * Stops the writer after it wrote what is in the ring
+   */
+  void close() {
+    running = false;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(2));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeLoop() {
+    StringBuilder line = new StringBuilder(512);
+    OutputStream out = null;
+    long fileSize = 0;
+    long next = consumed.get();
+    while (true) {
+      try {
+        if (out == null) {
+          Files.createDirectories(file.toAbsolutePath().getParent());
+          out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+          fileSize = Files.size(file);
+        }
+
+        // everything that is published goes out in one batch
+        line.setLength(0);
+        int records = 0;
+        Slot slot = ring[(int) (next & mask)];
+        while (slot.published == next && line.length() < 64 * 1024) {
+          format(slot, line);
+          records++;
+          next++;
+          // the slot may be reused by a producer now
+          consumed.lazySet(next);
+          slot = ring[(int) (next & mask)];
+        }
+
+        if (line.length() > 0) {
+          byte[] batch = line.toString().getBytes(StandardCharsets.US_ASCII);
+          out.write(batch);
+          out.flush();
+          fileSize += batch.length;
+          written.addAndGet(records);
+          if (fileSize > maxFileBytes) {
+            out.close();
+            out = null;
+            rotate();
+          }
+        } else if (!running) {
+          break;
+        } else {
+          // nothing to do, look again in a moment
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+      } catch (IOException e) {
+        System.out.println("Access log: " + e.getMessage());
+        out = null;
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+      }
+    }
+    try {
+      if (out != null) {
+        out.close();
+      }
+    } catch (IOException e) {
+      // nothing left to do
+    }
+  }
+
+  private static void format(Slot slot, StringBuilder line) {
+    line.append("time=").append(Instant.ofEpochMilli(slot.time));
+    line.append(" client=");
+    appendBytes(slot.client, slot.clientLength, line);
+    line.append(" target=");
+    if (slot.targetLength == 0) {
+      line.append('-');
+    } else {
+      line.append("\"/");
+      appendBytes(slot.target, slot.targetLength, line);
+      line.append('"');
+    }
+    line.append(" status=").append(slot.status);
+    line.append(" bytes=");
+    if (slot.bytes < 0) {
+      line.append('-');
+    } else {
+      line.append(slot.bytes);
+    }
+    line.append(" micros=").append(slot.micros).append('\n');
+  }
+
+  private static void appendBytes(byte[] bytes, int length, StringBuilder line) {
+    if (length == 0) {
+      line.append('-');
+    }
+    for (int i = 0; i < length; i++) {
+      line.append((char) bytes[i]);
+    }
+  }
+
+  /**
+   * access.log becomes access.log.1, access.log.1 becomes access.log.2 and so on
+   */
+  private void rotate() throws IOException {
+    Files.deleteIfExists(rotated(keepFiles));
+    for (int i = keepFiles - 1; i >= 1; i--) {
+      if (Files.exists(rotated(i))) {
+        Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private Path rotated(int number) {
+    return file.resolveSibling(file.getFileName() + "." + number);
+  }
+}
@@ -0,0 +1,206 @@
+/*
+Admission control: decides if a request may run before any work is done for it.
+
+1) Rate limit per client address (token bucket)
+   Every client gets a bucket with BURST tokens that refills with RATE tokens per
+   second. Every request takes one token, a client with an empty bucket gets
+   "429 Too Many Requests" and a Retry-After header saying when the next token
+   is there. So one client hammering /github cannot use up our GitHub rate limit
+   or the workers, and everybody else is not slowed down.
+
+   Refilling happens lazily: nothing runs in the background, a bucket is only
+   looked at when its client sends a request. The bucket is a single number,
+   the time at which it would be full again ("theoretical arrival time", this
+   form of the token bucket is known as GCRA). Taking a token moves that time
+   forward by 1/RATE seconds, if it would move more than BURST/RATE seconds into
+   the future the bucket is empty. One compareAndSet, no lock.
+
+   Buckets of clients that were quiet for a while are full again and look like
+   a new bucket, so they are removed now and then. If there are more than
+   MAX_CLIENTS addresses anyway (e.g. someone with a whole IPv6 network) the
+   new ones share one bucket, so the map cannot grow without bounds.
+
+2) Global concurrency limit
+   At most MAX_CONCURRENT requests are handled (queued for a worker or running)
+   at the same time. Everything above that gets "503 Service Unavailable" right
+   away instead of waiting in a queue: under a long overload the requests that
+   are let in still finish quickly, instead of every request waiting longer and
+   longer.
+
+Settings (0 switches a limit off):
+java -Drate.limit=20 -Drate.burst=40 -Dmax.concurrent=256 ...
+*/
+
+package funHttpServer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+final class AdmissionControl {
+
+  /** requests per second a client may send in the long run */
+  static final int DEFAULT_RATE = 20;
+
+  /** requests a client may send at once after being quiet */
+  static final int DEFAULT_BURST = 40;
+
+  /** requests that are handled at the same time at most */
+  static final int DEFAULT_MAX_CONCURRENT = 256;
+
+  /** addresses that get their own bucket, the others share one */
+  static final int MAX_CLIENTS = 100_000;
+
+  /** how often idle buckets are removed */
+  static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  /** bucket for the clients that come when MAX_CLIENTS is reached */
+  static final String OVERFLOW = "*";
+
+  private final long intervalNanos; // time to refill one token
+  private final long burstNanos; // time to refill the whole bucket
+  private final int maxConcurrent;
+
+  // client address -> time at which its bucket is full again (System.nanoTime)
+  private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+  private final AtomicLong nextSweep;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder limited = new LongAdder();
+  private final LongAdder shed = new LongAdder();
+
+  /**
+   * Limits from -Drate.limit, -Drate.burst and -Dmax.concurrent
+   */
+  AdmissionControl() {
+    this(Integer.getInteger("rate.limit", DEFAULT_RATE), Integer.getInteger("rate.burst", DEFAULT_BURST),
+        Integer.getInteger("max.concurrent", DEFAULT_MAX_CONCURRENT));
+  }
+
+  /**
+   * @param rate requests per second per client, 0 for no rate limit
+   * @param burst size of the bucket, at least 1
+   * @param maxConcurrent requests handled at the same time, 0 for no limit
+   */
+  AdmissionControl(int rate, int burst, int maxConcurrent) {
+    this.intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+    this.burstNanos = intervalNanos * Math.max(1, burst);
+    this.maxConcurrent = maxConcurrent;
+    this.nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+  }
+
+  /**
+   * Call before a request is handed to a worker
+   * @param client address of the client, e.g. "127.0.0.1"
+   * @return null if the request may run, then release() must be called when it
+   *     is done. Otherwise the response to send instead (429 or 503), the
+   *     request does not count as running
+   */
+  byte[] admit(String client) {
+    long now = System.nanoTime();
+    long wait = takeToken(client, now);
+    if (wait > 0) {
+      limited.increment();
+      return tooManyRequests(wait);
+    }
+    if (maxConcurrent > 0 && inFlight.incrementAndGet() > maxConcurrent) {
+      inFlight.decrementAndGet();
+      shed.increment();
+      return overloaded();
+    }
+    return null;
+  }
+
+  /**
+   * The request that was admitted is answered
+   */
+  void release() {
+    if (maxConcurrent > 0) {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return 0 if the client had a token, otherwise nanoseconds until it has one
+   */
+  private long takeToken(String client, long now) {
+    if (intervalNanos == 0) {
+      return 0;
+    }
+    sweepIfDue(now);
+    AtomicLong bucket = buckets.get(client);
+    if (bucket == null) {
+      String key = buckets.size() < MAX_CLIENTS ? client : OVERFLOW;
+      // a new bucket is full: it was full "now"
+      bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+    }
+    while (true) {
+      long full = bucket.get();
+      // an idle bucket does not get fuller than full
+      long next = Math.max(full, now) + intervalNanos;
+      long wait = next - now - burstNanos;
+      if (wait > 0) {
+        return wait;
+      }
+      if (bucket.compareAndSet(full, next)) {
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * Removes the buckets that are full again, one request every SWEEP_INTERVAL
+   * does this. A client whose bucket is removed right while it takes a token
+   * just gets a full bucket, which it would have had anyway.
+   */
+  private void sweepIfDue(long now) {
+    long due = nextSweep.get();
+    if (now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) {
+      return;
+    }
+    buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+  }
+
+  private static byte[] tooManyRequests(long waitNanos) {
+    long seconds = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    String raw = "HTTP/1.1 429 Too Many Requests\n"
+        + "Content-Type: text/html; charset=utf-8\n"
+        + "Retry-After: " + seconds + "\n"
+        + "\n"
+        + "Too many requests, please slow down.";
+    return raw.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static byte[] overloaded() {
+    String raw = "HTTP/1.1 503 Service Unavailable\n"
+        + "Content-Type: text/html; charset=utf-8\n"
+        + "Retry-After: 1\n"
+        + "\n"
+        + "The server is busy, please try again later.";
+    return raw.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /** requests answered with 429 */
+  long limited() {
+    return limited.sum();
+  }
+
+  /** requests answered with 503 because too many were running */
+  long shed() {
+    return shed.sum();
+  }
+
+  /** requests that are running right now */
+  int inFlight() {
+    return inFlight.get();
+  }
+
+  /** clients that have a bucket */
+  int clients() {
+    return buckets.size();
+  }
+}
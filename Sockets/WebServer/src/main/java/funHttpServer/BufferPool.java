@@ -0,0 +1,322 @@
+/*
+Pool of direct ByteBuffers for socket reads and writes.
+
+A heap byte[] that is written to a socket channel is first copied into a
+direct buffer by the JDK, and every response used to get a new byte[] that the
+garbage collector had to clean up again. Direct buffers from this pool are
+written by the kernel straight from their memory and are used again and again,
+so at high request rates there is much less garbage.
+
+The buffers come in size classes (1 KB, 2 KB, 4 KB ... 256 KB), a request for
+3000 bytes gets a 4 KB buffer. Bigger requests get a plain heap buffer that is
+not pooled.
+
+Where a buffer comes from:
+1. the cache of the current thread: no locking at all. Event loops and pool
+   workers keep a few buffers of every class here
+2. the shared overflow queue of the class: buffers released on another thread
+   end up here (e.g. a worker fills a response buffer, the event loop releases
+   it after writing)
+3. a new allocateDirect, counted as a miss
+
+Every acquire() must be followed by exactly one release(). The "outstanding"
+number shows buffers that are not released yet. With -Dbuffers.leakDetection=true
+the pool also remembers where every buffer was acquired and reports a buffer
+that was garbage collected without being released, with that stack trace.
+That costs a stack trace per acquire, so it is off by default.
+*/
+
+package funHttpServer;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+final class BufferPool {
+
+  /** smallest size class, 1 KB */
+  static final int MIN_SHIFT = 10;
+
+  /** biggest size class, 256 KB */
+  static final int MAX_SHIFT = 18;
+
+  /** bytes of every class a thread may keep for itself */
+  static final int LOCAL_BYTES_PER_CLASS = 64 * 1024;
+
+  /** bytes of every class kept in the shared queue */
+  static final int SHARED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+  private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+  // Thread.isVirtual() exists from Java 21 on, see WorkerPool
+  private static final Method IS_VIRTUAL = isVirtualMethod();
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final ConcurrentLinkedQueue<ByteBuffer>[] shared = new ConcurrentLinkedQueue[CLASSES];
+  private final AtomicInteger[] sharedCount = new AtomicInteger[CLASSES];
+  private final ThreadLocal<ArrayDeque<ByteBuffer>[]> local = ThreadLocal.withInitial(BufferPool::newLocalCache);
+
+  private final LongAdder localHits = new LongAdder();
+  private final LongAdder sharedHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder unpooled = new LongAdder();
+  private final AtomicLong outstanding = new AtomicLong();
+  private final AtomicLong leaks = new AtomicLong();
+
+  // only used with leak detection
+  private final boolean leakDetection;
+  private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+  private final Map<Integer, Lease> leases = new ConcurrentHashMap<>();
+
+  /**
+   * Remembers where a buffer was acquired. It is a phantom reference, so it does
+   * not keep the buffer alive: if the buffer is collected while the lease is
+   * still there, it was never released.
+   */
+  private static final class Lease extends PhantomReference<ByteBuffer> {
+    final int id;
+    final Throwable acquiredAt;
+    Lease next; // leases of other buffers with the same identity hash
+
+    Lease(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+      super(buffer, queue);
+      this.id = System.identityHashCode(buffer);
+      this.acquiredAt = new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here");
+    }
+  }
+
+  /**
+   * Pool with leak detection if -Dbuffers.leakDetection=true
+   */
+  BufferPool() {
+    this(Boolean.getBoolean("buffers.leakDetection"));
+  }
+
+  BufferPool(boolean leakDetection) {
+    this.leakDetection = leakDetection;
+    for (int i = 0; i < CLASSES; i++) {
+      shared[i] = new ConcurrentLinkedQueue<>();
+      sharedCount[i] = new AtomicInteger();
+    }
+  }
+
+  /**
+   * Virtual threads are started for a single task, a cache there would never
+   * be used again, so they get none (null) and use the shared queues directly
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static ArrayDeque<ByteBuffer>[] newLocalCache() {
+    if (isVirtual(Thread.currentThread())) {
+      return null;
+    }
+    ArrayDeque<ByteBuffer>[] cache = new ArrayDeque[CLASSES];
+    for (int i = 0; i < CLASSES; i++) {
+      cache[i] = new ArrayDeque<>();
+    }
+    return cache;
+  }
+
+  /**
+   * @param size bytes needed
+   * @return a cleared buffer with at least size bytes (limit = capacity), direct
+   *     if size fits a class, a heap buffer otherwise
+   */
+  ByteBuffer acquire(int size) {
+    int sizeClass = sizeClass(size);
+    if (sizeClass == -1) {
+      unpooled.increment();
+      return ByteBuffer.allocate(size);
+    }
+    if (leakDetection) {
+      reportLeaks();
+    }
+
+    ByteBuffer buffer = null;
+    ArrayDeque<ByteBuffer>[] cache = local.get();
+    if (cache != null) {
+      buffer = cache[sizeClass].pollLast();
+    }
+    if (buffer != null) {
+      localHits.increment();
+    } else {
+      buffer = shared[sizeClass].poll();
+      if (buffer != null) {
+        sharedCount[sizeClass].decrementAndGet();
+        sharedHits.increment();
+      } else {
+        misses.increment();
+        buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+      }
+    }
+    outstanding.incrementAndGet();
+    if (leakDetection) {
+      track(buffer);
+    }
+    return buffer;
+  }
+
+  /**
+   * Gives a buffer back, it must not be used afterwards. Heap buffers and null
+   * are ignored, so callers do not have to check where a buffer came from.
+   */
+  void release(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect()) {
+      return;
+    }
+    int sizeClass = Integer.numberOfTrailingZeros(buffer.capacity()) - MIN_SHIFT;
+    if (Integer.bitCount(buffer.capacity()) != 1 || sizeClass < 0 || sizeClass >= CLASSES) {
+      return; // not one of ours
+    }
+    if (leakDetection && !untrack(buffer)) {
+      throw new IllegalStateException("Buffer released twice or not from this pool");
+    }
+    outstanding.decrementAndGet();
+    buffer.clear();
+
+    int size = buffer.capacity();
+    ArrayDeque<ByteBuffer>[] cache = local.get();
+    if (cache != null && (cache[sizeClass].size() + 1) * size <= Math.max(size, LOCAL_BYTES_PER_CLASS)) {
+      cache[sizeClass].addLast(buffer);
+    } else if (sharedCount[sizeClass].incrementAndGet() * size <= Math.max(size, SHARED_BYTES_PER_CLASS)) {
+      shared[sizeClass].offer(buffer);
+    } else {
+      // enough of this size around, the garbage collector frees its memory
+      sharedCount[sizeClass].decrementAndGet();
+    }
+  }
+
+  /**
+   * @return index of the smallest class that holds size bytes, -1 if too big
+   */
+  static int sizeClass(int size) {
+    if (size > 1 << MAX_SHIFT) {
+      return -1;
+    }
+    int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+    return Math.max(0, shift - MIN_SHIFT);
+  }
+
+  private static boolean isVirtual(Thread thread) {
+    if (IS_VIRTUAL == null) {
+      return false;
+    }
+    try {
+      return (Boolean) IS_VIRTUAL.invoke(thread);
+    } catch (ReflectiveOperationException e) {
+      return false;
+    }
+  }
+
+  private static Method isVirtualMethod() {
+    try {
+      return Thread.class.getMethod("isVirtual");
+    } catch (NoSuchMethodException e) {
+      return null; // Java 17, no virtual threads
+    }
+  }
+
+  private void track(ByteBuffer buffer) {
+    Lease lease = new Lease(buffer, collected);
+    leases.compute(lease.id, (id, first) -> {
+      lease.next = first;
+      return lease;
+    });
+  }
+
+  /**
+   * @return false if the buffer was not acquired (or released already)
+   */
+  private boolean untrack(ByteBuffer buffer) {
+    boolean[] found = new boolean[1];
+    leases.computeIfPresent(System.identityHashCode(buffer), (id, first) -> {
+      Lease head = first;
+      Lease previous = null;
+      for (Lease lease = first; lease != null; lease = lease.next) {
+        if (lease.refersTo(buffer)) {
+          found[0] = true;
+          lease.clear();
+          if (previous == null) {
+            head = lease.next;
+          } else {
+            previous.next = lease.next;
+          }
+          break;
+        }
+        previous = lease;
+      }
+      return head;
+    });
+    return found[0];
+  }
+
+  /**
+   * Buffers that were collected while still leased were never released
+   */
+  private void reportLeaks() {
+    Lease lease;
+    while ((lease = (Lease) collected.poll()) != null) {
+      Lease leaked = lease;
+      leases.computeIfPresent(leaked.id, (id, first) -> {
+        if (first == leaked) {
+          return first.next;
+        }
+        for (Lease l = first; l.next != null; l = l.next) {
+          if (l.next == leaked) {
+            l.next = leaked.next;
+            break;
+          }
+        }
+        return first;
+      });
+      leaks.incrementAndGet();
+      outstanding.decrementAndGet();
+      System.out.println("Buffer pool: a buffer was not released");
+      leaked.acquiredAt.printStackTrace(System.out);
+    }
+  }
+
+  /** buffers taken from the cache of the thread */
+  long localHits() {
+    return localHits.sum();
+  }
+
+  /** buffers taken from the shared queues */
+  long sharedHits() {
+    return sharedHits.sum();
+  }
+
+  /** buffers that had to be allocated */
+  long misses() {
+    return misses.sum();
+  }
+
+  /** requests too big for the pool, answered with a heap buffer */
+  long unpooled() {
+    return unpooled.sum();
+  }
+
+  /** acquired and not released yet */
+  long outstanding() {
+    return outstanding.get();
+  }
+
+  /** buffers that were collected without release, only with leak detection */
+  long leaks() {
+    return leaks.get();
+  }
+
+  /** share of acquires that did not allocate, 0 to 1 */
+  double hitRate() {
+    long hits = localHits() + sharedHits();
+    long total = hits + misses();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+}
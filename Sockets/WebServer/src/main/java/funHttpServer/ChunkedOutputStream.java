@@ -0,0 +1,129 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a body with "Transfer-Encoding: chunked": the body is sent in pieces,
+ * every piece starts with its size in hex, and a piece of size 0 ends the body.
+ * The client knows where the body ends without a Content-Length, so we can
+ * start sending before we know how big the body will be and the connection
+ * can still be kept open.
+ *
+ * 1a\r\n
+ * 26 bytes of the body\r\n
+ * 0\r\n
+ * \r\n
+ *
+ * What is written is collected until CHUNK_SIZE bytes are there or flush() is
+ * called. Every chunk goes to the target in one write (size line, data and
+ * "\r\n" together), so the target can hand the arrays on without copying them.
+ * close() ends the body but leaves the target open, the connection is reused.
+ */
+final class ChunkedOutputStream extends OutputStream {
+
+  /**
+   * body bytes per chunk, with the size line "1ff8\r\n" and the "\r\n" after
+   * the data a full chunk is exactly 8 KB, one buffer of the BufferPool
+   */
+  static final int CHUNK_SIZE = 8 * 1024 - 8;
+
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  private final OutputStream target;
+  private final byte[] buffer = new byte[CHUNK_SIZE];
+  private int count;
+  private long written;
+  private boolean finished;
+
+  /**
+   * @param target the connection, it is not closed
+   */
+  ChunkedOutputStream(OutputStream target) {
+    this.target = target;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    checkOpen();
+    if (count == buffer.length) {
+      writeChunk();
+    }
+    buffer[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    checkOpen();
+    while (length > 0) {
+      if (count == buffer.length) {
+        writeChunk();
+      }
+      int n = Math.min(length, buffer.length - count);
+      System.arraycopy(bytes, offset, buffer, count, n);
+      count += n;
+      offset += n;
+      length -= n;
+    }
+  }
+
+  /**
+   * Sends what was written so far as one chunk
+   */
+  @Override
+  public void flush() throws IOException {
+    if (finished) {
+      return;
+    }
+    writeChunk();
+    target.flush();
+  }
+
+  /**
+   * Sends the rest and the last (empty) chunk, more calls do nothing
+   */
+  void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    writeChunk();
+    finished = true;
+    target.write(LAST_CHUNK);
+    written += LAST_CHUNK.length;
+  }
+
+  /**
+   * Same as finish(), the target stays open
+   */
+  @Override
+  public void close() throws IOException {
+    finish();
+  }
+
+  /** bytes given to the target, with the chunk sizes */
+  long written() {
+    return written;
+  }
+
+  private void writeChunk() throws IOException {
+    if (count == 0) {
+      return; // a chunk of size 0 would end the body
+    }
+    byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    byte[] chunk = new byte[size.length + count + 2];
+    System.arraycopy(size, 0, chunk, 0, size.length);
+    System.arraycopy(buffer, 0, chunk, size.length, count);
+    chunk[chunk.length - 2] = '\r';
+    chunk[chunk.length - 1] = '\n';
+    target.write(chunk);
+    written += chunk.length;
+    count = 0;
+  }
+
+  private void checkOpen() throws IOException {
+    if (finished) {
+      throw new IOException("The body is finished already");
+    }
+  }
+}
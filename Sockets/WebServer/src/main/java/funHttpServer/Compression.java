@@ -0,0 +1,217 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * gzip / deflate for responses. The browser says in Accept-Encoding what it can
+ * unpack, e.g. "gzip, deflate, br", and we pick one of those. Html and JSON
+ * usually shrink to a fifth or less, the /github listing even more.
+ *
+ * Tiny bodies are sent as they are, the gzip header and the work are not worth
+ * it for a few hundred bytes. Images and other already compressed types are
+ * never compressed again.
+ */
+final class Compression {
+
+  /** bodies smaller than this are not compressed */
+  static final int MIN_SIZE = 1024;
+
+  /** used for pages that are compressed once and cached, slower but smaller */
+  static final int STATIC_LEVEL = Deflater.BEST_COMPRESSION;
+
+  /** used for bodies that are compressed on every request */
+  static final int DYNAMIC_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+  private Compression() {
+  }
+
+  /**
+   * Picks the encoding from an Accept-Encoding header, gzip is preferred
+   * @param acceptEncoding e.g. "gzip, deflate;q=0.5", may be null
+   * @return "gzip", "deflate" or null if the client accepts neither
+   */
+  static String negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    double gzip = -1;
+    double deflate = -1;
+    double any = -1;
+    for (String part : acceptEncoding.split(",")) {
+      String[] fields = part.trim().split(";");
+      String name = fields[0].trim().toLowerCase();
+      double quality = 1;
+      for (int i = 1; i < fields.length; i++) {
+        String field = fields[i].trim();
+        if (field.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(field.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      if (name.equals("gzip") || name.equals("x-gzip")) {
+        gzip = quality;
+      } else if (name.equals("deflate")) {
+        deflate = quality;
+      } else if (name.equals("*")) {
+        any = quality;
+      }
+    }
+    // "*" covers the ones that are not listed, q=0 means "not this one"
+    if (gzip < 0) {
+      gzip = any;
+    }
+    if (deflate < 0) {
+      deflate = any;
+    }
+    if (gzip <= 0 && deflate <= 0) {
+      return null;
+    }
+    return gzip >= deflate ? "gzip" : "deflate";
+  }
+
+  /**
+   * @return true for text like types that shrink, false e.g. for images
+   */
+  static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String type = contentType.toLowerCase();
+    return type.startsWith("text/") || type.contains("json") || type.contains("javascript")
+        || type.contains("xml") || type.contains("svg");
+  }
+
+  /**
+   * @return true if the response should be sent compressed to a client that supports it
+   */
+  static boolean worthCompressing(Response response) {
+    // the size of a streamed body is not known, it is compressed while it is written
+    return response.status() == 200 && response.header("Content-Encoding") == null
+        && (response.isStreamed() || response.body().length >= MIN_SIZE) && isCompressible(response.contentType());
+  }
+
+  /**
+   * Compresses the response for the client of the request, if it supports it and
+   * the body is big enough. Used for dynamic pages, the body is streamed through
+   * the compressor straight into the new body.
+   * @return the compressed copy or the response itself
+   */
+  static Response apply(Response response, Request request) {
+    if (!worthCompressing(response)) {
+      return response;
+    }
+    // a cache in between must not hand the gzip body to a client without gzip,
+    // cached pages already have it and must not be changed (they are encoded)
+    if (response.header("Vary") == null) {
+      response.header("Vary", "Accept-Encoding");
+    }
+    String encoding = negotiate(request.header("Accept-Encoding"));
+    if (encoding == null) {
+      return response;
+    }
+    return response.isStreamed() ? encodeStream(response, encoding, DYNAMIC_LEVEL)
+        : encode(response, encoding, DYNAMIC_LEVEL);
+  }
+
+  /**
+   * Copy of the response with a compressed body and a Content-Encoding header
+   * @param encoding "gzip" or "deflate"
+   * @param level a Deflater level
+   */
+  static Response encode(Response response, String encoding, int level) {
+    return withHeaders(new Response(response.status(), response.reason(), response.contentType(),
+        compress(response.body(), encoding, level)), response, encoding);
+  }
+
+  /**
+   * Streamed response whose body goes through the compressor while it is
+   * written, so it is never in memory as a whole
+   */
+  static Response encodeStream(Response response, String encoding, int level) {
+    return withHeaders(Response.stream(response.status(), response.reason(), response.contentType(), out -> {
+      // closing the compressor writes its trailer and ends the chunked body
+      try (OutputStream compressor = encoding.equals("gzip")
+          ? new GzipStream(out, level) : new DeflaterStream(out, level)) {
+        response.writeBody(compressor);
+      }
+    }), response, encoding);
+  }
+
+  /**
+   * Copies the headers of the original and marks the encoding
+   */
+  private static Response withHeaders(Response encoded, Response response, String encoding) {
+    for (Map.Entry<String, String> header : response.headers().entrySet()) {
+      encoded.header(header.getKey(), header.getValue());
+    }
+    String etag = response.header("ETag");
+    if (etag != null) {
+      // the compressed bytes are different, so they need their own strong ETag
+      encoded.header("ETag", etag(etag, encoding));
+    }
+    return encoded.header("Content-Encoding", encoding).header("Vary", "Accept-Encoding");
+  }
+
+  /**
+   * ETag of a compressed variant, "abc" becomes "abc-gzip"
+   */
+  static String etag(String etag, String encoding) {
+    return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+  }
+
+  /**
+   * @param encoding "gzip" or "deflate" (zlib format, that is what HTTP calls deflate)
+   * @param level a Deflater level
+   */
+  static byte[] compress(byte[] body, String encoding, int level) {
+    // text shrinks a lot, start small instead of reserving the full size
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+    try (OutputStream compressor = encoding.equals("gzip")
+        ? new GzipStream(out, level) : new DeflaterStream(out, level)) {
+      compressor.write(body);
+    } catch (IOException e) {
+      // a ByteArrayOutputStream does not throw
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * GZIPOutputStream always starts with the default level
+   */
+  private static final class GzipStream extends GZIPOutputStream {
+    GzipStream(OutputStream out, int level) throws IOException {
+      // syncFlush: flush() sends what is compressed so far, streamed bodies need that
+      super(out, 8192, true);
+      def.setLevel(level);
+    }
+  }
+
+  /**
+   * DeflaterOutputStream with its own Deflater, which is freed on close
+   */
+  private static final class DeflaterStream extends DeflaterOutputStream {
+    DeflaterStream(OutputStream out, int level) {
+      super(out, new Deflater(level), 8192, true);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        def.end();
+      }
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package funHttpServer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches JSON from the GitHub REST API for the /github route.
+ *
+ * fetchURL used to open a new URLConnection for every request, wait up to 20
+ * seconds and read the answer one character at a time. This client:
+ * - uses one java.net.http.HttpClient, which keeps connections to GitHub open
+ *   and reads the body in big blocks
+ * - is asynchronous, fetch() returns right away with a CompletableFuture
+ * - caches answers for a while (TTL) and drops the least recently used ones
+ *   when there are too many
+ * - sends only one request upstream when many clients ask for the same query
+ *   at the same time, they all wait for that one answer
+ * - after the TTL asks GitHub with If-None-Match whether the cached answer is
+ *   still current, a "304 Not Modified" costs no rate limit and no body
+ * - keeps using an old answer when GitHub cannot be reached or refuses, e.g.
+ *   403 because the rate limit is used up
+ *
+ * The base URL can be changed, e.g. to a local stub server for testing:
+ * java -Dgithub.url=http://localhost:8081/ -Dgithub.ttl=5 ...
+ */
+final class GitHubClient {
+
+  static final String DEFAULT_BASE_URL = "https://api.github.com/";
+
+  /** how long a cached answer is used without asking GitHub again */
+  static final Duration DEFAULT_TTL = Duration.ofSeconds(60);
+
+  /** how many answers are cached at most */
+  static final int DEFAULT_MAX_ENTRIES = 256;
+
+  /** how long we wait for GitHub */
+  static final Duration TIMEOUT = Duration.ofSeconds(20);
+
+  /**
+   * A cached answer and its ETag
+   */
+  private static final class Entry {
+    final String body;
+    final String etag;
+    final long fetchedAt;
+
+    Entry(String body, String etag, long fetchedAt) {
+      this.body = body;
+      this.etag = etag;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
+  private final String baseUrl;
+  private final long ttlNanos;
+  private final HttpClient http;
+
+  // LinkedHashMap in access order is an LRU list, the eldest entry is dropped when it is full
+  private final Map<String, Entry> cache;
+
+  // queries that are being fetched right now, later callers get the same future
+  private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong upstream = new AtomicLong();
+  private final AtomicLong revalidated = new AtomicLong();
+
+  /**
+   * Client for api.github.com (or -Dgithub.url) with the default cache settings
+   */
+  GitHubClient() {
+    this(System.getProperty("github.url", DEFAULT_BASE_URL),
+        Duration.ofSeconds(Long.getLong("github.ttl", DEFAULT_TTL.getSeconds())), DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param baseUrl prefix for the queries, e.g. "https://api.github.com/"
+   * @param ttl how long an answer is used without asking again
+   * @param maxEntries how many answers are cached
+   */
+  GitHubClient(String baseUrl, Duration ttl, int maxEntries) {
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    this.ttlNanos = ttl.toNanos();
+    this.http = HttpClient.newBuilder()
+        .connectTimeout(TIMEOUT)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+    this.cache = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    });
+  }
+
+  /**
+   * Fetches the JSON for a query
+   * @param query e.g. "users/amehlhase316/repos"
+   * @return completes with the body, or with "" if GitHub could not be reached
+   *     or did not answer with 200 (like fetchURL did) and nothing is cached
+   */
+  CompletableFuture<String> fetch(String query) {
+    Entry cached = cache.get(query);
+    if (cached != null && System.nanoTime() - cached.fetchedAt < ttlNanos) {
+      hits.incrementAndGet();
+      return CompletableFuture.completedFuture(cached.body);
+    }
+
+    CompletableFuture<String> started = new CompletableFuture<>();
+    CompletableFuture<String> running = inFlight.putIfAbsent(query, started);
+    if (running != null) {
+      // somebody is already asking GitHub for this
+      coalesced.incrementAndGet();
+      return running;
+    }
+
+    upstream.incrementAndGet();
+    CompletableFuture<String> sent;
+    try {
+      sent = send(query, cached);
+    } catch (IllegalArgumentException e) {
+      // not a valid URL, e.g. a space in the query
+      sent = CompletableFuture.failedFuture(e);
+    }
+    sent.whenComplete((body, error) -> {
+      inFlight.remove(query, started);
+      if (error != null) {
+        System.out.println("Exception in url request: " + error.getMessage());
+        started.complete(cached == null ? "" : cached.body);
+      } else {
+        started.complete(body);
+      }
+    });
+    return started;
+  }
+
+  private CompletableFuture<String> send(String query, Entry stale) {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + query))
+        .timeout(TIMEOUT)
+        .header("Accept", "application/vnd.github+json")
+        .header("User-Agent", "ser321-funHttpServer");
+    if (stale != null && stale.etag != null) {
+      request.header("If-None-Match", stale.etag);
+    }
+
+    // ofString reads the whole body in blocks, not char by char
+    return http.sendAsync(request.build(), HttpResponse.BodyHandlers.ofString())
+        .thenApply(response -> {
+          if (response.statusCode() == 304 && stale != null) {
+            // still the same, use it for another TTL
+            revalidated.incrementAndGet();
+            cache.put(query, new Entry(stale.body, stale.etag, System.nanoTime()));
+            return stale.body;
+          }
+          if (response.statusCode() != 200) {
+            // the old entry stays, the next request asks again
+            System.out.println("GitHub answered " + response.statusCode() + " for " + query);
+            return stale == null ? "" : stale.body;
+          }
+          String etag = response.headers().firstValue("ETag").orElse(null);
+          cache.put(query, new Entry(response.body(), etag, System.nanoTime()));
+          return response.body();
+        });
+  }
+
+  /** drops all cached answers */
+  void clear() {
+    cache.clear();
+  }
+
+  /** answers served from the cache */
+  long hits() {
+    return hits.get();
+  }
+
+  /** requests that waited for a fetch another request had started */
+  long coalesced() {
+    return coalesced.get();
+  }
+
+  /** requests sent to GitHub */
+  long upstreamCalls() {
+    return upstream.get();
+  }
+
+  /** upstream requests answered with 304 Not Modified */
+  long revalidated() {
+    return revalidated.get();
+  }
+
+  @Override
+  public String toString() {
+    return "hits=" + hits() + " coalesced=" + coalesced() + " upstream=" + upstreamCalls()
+        + " revalidated=" + revalidated();
+  }
+}
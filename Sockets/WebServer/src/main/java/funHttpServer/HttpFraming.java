@@ -0,0 +1,233 @@
+/*
+Helpers for persistent HTTP/1.1 connections.
+
+createResponse only produces a status line, a few headers and a body. To keep
+a connection open after a response the client has to know where the body
+ends, so every response gets a Content-Length header and a Connection header
+that tells the client if we keep the socket open for the next request.
+Streamed responses get "Transfer-Encoding: chunked" instead, see writeChunked.
+
+Both engines (the blocking one in WebServer and NioEngine) use these methods so
+they behave the same way:
+- a connection is kept open for at most MAX_REQUESTS requests
+- an idle connection is closed after IDLE_TIMEOUT_MS milliseconds
+- pipelined requests (several requests sent without waiting) are answered
+  one after the other in the order they arrived
+*/
+
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+final class HttpFraming {
+
+  /** how long an idle keep-alive connection stays open */
+  static final int IDLE_TIMEOUT_MS = 5 * 1000;
+
+  /** how many requests one connection may send before we close it */
+  static final int MAX_REQUESTS = 100;
+
+  /** requests with a header bigger than this are rejected */
+  static final int MAX_HEADER_SIZE = 8 * 1024;
+
+  private HttpFraming() {
+  }
+
+  /**
+   * Finds the end of the request header ("\r\n\r\n" or "\n\n")
+   * @param data bytes read so far
+   * @param length number of valid bytes in data
+   * @return index right after the blank line or -1 if the header is not complete yet
+   */
+  static int findHeaderEnd(byte[] data, int length) {
+    for (int i = 0; i < length; i++) {
+      if (data[i] != '\n') {
+        continue;
+      }
+      if (i + 1 < length && data[i + 1] == '\n') {
+        return i + 2;
+      }
+      if (i + 2 < length && data[i + 1] == '\r' && data[i + 2] == '\n') {
+        return i + 3;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Response for requests the server has no capacity for right now
+   * @return a framed 503 that closes the connection
+   */
+  static byte[] busy() {
+    String raw = "HTTP/1.1 503 Service Unavailable\n"
+        + "Content-Type: text/html; charset=utf-8\n"
+        + "Retry-After: 1\n"
+        + "\n"
+        + "The server is busy, please try again later.";
+    return frame(raw.getBytes(StandardCharsets.ISO_8859_1), false);
+  }
+
+  /**
+   * Status code of a response, read from the bytes of the status line
+   * @return e.g. 200, or 0 if there is no status line
+   */
+  static int statusCode(byte[] response) {
+    // "HTTP/1.1 200 OK"
+    int space = 0;
+    while (space < response.length && space < 16 && response[space] != ' ') {
+      space++;
+    }
+    if (space + 3 >= response.length) {
+      return 0;
+    }
+    int code = 0;
+    for (int i = space + 1; i <= space + 3; i++) {
+      if (response[i] < '0' || response[i] > '9') {
+        return 0;
+      }
+      code = code * 10 + (response[i] - '0');
+    }
+    return code;
+  }
+
+  /**
+   * Answer for a request whose header is bigger than MAX_HEADER_SIZE, the
+   * connection is closed afterwards
+   */
+  static byte[] tooLarge() {
+    String raw = "HTTP/1.1 431 Request Header Fields Too Large\n"
+        + "Content-Type: text/html; charset=utf-8\n"
+        + "\n"
+        + "The request header is too large.";
+    return frame(raw.getBytes(StandardCharsets.ISO_8859_1), false);
+  }
+
+  /**
+   * Checks if createResponse produced a status line. Some error paths only return
+   * a bit of html, those cannot be framed reliably and close the connection.
+   * @param raw bytes returned by createResponse
+   * @return true if raw starts with "HTTP/"
+   */
+  static boolean hasStatusLine(byte[] raw) {
+    return raw.length > 5 && new String(raw, 0, 5, StandardCharsets.ISO_8859_1).equals("HTTP/");
+  }
+
+  /**
+   * Turns the output of createResponse into a properly framed HTTP/1.1 response:
+   * header lines end with "\r\n" and Content-Length and Connection are set.
+   * Responses without a status line (e.g. "Illegal request: no GET") become a 400
+   * and always close the connection.
+   * @param raw bytes returned by createResponse
+   * @param keepAlive if the connection stays open after this response
+   * @return bytes to write to the socket
+   */
+  static byte[] frame(byte[] raw, boolean keepAlive) {
+    int bodyStart = bodyStart(raw);
+    byte[] head = frameHead(raw, bodyStart, keepAlive);
+    int bodyLength = raw.length - Math.max(bodyStart, 0);
+    byte[] framed = new byte[head.length + bodyLength];
+    System.arraycopy(head, 0, framed, 0, head.length);
+    System.arraycopy(raw, raw.length - bodyLength, framed, head.length, bodyLength);
+    return framed;
+  }
+
+  /**
+   * Same as frame(raw, keepAlive), but the framed response is put into a buffer
+   * of the pool, ready to be written to a channel. The caller releases it.
+   * @return buffer with position 0 and limit at the end of the response
+   */
+  static ByteBuffer frame(byte[] raw, boolean keepAlive, BufferPool buffers) {
+    int bodyStart = bodyStart(raw);
+    byte[] head = frameHead(raw, bodyStart, keepAlive);
+    int bodyLength = raw.length - Math.max(bodyStart, 0);
+    ByteBuffer framed = buffers.acquire(head.length + bodyLength);
+    framed.put(head).put(raw, raw.length - bodyLength, bodyLength).flip();
+    return framed;
+  }
+
+  /** index where the body of raw starts, -1 if raw has no valid header */
+  private static int bodyStart(byte[] raw) {
+    return hasStatusLine(raw) ? findHeaderEnd(raw, raw.length) : -1;
+  }
+
+  private static byte[] frameHead(byte[] raw, int bodyStart, boolean keepAlive) {
+    String status;
+    String[] headers;
+    if (bodyStart == -1) {
+      status = "HTTP/1.1 400 Bad Request";
+      headers = new String[] { "Content-Type: text/html; charset=utf-8" };
+      bodyStart = 0;
+      keepAlive = false;
+    } else {
+      String[] lines = new String(raw, 0, bodyStart, StandardCharsets.ISO_8859_1).trim().split("\r?\n");
+      status = lines[0];
+      headers = new String[lines.length - 1];
+      System.arraycopy(lines, 1, headers, 0, headers.length);
+    }
+
+    // a 304 has no body, its Content-Length would have to be the one of the full page
+    String length = status.contains(" 304 ") ? null : "Content-Length: " + (raw.length - bodyStart);
+    return head(status, headers, length, keepAlive);
+  }
+
+  /**
+   * Status line, the headers and our own framing headers, ends with the blank line
+   * @param length "Content-Length: 123", "Transfer-Encoding: chunked" or null
+   */
+  private static byte[] head(String status, String[] headers, String length, boolean keepAlive) {
+    StringBuilder builder = new StringBuilder();
+    builder.append(status).append("\r\n");
+    for (String line : headers) {
+      String lower = line.toLowerCase();
+      // we set these ourselves
+      if (lower.startsWith("content-length:") || lower.startsWith("connection:") || lower.startsWith("keep-alive:")
+          || lower.startsWith("transfer-encoding:")) {
+        continue;
+      }
+      builder.append(line).append("\r\n");
+    }
+    if (length != null) {
+      builder.append(length).append("\r\n");
+    }
+    if (keepAlive) {
+      builder.append("Connection: keep-alive\r\n");
+      builder.append("Keep-Alive: timeout=").append(IDLE_TIMEOUT_MS / 1000).append(", max=").append(MAX_REQUESTS).append("\r\n");
+    } else {
+      builder.append("Connection: close\r\n");
+    }
+    builder.append("\r\n");
+    return builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Sends a streamed response: the header with "Transfer-Encoding: chunked"
+   * first, then the body in chunks while the response's BodyWriter makes it.
+   * Only for HTTP/1.1 clients, HTTP/1.0 does not know chunks.
+   *
+   * Once the header is out there is no way to tell the client about an error
+   * anymore. If the writer fails, the body is not finished and an IOException
+   * is thrown, the caller must close the connection so the client sees that
+   * the answer is incomplete.
+   * @param out the connection
+   * @return bytes written, header included
+   */
+  static long writeChunked(Response response, boolean keepAlive, OutputStream out) throws IOException {
+    String[] lines = new String(response.head(), StandardCharsets.UTF_8).trim().split("\r?\n");
+    String[] headers = new String[lines.length - 1];
+    System.arraycopy(lines, 1, headers, 0, headers.length);
+    byte[] head = head(lines[0], headers, "Transfer-Encoding: chunked", keepAlive);
+    out.write(head);
+
+    ChunkedOutputStream body = new ChunkedOutputStream(out);
+    try {
+      response.writeBody(body);
+    } catch (RuntimeException e) {
+      throw new IOException("Streamed response failed: " + e.getMessage(), e);
+    }
+    body.finish();
+    return head.length + body.written();
+  }
+}
@@ -0,0 +1,368 @@
+/*
+Numbers about the running server, shown on /metrics in the Prometheus text
+format (https://prometheus.io/docs/instrumenting/exposition_formats/).
+
+For every route: how many requests (by status class), how many are running
+right now, how many bytes were sent and how long the requests took. Plus the
+bytes read and written by the engines, the worker pool, the access log and the
+GitHub client.
+
+Recording happens on every request, so it must be cheap: the counters are
+LongAdders (every thread counts in its own cell) and the latency histogram is
+an AtomicLongArray. Nothing is locked and nothing is allocated, the routes are
+all registered when the server starts. Only building the /metrics page
+allocates.
+
+The histogram works like HdrHistogram: values up to 16 microseconds get a bucket
+each, above that every power of two is split into 16 buckets. So every
+bucket is at most 1/16 (about 6%) wide compared to its values, from
+microseconds up to hours, in about 600 counters.
+*/
+
+package funHttpServer;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+final class Metrics {
+
+  /** upper bounds of the Prometheus histogram buckets, in seconds */
+  static final double[] BUCKETS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+      0.25, 0.5, 1, 2.5, 5, 10, 30 };
+
+  /** quantiles that are shown next to the histogram */
+  static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  /** used for requests that match no route, so unknown paths do not create new series */
+  static final String UNKNOWN = "unknown";
+
+  /**
+   * Log-linear histogram of microseconds
+   */
+  static final class Histogram {
+    static final int SUB_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // values above 2^40 microseconds (12 days) go into the last bucket
+    static final int MAX_MAGNITUDE = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BITS + 1) * SUB_BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    void record(long micros) {
+      counts.incrementAndGet(index(Math.max(0, micros)));
+      sum.add(micros);
+    }
+
+    static int index(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int magnitude = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_MAGNITUDE);
+      int shift = magnitude - SUB_BITS;
+      // the 4 bits after the highest one bit
+      int sub = (int) Math.min(value >>> shift, 2 * SUB_BUCKETS - 1) & (SUB_BUCKETS - 1);
+      return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    /** biggest value that goes into the bucket */
+    static long upperBound(int index) {
+      if (index < SUB_BUCKETS) {
+        return index;
+      }
+      int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+      int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+      return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    /** copy of the counts, taken once per scrape so all numbers fit together */
+    long[] snapshot() {
+      long[] copy = new long[counts.length()];
+      for (int i = 0; i < copy.length; i++) {
+        copy[i] = counts.get(i);
+      }
+      return copy;
+    }
+
+    long sumMicros() {
+      return sum.sum();
+    }
+
+    /**
+     * @return the upper bound of the bucket that holds the quantile, 0 if empty
+     */
+    static long quantile(long[] counts, long total, double quantile) {
+      long rank = (long) Math.ceil(quantile * total);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank && seen > 0) {
+          return upperBound(i);
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Everything that is counted for one route
+   */
+  static final class Route {
+    final String name;
+    final LongAdder[] byStatusClass = new LongAdder[6];
+    final LongAdder inFlight = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final Histogram latency = new Histogram();
+
+    Route(String name) {
+      this.name = name;
+      for (int i = 0; i < byStatusClass.length; i++) {
+        byStatusClass[i] = new LongAdder();
+      }
+    }
+
+    /** a request for this route started */
+    void begin() {
+      inFlight.increment();
+    }
+
+    /**
+     * the request is answered
+     * @param status e.g. 200
+     * @param bytes size of the response
+     * @param nanos how long it took
+     */
+    void end(int status, long bytes, long nanos) {
+      inFlight.decrement();
+      byStatusClass[Math.min(5, Math.max(0, status / 100))].increment();
+      bytesOut.add(bytes);
+      latency.record(nanos / 1000);
+    }
+  }
+
+  private final Map<String, Route> routes;
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder connections = new LongAdder();
+  private volatile WorkerPool workers;
+  private volatile AccessLog accessLog;
+  private volatile GitHubClient github;
+  private volatile AdmissionControl admission;
+  private volatile BufferPool buffers;
+
+  /**
+   * @param routeNames the names the Router knows, "" is the root page
+   */
+  Metrics(Collection<String> routeNames) {
+    Map<String, Route> map = new HashMap<>();
+    for (String name : routeNames) {
+      map.put(name, new Route(name));
+    }
+    map.put(UNKNOWN, new Route(UNKNOWN));
+    // never changed after this, so reading it from many threads needs no lock
+    this.routes = map;
+  }
+
+  /**
+   * @param name the route of a request, see Request.route()
+   * @return its counters, or the ones for unknown routes
+   */
+  Route route(String name) {
+    Route route = routes.get(name);
+    return route == null ? routes.get(UNKNOWN) : route;
+  }
+
+  /** bytes of requests read by an engine */
+  void bytesIn(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  /** bytes of responses written by an engine, with the headers */
+  void bytesOut(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  /** a client connected */
+  void connectionOpened() {
+    connections.increment();
+  }
+
+  /** shows queue, active workers and rejections of the pool */
+  void workers(WorkerPool workers) {
+    this.workers = workers;
+  }
+
+  /** shows written and dropped log records */
+  void accessLog(AccessLog accessLog) {
+    this.accessLog = accessLog;
+  }
+
+  /** shows the cache numbers of the GitHub client */
+  void github(GitHubClient github) {
+    this.github = github;
+  }
+
+  /** shows rate limited and shed requests */
+  void admission(AdmissionControl admission) {
+    this.admission = admission;
+  }
+
+  /** shows where the socket buffers came from */
+  void buffers(BufferPool buffers) {
+    this.buffers = buffers;
+  }
+
+  /**
+   * The /metrics page
+   */
+  String render() {
+    StringBuilder out = new StringBuilder(8192);
+    Map<String, Route> sorted = new LinkedHashMap<>();
+    routes.keySet().stream().sorted().forEach(name -> sorted.put(name, routes.get(name)));
+
+    header(out, "fun_requests_total", "counter", "Requests by route and status class");
+    for (Route route : sorted.values()) {
+      for (int i = 1; i < route.byStatusClass.length; i++) {
+        long count = route.byStatusClass[i].sum();
+        if (count > 0) {
+          out.append("fun_requests_total{route=\"").append(label(route.name)).append("\",code=\"").append(i)
+              .append("xx\"} ").append(count).append('\n');
+        }
+      }
+    }
+
+    header(out, "fun_requests_in_flight", "gauge", "Requests that are being handled right now");
+    for (Route route : sorted.values()) {
+      sample(out, "fun_requests_in_flight", route, route.inFlight.sum());
+    }
+
+    header(out, "fun_response_bytes_total", "counter", "Bytes of response bodies by route");
+    for (Route route : sorted.values()) {
+      sample(out, "fun_response_bytes_total", route, route.bytesOut.sum());
+    }
+
+    header(out, "fun_request_duration_seconds", "histogram", "Time spent in the route handlers");
+    Map<Route, long[]> snapshots = new HashMap<>();
+    for (Route route : sorted.values()) {
+      long[] counts = route.latency.snapshot();
+      snapshots.put(route, counts);
+      long total = 0;
+      int index = 0;
+      for (double bucket : BUCKETS) {
+        long limit = (long) (bucket * 1_000_000);
+        while (index < counts.length && Histogram.upperBound(index) <= limit) {
+          total += counts[index++];
+        }
+        out.append("fun_request_duration_seconds_bucket{route=\"").append(label(route.name)).append("\",le=\"")
+            .append(number(bucket)).append("\"} ").append(total).append('\n');
+      }
+      while (index < counts.length) {
+        total += counts[index++];
+      }
+      out.append("fun_request_duration_seconds_bucket{route=\"").append(label(route.name))
+          .append("\",le=\"+Inf\"} ").append(total).append('\n');
+      out.append("fun_request_duration_seconds_sum{route=\"").append(label(route.name)).append("\"} ")
+          .append(number(route.latency.sumMicros() / 1e6)).append('\n');
+      out.append("fun_request_duration_seconds_count{route=\"").append(label(route.name)).append("\"} ")
+          .append(total).append('\n');
+    }
+
+    header(out, "fun_request_duration_quantile_seconds", "gauge",
+        "Latency quantiles from the histogram, about 6% precision");
+    for (Route route : sorted.values()) {
+      long[] counts = snapshots.get(route);
+      long total = 0;
+      for (long count : counts) {
+        total += count;
+      }
+      if (total == 0) {
+        continue;
+      }
+      for (double quantile : QUANTILES) {
+        out.append("fun_request_duration_quantile_seconds{route=\"").append(label(route.name))
+            .append("\",quantile=\"").append(number(quantile)).append("\"} ")
+            .append(number(Histogram.quantile(counts, total, quantile) / 1e6)).append('\n');
+      }
+    }
+
+    counter(out, "fun_connections_total", "Accepted connections", connections.sum());
+    counter(out, "fun_received_bytes_total", "Bytes of requests read", bytesIn.sum());
+    counter(out, "fun_sent_bytes_total", "Bytes of responses written, with headers", bytesOut.sum());
+
+    WorkerPool pool = workers;
+    if (pool != null) {
+      gauge(out, "fun_worker_queue_depth", "Tasks waiting for a worker", pool.queueDepth());
+      gauge(out, "fun_worker_active", "Workers running a task", pool.activeWorkers());
+      counter(out, "fun_worker_completed_total", "Tasks the workers finished", pool.completed());
+      counter(out, "fun_worker_rejected_total", "Tasks rejected because the queue was full", pool.rejected());
+    }
+    AccessLog log = accessLog;
+    if (log != null) {
+      counter(out, "fun_access_log_written_total", "Access log records written", log.written());
+      counter(out, "fun_access_log_dropped_total", "Access log records dropped, the ring was full", log.dropped());
+    }
+    AdmissionControl control = admission;
+    if (control != null) {
+      counter(out, "fun_rate_limited_total", "Requests answered with 429, the client sent too many",
+          control.limited());
+      counter(out, "fun_shed_total", "Requests answered with 503, too many were running", control.shed());
+      gauge(out, "fun_admitted_in_flight", "Admitted requests that are not answered yet", control.inFlight());
+      gauge(out, "fun_rate_limit_clients", "Clients with a token bucket", control.clients());
+    }
+    BufferPool bufferPool = buffers;
+    if (bufferPool != null) {
+      header(out, "fun_buffers_acquired_total", "counter", "Socket buffers handed out by where they came from");
+      out.append("fun_buffers_acquired_total{source=\"thread\"} ").append(bufferPool.localHits()).append('\n');
+      out.append("fun_buffers_acquired_total{source=\"shared\"} ").append(bufferPool.sharedHits()).append('\n');
+      out.append("fun_buffers_acquired_total{source=\"allocated\"} ").append(bufferPool.misses()).append('\n');
+      out.append("fun_buffers_acquired_total{source=\"heap\"} ").append(bufferPool.unpooled()).append('\n');
+      header(out, "fun_buffers_hit_ratio", "gauge", "Share of pooled buffers that did not have to be allocated");
+      out.append("fun_buffers_hit_ratio ").append(number(bufferPool.hitRate())).append('\n');
+      gauge(out, "fun_buffers_outstanding", "Buffers in use, acquired and not released yet", bufferPool.outstanding());
+      counter(out, "fun_buffers_leaked_total", "Buffers collected without release (with -Dbuffers.leakDetection)",
+          bufferPool.leaks());
+    }
+    GitHubClient client = github;
+    if (client != null) {
+      counter(out, "fun_github_cache_hits_total", "GitHub answers served from the cache", client.hits());
+      counter(out, "fun_github_coalesced_total", "GitHub requests that waited for a running fetch",
+          client.coalesced());
+      counter(out, "fun_github_upstream_total", "Requests sent to GitHub", client.upstreamCalls());
+      counter(out, "fun_github_revalidated_total", "GitHub answers revalidated with 304", client.revalidated());
+    }
+    return out.toString();
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, Route route, long value) {
+    out.append(name).append("{route=\"").append(label(route.name)).append("\"} ").append(value).append('\n');
+  }
+
+  private static void counter(StringBuilder out, String name, String help, long value) {
+    header(out, name, "counter", help);
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void gauge(StringBuilder out, String name, String help, long value) {
+    header(out, name, "gauge", help);
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  /** "" is the root page, shown as "/" */
+  private static String label(String route) {
+    return route.isEmpty() ? "/" : route;
+  }
+
+  private static String number(double value) {
+    // 0.00025 and not 2.5E-4, 1 and not 1.0
+    return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+  }
+}
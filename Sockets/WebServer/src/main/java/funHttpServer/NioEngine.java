@@ -0,0 +1,585 @@
+/*
+Event loop engine for the fun web server.
+
+Instead of accepting one socket at a time and serving it to completion, this
+engine uses java.nio Selectors. One acceptor thread hands new connections
+round-robin to a small fixed set of event loop threads. Each event loop reads
+and writes its connections without blocking, so a single thread can keep
+thousands of sockets open at the same time.
+
+Building the response (createResponse in WebServer) can block, e.g. the
+/github route waits for the GitHub API. That work is therefore handed to a
+separate handler pool and the finished bytes are passed back to the event
+loop, which then writes them out. The event loops themselves never block.
+
+Connections are kept open (HTTP/1.1 keep-alive, see HttpFraming). Only one
+request per connection is handed to the handlers at a time, pipelined requests
+wait in the read buffer so the answers go out in the order they were sent.
+
+A streamed response (Response.stream) is not finished when the handler
+returns. The handler thread writes its chunks into a small queue of the
+connection (ChunkQueue) and the event loop sends them as they come. When the
+queue is full the handler thread waits, so a slow client never makes us hold
+more than a few chunks of its response in memory.
+
+On shutdown (see GracefulShutdown) the acceptor closes the listener, the
+event loops close the connections that are idle and every other one after its
+current response.
+
+The read buffer of every connection, the framed responses and the chunks all
+are direct buffers from the server's BufferPool. Whoever drops a buffer gives
+it back: write() once it is sent, close() for everything a connection still
+holds.
+*/
+
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+class NioEngine {
+
+  /** chunks of a streamed response that may wait for the client */
+  static final int MAX_QUEUED_CHUNKS = 4;
+
+  private final WebServer server;
+  private final int port;
+  private final EventLoop[] loops;
+  private final WorkerPool handlers;
+
+  /**
+   * Creates the engine, nothing is opened until run() is called
+   * @param server the web server whose createResponse builds the responses
+   * @param port to listen on
+   * @param loopCount number of event loop threads
+   * @param handlers workers that run createResponse
+   */
+  public NioEngine(WebServer server, int port, int loopCount, WorkerPool handlers) {
+    this.server = server;
+    this.port = port;
+    this.loops = new EventLoop[loopCount];
+    this.handlers = handlers;
+    server.metrics.workers(handlers);
+  }
+
+  /**
+   * Opens the server channel, starts the event loops and accepts connections
+   * on the calling thread forever
+   */
+  public void run() throws IOException {
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop(i);
+      Thread thread = new Thread(loops[i], "nio-loop-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    GracefulShutdown shutdown = server.shutdown;
+    try (ServerSocketChannel serverChannel = GracefulShutdown.listenChannel(port, 1024);
+        Selector acceptSelector = Selector.open()) {
+      serverChannel.configureBlocking(false);
+      serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+      System.out.println("NIO engine listening on port " + port + " with " + loops.length + " event loops and "
+          + handlers.mode() + " workers");
+      server.accessLog.closeManually();
+      shutdown.install(port, this::closeIdleConnections, server.accessLog::close);
+
+      int next = 0;
+      while (shutdown.accepting()) {
+        // wakes up now and then to notice a shutdown
+        if (acceptSelector.select(GracefulShutdown.ACCEPT_TIMEOUT_MS) == 0) {
+          if (shutdown.draining()) {
+            break; // nothing is waiting anymore
+          }
+          continue;
+        }
+        acceptSelector.selectedKeys().clear();
+
+        // accept everything that is waiting and spread it over the loops
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+          client.configureBlocking(false);
+          client.socket().setTcpNoDelay(true);
+          shutdown.connectionOpened();
+          loops[next].register(client);
+          next = (next + 1) % loops.length;
+        }
+      }
+    } finally {
+      shutdown.listenerClosed();
+      handlers.shutdown();
+    }
+  }
+
+  /** called by the shutdown hook, the loops close their idle connections themselves */
+  private void closeIdleConnections() {
+    for (EventLoop loop : loops) {
+      loop.selector.wakeup();
+    }
+  }
+
+  /**
+   * State kept for every open connection
+   */
+  private static class Connection {
+    final SocketChannel channel;
+    final String client;
+    // from the pool, released by close()
+    ByteBuffer in;
+    // continues where it stopped when more bytes of a header arrive
+    final RequestParser parser = new RequestParser(HttpFraming.MAX_HEADER_SIZE);
+    // set by a handler thread, sent and released by the event loop
+    volatile ByteBuffer out = null;
+    // set while a streamed response is being written
+    volatile ChunkQueue stream = null;
+    // a request of this connection is with the handlers or being written
+    boolean busy = false;
+    volatile boolean closeAfterWrite = false;
+    int requests = 0;
+    long lastActive = System.currentTimeMillis();
+    boolean closed = false;
+
+    Connection(SocketChannel channel, ByteBuffer in) {
+      this.channel = channel;
+      this.in = in;
+      InetAddress address = channel.socket().getInetAddress();
+      // null if the client is already gone
+      this.client = address == null ? "-" : address.getHostAddress();
+    }
+  }
+
+  /**
+   * Where the handler thread writes a streamed response. Every write is one
+   * piece for the event loop (ChunkedOutputStream writes whole chunks), copied
+   * into a buffer of the pool.
+   */
+  private static final class ChunkQueue extends OutputStream {
+    private final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<>(MAX_QUEUED_CHUNKS);
+    private final SocketChannel channel;
+    private final BufferPool buffers;
+    private final Runnable wakeUp;
+    // set after the last chunk was added
+    volatile boolean done;
+
+    /**
+     * @param wakeUp tells the event loop that there is something to write
+     */
+    ChunkQueue(SocketChannel channel, BufferPool buffers, Runnable wakeUp) {
+      this.channel = channel;
+      this.buffers = buffers;
+      this.wakeUp = wakeUp;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      ByteBuffer chunk = buffers.acquire(length);
+      chunk.put(bytes, offset, length).flip();
+      long waited = 0;
+      try {
+        // wait while the client is slow, give up if it is gone or stopped reading
+        while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+          waited += 100;
+          if (!channel.isOpen() || waited > HttpFraming.IDLE_TIMEOUT_MS) {
+            buffers.release(chunk);
+            throw new IOException("Client does not read the response");
+          }
+        }
+      } catch (InterruptedException e) {
+        buffers.release(chunk);
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while streaming");
+      }
+      if (!channel.isOpen()) {
+        // closed while we waited, nobody is going to send what is queued
+        releaseAll();
+        throw new IOException("Client closed the connection");
+      }
+      wakeUp.run();
+    }
+
+    /** called by the event loop */
+    ByteBuffer poll() {
+      return chunks.poll();
+    }
+
+    /**
+     * Gives the queued chunks back to the pool. Both threads may call it, every
+     * chunk is only polled once.
+     */
+    void releaseAll() {
+      ByteBuffer chunk;
+      while ((chunk = chunks.poll()) != null) {
+        buffers.release(chunk);
+      }
+    }
+
+    /** no more chunks will come */
+    void finish() {
+      done = true;
+      wakeUp.run();
+    }
+  }
+
+  /**
+   * One event loop thread with its own selector
+   */
+  private class EventLoop implements Runnable {
+    private final int id;
+    private final Selector selector;
+    // channels accepted by the acceptor that still need to be registered
+    private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    // connections whose response was built by a handler thread
+    private final Queue<Connection> finished = new ConcurrentLinkedQueue<>();
+
+    EventLoop(int id) throws IOException {
+      this.id = id;
+      this.selector = Selector.open();
+    }
+
+    /** called from the acceptor thread */
+    void register(SocketChannel channel) {
+      newChannels.add(channel);
+      selector.wakeup();
+    }
+
+    /** called from a handler thread once the response is ready */
+    void complete(Connection conn, ByteBuffer response) {
+      conn.out = response;
+      finished.add(conn);
+      selector.wakeup();
+    }
+
+    /** called from a handler thread when there is a new chunk to write */
+    void resume(Connection conn) {
+      finished.add(conn);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      long lastSweep = System.currentTimeMillis();
+      while (true) {
+        try {
+          selector.select(1000);
+          registerNewChannels();
+          startWrites();
+          if (server.shutdown.draining()) {
+            closeWaitingConnections();
+          }
+          if (System.currentTimeMillis() - lastSweep >= 1000) {
+            closeIdleConnections();
+            lastSweep = System.currentTimeMillis();
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection conn = (Connection) key.attachment();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                read(key, conn);
+              }
+              if (key.isValid() && key.isWritable()) {
+                write(key, conn);
+              }
+            } catch (IOException e) {
+              close(key);
+            }
+          }
+        } catch (IOException e) {
+          System.out.println("Event loop " + id + " error: " + e.getMessage());
+        }
+      }
+    }
+
+    private void registerNewChannels() {
+      SocketChannel channel;
+      while ((channel = newChannels.poll()) != null) {
+        Connection conn = new Connection(channel, server.buffers.acquire(HttpFraming.MAX_HEADER_SIZE));
+        try {
+          channel.register(selector, SelectionKey.OP_READ, conn);
+          server.metrics.connectionOpened();
+        } catch (ClosedChannelException e) {
+          // client went away before we got to it
+          server.buffers.release(conn.in);
+          server.shutdown.connectionClosed();
+        }
+      }
+    }
+
+    private void startWrites() {
+      Connection conn;
+      while ((conn = finished.poll()) != null) {
+        SelectionKey key = conn.channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+          key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+          // closed while the handler worked, the response has nowhere to go
+          release(conn);
+        }
+      }
+    }
+
+    private void closeIdleConnections() {
+      long now = System.currentTimeMillis();
+      for (SelectionKey key : selector.keys()) {
+        Connection conn = (Connection) key.attachment();
+        // a streamed response to a client that stopped reading counts as idle too
+        if (key.isValid() && (!conn.busy || conn.stream != null)
+            && now - conn.lastActive > HttpFraming.IDLE_TIMEOUT_MS) {
+          close(key);
+        }
+      }
+    }
+
+    /**
+     * While shutting down: keep-alive connections that wait for their next
+     * request are closed. New connections may have sent their first request
+     * already, they are answered (and closed afterwards, see write).
+     */
+    private void closeWaitingConnections() {
+      for (SelectionKey key : selector.keys()) {
+        Connection conn = (Connection) key.attachment();
+        if (key.isValid() && !conn.busy && conn.requests > 0 && conn.in.position() == 0) {
+          close(key);
+        }
+      }
+    }
+
+    private void read(SelectionKey key, Connection conn) throws IOException {
+      if (!conn.in.hasRemaining()) {
+        // a request plus its body bigger than MAX_HEADER_SIZE, see dispatch
+        close(key);
+        return;
+      }
+
+      if (conn.channel.read(conn.in) == -1) {
+        close(key);
+        return;
+      }
+      conn.lastActive = System.currentTimeMillis();
+      dispatch(key, conn);
+    }
+
+    /**
+     * Hands the next complete request in the read buffer to the handlers,
+     * if there is one and the connection is not busy with an earlier request
+     */
+    private void dispatch(SelectionKey key, Connection conn) {
+      if (conn.busy) {
+        return;
+      }
+      RequestParser.Result result = conn.parser.parse(conn.in);
+      if (result == RequestParser.Result.INCOMPLETE) {
+        return; // wait for the rest of the header
+      }
+      if (result != RequestParser.Result.DONE) {
+        byte[] error = result == RequestParser.Result.TOO_LARGE ? HttpFraming.tooLarge()
+            : HttpFraming.frame("<html>Illegal request</html>".getBytes(), false);
+        server.accessLog.log(conn.client, null, HttpFraming.statusCode(error), error.length, 0);
+        reject(key, conn, error);
+        return;
+      }
+      int requestEnd = conn.parser.requestEnd();
+      if (requestEnd > HttpFraming.MAX_HEADER_SIZE) {
+        close(key); // we do not accept big request bodies
+        return;
+      }
+      if (requestEnd > conn.in.position()) {
+        return; // wait for the rest of the body
+      }
+
+      long start = System.nanoTime();
+      // the handler runs on another thread, take what it needs before the buffer is reused
+      Request request = conn.parser.isGet() ? conn.parser.toRequest() : null;
+      server.metrics.bytesIn(requestEnd);
+      // while shutting down this is the last request of the connection
+      boolean keepAlive = conn.parser.keepAlive() && conn.requests + 1 < HttpFraming.MAX_REQUESTS
+          && !server.shutdown.draining();
+      boolean chunked = conn.parser.isHttp11();
+
+      // remove this request from the buffer, pipelined requests move to the front
+      conn.in.flip();
+      conn.in.position(requestEnd);
+      conn.in.compact();
+      conn.parser.reset();
+
+      conn.busy = true;
+      conn.requests++;
+
+      // too many requests from this client or in total: answer right here, no worker needed
+      byte[] refused = server.admission.admit(conn.client);
+      if (refused != null) {
+        conn.closeAfterWrite = !keepAlive;
+        conn.out = HttpFraming.frame(refused, keepAlive, server.buffers);
+        server.metrics.bytesOut(conn.out.remaining());
+        server.accessLog.log(conn.client, request == null ? null : request.target(),
+            HttpFraming.statusCode(refused), conn.out.remaining(), System.nanoTime() - start);
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+
+      // stop reading while the handler works on this request
+      key.interestOps(0);
+      boolean accepted = handlers.submit(() -> {
+        try {
+          handle(conn, request, keepAlive, chunked, start);
+        } finally {
+          server.admission.release();
+        }
+      });
+      if (!accepted) {
+        server.admission.release();
+        // all workers busy and the queue is full
+        byte[] busy = HttpFraming.busy();
+        server.accessLog.log(conn.client, request == null ? null : request.target(), 503, busy.length, 0);
+        reject(key, conn, busy);
+      }
+    }
+
+    /**
+     * Runs on a handler thread: builds the response and hands it to the event loop
+     */
+    private void handle(Connection conn, Request request, boolean keepAlive, boolean chunked, long start) {
+      byte[] response;
+      try {
+        Response built = request == null ? null : server.respond(request);
+        if (built != null && built.isStreamed() && chunked) {
+          stream(conn, built, keepAlive, request, start);
+          return;
+        }
+        response = built == null ? WebServer.illegalRequest() : built.toBytes();
+      } catch (Exception e) {
+        e.printStackTrace();
+        response = WebServer.errorPage(e);
+      }
+      boolean framable = HttpFraming.hasStatusLine(response);
+      conn.closeAfterWrite = !keepAlive || !framable;
+      ByteBuffer framed = HttpFraming.frame(response, !conn.closeAfterWrite, server.buffers);
+      server.metrics.bytesOut(framed.remaining());
+      server.accessLog.log(conn.client, request == null ? null : request.target(),
+          framable ? HttpFraming.statusCode(response) : 400, framed.remaining(), System.nanoTime() - start);
+      complete(conn, framed);
+    }
+
+    /**
+     * Runs on a handler thread: writes a streamed response into the connection's
+     * ChunkQueue, the event loop sends the chunks while more are made
+     */
+    private void stream(Connection conn, Response response, boolean keepAlive, Request request, long start) {
+      ChunkQueue queue = new ChunkQueue(conn.channel, server.buffers, () -> resume(conn));
+      conn.closeAfterWrite = !keepAlive;
+      conn.stream = queue;
+      long written = 0;
+      try {
+        written = HttpFraming.writeChunked(response, keepAlive, queue);
+      } catch (IOException e) {
+        // the body is incomplete, closing is the only way to tell the client
+        conn.closeAfterWrite = true;
+      } finally {
+        queue.finish();
+      }
+      server.metrics.bytesOut(written);
+      server.accessLog.log(conn.client, request.target(), response.status(), written,
+          System.nanoTime() - start);
+    }
+
+    /**
+     * Writes a framed error answer and closes the connection afterwards
+     */
+    private void reject(SelectionKey key, Connection conn, byte[] response) {
+      conn.busy = true;
+      conn.closeAfterWrite = true;
+      conn.out = ByteBuffer.wrap(response);
+      key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void write(SelectionKey key, Connection conn) throws IOException {
+      while (true) {
+        if (conn.out == null && conn.stream != null) {
+          // read done first: if it is set, every chunk is in the queue already
+          boolean done = conn.stream.done;
+          conn.out = conn.stream.poll();
+          if (conn.out == null) {
+            if (!done) {
+              key.interestOps(0); // the handler thread wakes us up with the next chunk
+              return;
+            }
+            conn.stream = null;
+          }
+        }
+        if (conn.out == null) {
+          break; // the response is out
+        }
+        if (conn.channel.write(conn.out) > 0) {
+          conn.lastActive = System.currentTimeMillis();
+        }
+        if (conn.out.hasRemaining()) {
+          return;
+        }
+        server.buffers.release(conn.out);
+        conn.out = null;
+      }
+      conn.lastActive = System.currentTimeMillis();
+      if (conn.closeAfterWrite || server.shutdown.draining()) {
+        close(key);
+        return;
+      }
+      conn.busy = false;
+      key.interestOps(SelectionKey.OP_READ);
+      // the client may have pipelined more requests that are already buffered
+      dispatch(key, conn);
+    }
+
+    private void close(SelectionKey key) {
+      key.cancel();
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+        // nothing left to do
+      }
+      Connection conn = (Connection) key.attachment();
+      release(conn);
+      if (!conn.closed) {
+        conn.closed = true;
+        server.shutdown.connectionClosed();
+      }
+    }
+
+    /**
+     * Gives the buffers of a closed connection back to the pool. A handler may
+     * still be streaming into conn.stream, it releases what it adds after this
+     * itself (ChunkQueue.write checks the channel).
+     */
+    private void release(Connection conn) {
+      server.buffers.release(conn.in);
+      conn.in = null;
+      server.buffers.release(conn.out);
+      conn.out = null;
+      ChunkQueue stream = conn.stream;
+      if (stream != null) {
+        stream.releaseAll();
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package funHttpServer;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A parsed GET request: the target after "GET /" (e.g. "multiply?num1=3&num2=4")
+ * and the request headers. The route name is the first path segment, which is
+ * what the Router uses to find the handler.
+ */
+final class Request {
+
+  private final String target;
+  private final String path;
+  private final String query;
+  private final String route;
+  private final Map<String, String> headers;
+
+  /**
+   * @param target everything between "GET /" and " HTTP/1.1"
+   * @param headers request headers, names in lower case
+   */
+  Request(String target, Map<String, String> headers) {
+    this.target = target;
+    this.headers = headers;
+
+    int question = target.indexOf('?');
+    this.path = question == -1 ? target : target.substring(0, question);
+    this.query = question == -1 ? "" : target.substring(question + 1);
+
+    // first path segment, "file/www/root.html" -> "file", "multiply" -> "multiply"
+    int slash = path.indexOf('/');
+    this.route = (slash == -1 ? path : path.substring(0, slash)).toLowerCase();
+  }
+
+  /**
+   * Request without headers, handy to call a handler directly (e.g. in a benchmark)
+   * @param target e.g. "multiply?num1=3&num2=4"
+   */
+  static Request of(String target) {
+    return new Request(target, new HashMap<>());
+  }
+
+  /** everything between "GET /" and " HTTP/1.1" */
+  String target() {
+    return target;
+  }
+
+  /** the target without the query, e.g. "file/www/root.html" */
+  String path() {
+    return path;
+  }
+
+  /** everything after the "?", empty if there is none */
+  String query() {
+    return query;
+  }
+
+  /** name of the route in lower case, the first path segment */
+  String route() {
+    return route;
+  }
+
+  /**
+   * Value of a query parameter, e.g. "3" for param("num1") and "multiply?num1=3&num2=4".
+   * Walks over the query instead of splitting it into a map like splitQuery does,
+   * only the value that is asked for becomes a String and only "%xx" or "+" is decoded.
+   * @param name parameter name as it is in the query (names are not decoded)
+   * @return the value, "" for "name=" or "name", null if the parameter is not there
+   */
+  String param(String name) {
+    int start = 0;
+    while (start < query.length()) {
+      int end = query.indexOf('&', start);
+      if (end == -1) {
+        end = query.length();
+      }
+      int equals = query.indexOf('=', start);
+      if (equals == -1 || equals > end) {
+        equals = end;
+      }
+      if (equals - start == name.length() && query.startsWith(name, start)) {
+        String value = equals == end ? "" : query.substring(equals + 1, end);
+        if (value.indexOf('%') == -1 && value.indexOf('+') == -1) {
+          return value;
+        }
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+      }
+      start = end + 1;
+    }
+    return null;
+  }
+
+  /** the path after the route name, e.g. "www/root.html" for "file/www/root.html" */
+  String rest() {
+    return path.length() > route.length() ? path.substring(route.length() + 1) : "";
+  }
+
+  /**
+   * @param name header name, case does not matter
+   * @return the header value or null
+   */
+  String header(String name) {
+    return headers.get(name.toLowerCase());
+  }
+
+  Map<String, String> headers() {
+    return Collections.unmodifiableMap(headers);
+  }
+}
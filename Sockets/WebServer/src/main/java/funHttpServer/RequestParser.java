@@ -0,0 +1,331 @@
+package funHttpServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses an HTTP request header straight from the bytes in a ByteBuffer.
+ *
+ * The old way (LegacyRequestReader in the benchmarks) wraps the bytes in a
+ * BufferedReader, makes a String of every header line and splits it again. This parser only walks over
+ * the bytes and remembers where things are (start and end offsets). Nothing is
+ * allocated while parsing, Strings are only made for the parts a handler really
+ * uses (the target and the few headers in KNOWN_HEADERS), everything else is
+ * skipped.
+ *
+ * It is incremental: call parse() whenever more bytes arrived in the buffer, it
+ * continues where it stopped last time. One parser is kept per connection and
+ * reset() after every request.
+ *
+ * The buffer is used the way a channel fills it: the request starts at index 0
+ * and the bytes read so far end at buffer.position(). It may be a heap buffer or
+ * a direct one from the BufferPool, the bytes are read with absolute get(i).
+ */
+final class RequestParser {
+
+  /** what parse() found */
+  enum Result {
+    /** the header is not complete yet, read more and call parse() again */
+    INCOMPLETE,
+    /** the whole header is there */
+    DONE,
+    /** not a valid request line or header */
+    BAD_REQUEST,
+    /** no end of the header within maxHeaderSize bytes */
+    TOO_LARGE
+  }
+
+  /** the only headers we keep, lower case, the index is the header id */
+  static final String[] KNOWN_HEADERS = { "host", "connection", "content-length", "accept-encoding",
+      "if-none-match", "if-modified-since", "range", "if-range" };
+
+  private static final int CONNECTION = 1;
+  private static final int CONTENT_LENGTH = 2;
+
+  private static final byte[][] KNOWN_BYTES = new byte[KNOWN_HEADERS.length][];
+  static {
+    for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+      KNOWN_BYTES[i] = KNOWN_HEADERS[i].getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+
+  private static final byte[] GET = { 'G', 'E', 'T' };
+  private static final byte[] HTTP_1 = { 'H', 'T', 'T', 'P', '/', '1', '.' };
+  private static final byte[] CLOSE = { 'c', 'l', 'o', 's', 'e' };
+  private static final byte[] KEEP_ALIVE = { 'k', 'e', 'e', 'p', '-', 'a', 'l', 'i', 'v', 'e' };
+
+  private final int maxHeaderSize;
+
+  // the buffer that was parsed last
+  private ByteBuffer data;
+  // everything before this was looked at already
+  private int scanned;
+  private int lineStart;
+  private boolean requestLineDone;
+
+  private int methodEnd;
+  private int targetStart;
+  private int targetEnd;
+  private boolean http11;
+
+  private final int[] valueStart = new int[KNOWN_HEADERS.length];
+  private final int[] valueEnd = new int[KNOWN_HEADERS.length];
+  private int contentLength;
+  private boolean connectionClose;
+  private boolean connectionKeepAlive;
+  private int headerEnd;
+
+  /**
+   * @param maxHeaderSize longest header we accept, see HttpFraming.MAX_HEADER_SIZE
+   */
+  RequestParser(int maxHeaderSize) {
+    this.maxHeaderSize = maxHeaderSize;
+    reset();
+  }
+
+  /**
+   * Forgets the last request, the next one has to start at index 0 of the buffer again
+   */
+  void reset() {
+    data = null;
+    scanned = 0;
+    lineStart = 0;
+    requestLineDone = false;
+    methodEnd = targetStart = targetEnd = 0;
+    http11 = false;
+    for (int i = 0; i < valueStart.length; i++) {
+      valueStart[i] = -1;
+      valueEnd[i] = -1;
+    }
+    contentLength = 0;
+    connectionClose = false;
+    connectionKeepAlive = false;
+    headerEnd = -1;
+  }
+
+  /**
+   * Looks at the bytes that arrived since the last call
+   * @param buffer buffer with the request from index 0 up to its position
+   */
+  Result parse(ByteBuffer buffer) {
+    if (headerEnd != -1) {
+      return Result.DONE;
+    }
+    data = buffer;
+    int end = Math.min(buffer.position(), maxHeaderSize);
+
+    for (int i = scanned; i < end; i++) {
+      if (data.get(i) != '\n') {
+        continue;
+      }
+      // one complete line from lineStart to i, without the "\r\n"
+      int lineEnd = i > lineStart && data.get(i - 1) == '\r' ? i - 1 : i;
+      boolean ok;
+      if (!requestLineDone) {
+        ok = parseRequestLine(lineStart, lineEnd);
+        requestLineDone = true;
+      } else if (lineEnd == lineStart) {
+        // empty line, the header is complete
+        headerEnd = i + 1;
+        scanned = headerEnd;
+        return Result.DONE;
+      } else {
+        ok = parseHeaderLine(lineStart, lineEnd);
+      }
+      if (!ok) {
+        return Result.BAD_REQUEST;
+      }
+      lineStart = i + 1;
+    }
+    scanned = end;
+    return end >= maxHeaderSize ? Result.TOO_LARGE : Result.INCOMPLETE;
+  }
+
+  /**
+   * "GET /multiply?num1=3&num2=4 HTTP/1.1"
+   */
+  private boolean parseRequestLine(int start, int end) {
+    int firstSpace = indexOf(' ', start, end);
+    int secondSpace = firstSpace == -1 ? -1 : indexOf(' ', firstSpace + 1, end);
+    if (firstSpace <= start || secondSpace == -1 || data.get(firstSpace + 1) != '/') {
+      return false;
+    }
+    if (!regionMatches(secondSpace + 1, end, HTTP_1, false) || end - secondSpace - 1 != HTTP_1.length + 1) {
+      return false;
+    }
+    methodEnd = firstSpace;
+    // the target without the leading "/", like createResponse does
+    targetStart = firstSpace + 2;
+    targetEnd = secondSpace;
+    http11 = data.get(end - 1) == '1';
+    return true;
+  }
+
+  /**
+   * "Name: value", only the names in KNOWN_HEADERS are kept
+   */
+  private boolean parseHeaderLine(int start, int end) {
+    int colon = indexOf(':', start, end);
+    if (colon <= start) {
+      return false;
+    }
+    int id = knownHeader(start, colon);
+    if (id == -1) {
+      return true;
+    }
+    int from = colon + 1;
+    int to = end;
+    while (from < to && (data.get(from) == ' ' || data.get(from) == '\t')) {
+      from++;
+    }
+    while (to > from && (data.get(to - 1) == ' ' || data.get(to - 1) == '\t')) {
+      to--;
+    }
+    valueStart[id] = from;
+    valueEnd[id] = to;
+
+    if (id == CONTENT_LENGTH) {
+      // digits only, no Integer.parseInt(new String(...))
+      if (from == to || to - from > 9) {
+        return false;
+      }
+      int value = 0;
+      for (int i = from; i < to; i++) {
+        if (data.get(i) < '0' || data.get(i) > '9') {
+          return false;
+        }
+        value = value * 10 + (data.get(i) - '0');
+      }
+      contentLength = value;
+    } else if (id == CONNECTION) {
+      connectionClose = contains(from, to, CLOSE);
+      connectionKeepAlive = contains(from, to, KEEP_ALIVE);
+    }
+    return true;
+  }
+
+  private int knownHeader(int start, int end) {
+    while (end > start && data.get(end - 1) == ' ') {
+      end--;
+    }
+    for (int id = 0; id < KNOWN_BYTES.length; id++) {
+      if (end - start == KNOWN_BYTES[id].length && regionMatches(start, end, KNOWN_BYTES[id], true)) {
+        return id;
+      }
+    }
+    return -1;
+  }
+
+  /** true if the bytes from start on begin with expected, ignoreCase expects lower case */
+  private boolean regionMatches(int start, int end, byte[] expected, boolean ignoreCase) {
+    if (end - start < expected.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      byte b = data.get(start + i);
+      if (ignoreCase && b >= 'A' && b <= 'Z') {
+        b += 'a' - 'A';
+      }
+      if (b != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean contains(int start, int end, byte[] token) {
+    for (int i = start; i <= end - token.length; i++) {
+      if (regionMatches(i, end, token, true)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int indexOf(char c, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (data.get(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** true for GET requests, the only method the server answers */
+  boolean isGet() {
+    return methodEnd == GET.length && regionMatches(0, methodEnd, GET, false);
+  }
+
+  /** index right after the empty line that ends the header */
+  int headerEnd() {
+    return headerEnd;
+  }
+
+  /** value of Content-Length, 0 if there is none */
+  int contentLength() {
+    return contentLength;
+  }
+
+  /** index right after the body, where a pipelined request would start */
+  int requestEnd() {
+    return headerEnd + contentLength;
+  }
+
+  /**
+   * HTTP/1.1 keeps the connection open unless the client says close,
+   * HTTP/1.0 only if it asks for keep-alive
+   */
+  boolean keepAlive() {
+    return http11 ? !connectionClose : connectionKeepAlive;
+  }
+
+  /** true for HTTP/1.1, which can take chunked responses */
+  boolean isHttp11() {
+    return http11;
+  }
+
+  /** everything between "GET /" and " HTTP/1.1" */
+  String target() {
+    return string(targetStart, targetEnd, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param name one of KNOWN_HEADERS
+   * @return the value or null if the request did not have it
+   */
+  String header(String name) {
+    for (int id = 0; id < KNOWN_HEADERS.length; id++) {
+      if (KNOWN_HEADERS[id].equals(name)) {
+        return valueStart[id] == -1 ? null
+            : string(valueStart[id], valueEnd[id], StandardCharsets.ISO_8859_1);
+      }
+    }
+    return null;
+  }
+
+  /** a direct buffer has no array, its bytes are copied out first */
+  private String string(int start, int end, Charset charset) {
+    if (data.hasArray()) {
+      return new String(data.array(), data.arrayOffset() + start, end - start, charset);
+    }
+    byte[] bytes = new byte[end - start];
+    data.get(start, bytes);
+    return new String(bytes, charset);
+  }
+
+  /**
+   * The Request the router works with, only the headers that were sent are copied
+   */
+  Request toRequest() {
+    Map<String, String> headers = new HashMap<>();
+    for (int id = 0; id < KNOWN_HEADERS.length; id++) {
+      if (valueStart[id] != -1) {
+        headers.put(KNOWN_HEADERS[id], string(valueStart[id], valueEnd[id], StandardCharsets.ISO_8859_1));
+      }
+    }
+    return new Request(target(), headers);
+  }
+}
@@ -0,0 +1,191 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The answer of a route handler: status, content type, optional extra headers
+ * and the body. toBytes() produces the same format createResponse always returned
+ * (and remembers it, so a cached response is only encoded once):
+ *
+ * HTTP/1.1 200 OK
+ * Content-Type: text/html; charset=utf-8
+ *
+ * body
+ *
+ * A streamed response (see stream()) has no body array. Its BodyWriter writes
+ * the body piece by piece while the engine sends it to the client in chunks
+ * (Transfer-Encoding: chunked), so a big page never has to be in memory as a
+ * whole and the client gets the first bytes before the last ones are made.
+ */
+final class Response {
+
+  /**
+   * Produces the body of a streamed response
+   */
+  @FunctionalInterface
+  interface BodyWriter {
+    /**
+     * @param out where the body goes, flush() sends what was written so far
+     *     right away. The engine finishes the stream when this returns.
+     */
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  private final int status;
+  private final String reason;
+  private final String contentType;
+  private final Map<String, String> headers = new LinkedHashMap<>();
+  private final byte[] body;
+  private final BodyWriter writer;
+  private byte[] encoded;
+
+  /**
+   * @param contentType may be null for responses without a body (e.g. 304)
+   */
+  Response(int status, String reason, String contentType, byte[] body) {
+    this.status = status;
+    this.reason = reason;
+    this.contentType = contentType;
+    this.body = body;
+    this.writer = null;
+  }
+
+  private Response(int status, String reason, String contentType, BodyWriter writer) {
+    this.status = status;
+    this.reason = reason;
+    this.contentType = contentType;
+    this.body = null;
+    this.writer = writer;
+  }
+
+  /**
+   * Response whose body is written while it is sent
+   * @param writer called once by the engine after the headers are sent
+   */
+  static Response stream(int status, String reason, String contentType, BodyWriter writer) {
+    return new Response(status, reason, contentType, writer);
+  }
+
+  /**
+   * 200 OK with an html body
+   */
+  static Response ok(String body) {
+    return html(200, "OK", body);
+  }
+
+  /**
+   * Html response with any status
+   * @param status e.g. 400
+   * @param reason e.g. "Bad Request"
+   * @param body html text
+   */
+  static Response html(int status, String reason, String body) {
+    return new Response(status, reason, "text/html; charset=utf-8", body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * 400 Bad Request with an html message
+   */
+  static Response badRequest(String body) {
+    return html(400, "Bad Request", body);
+  }
+
+  /**
+   * Adds an extra header line
+   * @return this response so calls can be chained
+   */
+  Response header(String name, String value) {
+    headers.put(name, value);
+    encoded = null;
+    return this;
+  }
+
+  /**
+   * @param name header name as it was added, e.g. "ETag"
+   * @return the value of an extra header or null
+   */
+  String header(String name) {
+    return headers.get(name);
+  }
+
+  /** the extra headers, without Content-Type */
+  Map<String, String> headers() {
+    return Collections.unmodifiableMap(headers);
+  }
+
+  int status() {
+    return status;
+  }
+
+  String reason() {
+    return reason;
+  }
+
+  String contentType() {
+    return contentType;
+  }
+
+  /** null for a streamed response */
+  byte[] body() {
+    return body;
+  }
+
+  /** true if the body is made by a BodyWriter while it is sent */
+  boolean isStreamed() {
+    return writer != null;
+  }
+
+  /**
+   * Writes the body, for a streamed response by running its BodyWriter
+   */
+  void writeBody(OutputStream out) throws IOException {
+    if (writer != null) {
+      writer.writeTo(out);
+    } else {
+      out.write(body);
+    }
+  }
+
+  /**
+   * @return status line, headers and the blank line, without the body
+   */
+  byte[] head() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("HTTP/1.1 ").append(status).append(" ").append(reason).append("\n");
+    if (contentType != null) {
+      builder.append("Content-Type: ").append(contentType).append("\n");
+    }
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      builder.append(header.getKey()).append(": ").append(header.getValue()).append("\n");
+    }
+    builder.append("\n");
+    return builder.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * A streamed response is written into memory here, for the places that need
+   * the whole answer at once (e.g. HTTP/1.0 clients, which do not know chunks)
+   * @return status line, headers, blank line and body
+   */
+  byte[] toBytes() throws IOException {
+    if (encoded != null) {
+      return encoded;
+    }
+    byte[] head = head();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(head.length + (body == null ? 8192 : body.length));
+    out.writeBytes(head);
+    writeBody(out);
+    if (writer != null) {
+      // the writer could give a different body next time, do not keep it
+      return out.toByteArray();
+    }
+    encoded = out.toByteArray();
+    return encoded;
+  }
+}
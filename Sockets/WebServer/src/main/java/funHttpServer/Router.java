@@ -0,0 +1,73 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the handler for a request. Instead of checking request.contains(...)
+ * for every route one after the other, the routes are stored in a HashMap keyed
+ * by the first path segment (the part before the first "/" or "?"). A lookup is
+ * one hash of that segment no matter how many routes there are, and something
+ * like "/file/multiply?" is a file request and never reaches multiply.
+ */
+final class Router {
+
+  /**
+   * Creates the response for one route
+   */
+  @FunctionalInterface
+  interface Handler {
+    Response handle(Request request) throws IOException;
+  }
+
+  private final Map<String, Handler> routes = new HashMap<>();
+  private final Handler notFound;
+
+  /**
+   * @param notFound handler for requests that match no route
+   */
+  Router(Handler notFound) {
+    this.notFound = notFound;
+  }
+
+  /**
+   * Registers a route
+   * @param name first path segment, e.g. "multiply" for /multiply?num1=3&num2=4, "" for /
+   * @param handler creates the response
+   * @return this router so calls can be chained
+   */
+  Router add(String name, Handler handler) {
+    routes.put(name.toLowerCase(), handler);
+    return this;
+  }
+
+  /**
+   * @return the names of all routes, in lower case
+   */
+  Set<String> names() {
+    return Collections.unmodifiableSet(routes.keySet());
+  }
+
+  /**
+   * @return the handler registered for the request's route or the notFound handler
+   */
+  Handler find(Request request) {
+    return routes.getOrDefault(request.route(), notFound);
+  }
+
+  /**
+   * Runs the handler for the request. Handlers that fail on bad input
+   * (e.g. a missing "=" in the query) answer with 400 instead of killing the thread.
+   */
+  Response route(Request request) throws IOException {
+    try {
+      return find(request).handle(request);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      return Response.badRequest("Could not handle your request: " + e.getMessage());
+    }
+  }
+}
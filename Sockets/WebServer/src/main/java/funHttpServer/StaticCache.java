@@ -0,0 +1,290 @@
+/*
+Cache for pages that are built from the files in www/.
+
+"/" reads www/root.html and fills in the ${links} template, "/random" reads
+www/index.html. Both only change when a file in www/ changes, so the finished
+response (status line, headers and body already encoded to bytes) is kept in
+memory and reused. A background thread watches www/ with a WatchService and
+throws the cache away as soon as anything in there is created, changed or
+deleted, the next request then renders the page again.
+
+Every cached page has a strong ETag (a hash of the body) and a Last-Modified
+date. Browsers send them back in If-None-Match / If-Modified-Since and get a
+"304 Not Modified" without a body when their copy is still current.
+
+Browsers that send "Accept-Encoding: gzip" (all of them do) get the page
+compressed. It is compressed once with the best level and kept next to the
+plain bytes, the compressed copies together may use at most
+MAX_COMPRESSED_BYTES. Over that limit pages are still compressed, just again
+for every request and with the faster default level.
+*/
+
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class StaticCache {
+
+  /**
+   * Builds the page when it is not cached
+   */
+  @FunctionalInterface
+  interface Renderer {
+    Response render() throws IOException;
+  }
+
+  /** how many bytes the gzip/deflate copies of all pages may use */
+  static final long MAX_COMPRESSED_BYTES = 4 * 1024 * 1024;
+
+  /**
+   * A page in one encoding and its 304 answer, both already encoded
+   */
+  private static final class Variant {
+    final Response ok;
+    final Response notModified;
+
+    Variant(Response ok, Response notModified) {
+      this.ok = ok;
+      this.notModified = notModified;
+    }
+  }
+
+  /**
+   * A rendered page, plain and the compressed copies made so far
+   */
+  private static final class Entry {
+    final String etag;
+    final Instant lastModified;
+    final Variant identity;
+    final boolean compressible;
+    final Map<String, Variant> compressed = new ConcurrentHashMap<>();
+
+    Entry(String etag, Instant lastModified, Variant identity, boolean compressible) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.identity = identity;
+      this.compressible = compressible;
+    }
+  }
+
+  private final Path directory;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  // bumped on every invalidation so a page rendered from old files is not cached
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLong compressedBytes = new AtomicLong();
+  private volatile boolean enabled;
+
+  /**
+   * Starts watching the directory, if that is not possible nothing is cached
+   * @param directory folder the cached pages are built from
+   */
+  StaticCache(Path directory) {
+    this.directory = directory;
+    this.enabled = startWatching();
+  }
+
+  /**
+   * Answers a request for a cached page
+   * @param key name of the page in the cache
+   * @param request used for If-None-Match, If-Modified-Since and Accept-Encoding
+   * @param renderer builds the page if it is not cached yet
+   * @return the cached page, a 304 or a freshly rendered page
+   */
+  Response respond(String key, Request request, Renderer renderer) throws IOException {
+    if (!enabled) {
+      return renderer.render();
+    }
+
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      long before = generation.get();
+      entry = render(renderer);
+      if (generation.get() == before) {
+        entries.put(key, entry);
+      }
+    }
+
+    String encoding = entry.compressible ? Compression.negotiate(request.header("Accept-Encoding")) : null;
+    Variant variant = encoding == null ? entry.identity : compressed(entry, encoding);
+    return isNotModified(entry, request) ? variant.notModified : variant.ok;
+  }
+
+  /**
+   * The page in gzip or deflate, compressed on first use and kept if there is room
+   */
+  private Variant compressed(Entry entry, String encoding) throws IOException {
+    Variant variant = entry.compressed.get(encoding);
+    if (variant != null) {
+      return variant;
+    }
+
+    boolean keep = compressedBytes.get() + entry.identity.ok.body().length <= MAX_COMPRESSED_BYTES;
+    int level = keep ? Compression.STATIC_LEVEL : Compression.DYNAMIC_LEVEL;
+    variant = variant(Compression.encode(entry.identity.ok, encoding, level));
+    if (keep && entry.compressed.putIfAbsent(encoding, variant) == null) {
+      compressedBytes.addAndGet(variant.ok.body().length);
+    }
+    return variant;
+  }
+
+  /**
+   * Drops all cached pages
+   */
+  void invalidate() {
+    generation.incrementAndGet();
+    entries.clear();
+    compressedBytes.set(0);
+  }
+
+  private Entry render(Renderer renderer) throws IOException {
+    Response page = renderer.render();
+    String etag = "\"" + hash(page.body()) + "\"";
+    Instant lastModified = newestModification();
+    boolean compressible = Compression.worthCompressing(page);
+
+    page.header("ETag", etag)
+        .header("Last-Modified", httpDate(lastModified))
+        .header("Cache-Control", "no-cache");
+    if (compressible) {
+      page.header("Vary", "Accept-Encoding");
+    }
+    return new Entry(etag, lastModified, variant(page), compressible);
+  }
+
+  /**
+   * Adds the matching 304 and encodes both, every request after this just reuses the bytes
+   */
+  private static Variant variant(Response page) throws IOException {
+    Response notModified = new Response(304, "Not Modified", null, new byte[0]);
+    for (String name : new String[] { "ETag", "Last-Modified", "Cache-Control", "Vary" }) {
+      if (page.header(name) != null) {
+        notModified.header(name, page.header(name));
+      }
+    }
+    page.toBytes();
+    notModified.toBytes();
+    return new Variant(page, notModified);
+  }
+
+  private static boolean isNotModified(Entry entry, Request request) {
+    String ifNoneMatch = request.header("If-None-Match");
+    if (ifNoneMatch != null) {
+      // If-None-Match wins over If-Modified-Since
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        // the ETag of a compressed copy stands for the same page
+        if (tag.equals("*") || tag.equals(entry.etag) || tag.equals(Compression.etag(entry.etag, "gzip"))
+            || tag.equals(Compression.etag(entry.etag, "deflate"))) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    String ifModifiedSince = request.header("If-Modified-Since");
+    if (ifModifiedSince != null) {
+      try {
+        Instant since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        return !entry.lastModified.isAfter(since);
+      } catch (DateTimeParseException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Newest modification time of the directory and the files in it, the
+   * root page lists the files so adding or removing one changes it too
+   */
+  private Instant newestModification() throws IOException {
+    Instant newest = Files.getLastModifiedTime(directory).toInstant();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        Instant modified = Files.getLastModifiedTime(file).toInstant();
+        if (modified.isAfter(newest)) {
+          newest = modified;
+        }
+      }
+    }
+    // HTTP dates only have seconds
+    return newest.truncatedTo(ChronoUnit.SECONDS);
+  }
+
+  static String httpDate(Instant instant) {
+    return DateTimeFormatter.RFC_1123_DATE_TIME.format(instant.atZone(ZoneOffset.UTC));
+  }
+
+  private static String hash(byte[] body) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+      StringBuilder hex = new StringBuilder();
+      for (int i = 0; i < 12; i++) {
+        hex.append(String.format("%02x", digest[i]));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // every Java runtime has SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Registers the directory with a WatchService and starts the thread that
+   * invalidates the cache on changes
+   * @return false if the directory cannot be watched
+   */
+  private boolean startWatching() {
+    WatchService watcher;
+    try {
+      watcher = directory.getFileSystem().newWatchService();
+      directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException e) {
+      System.out.println("Cannot watch " + directory.toAbsolutePath() + ", pages will not be cached: " + e.getMessage());
+      return false;
+    }
+
+    Thread thread = new Thread(() -> {
+      try {
+        while (true) {
+          WatchKey key = watcher.take();
+          // we do not care which file changed (an OVERFLOW event means we missed
+          // some), every page may depend on it
+          key.pollEvents();
+          invalidate();
+          System.out.println(directory + " changed, static cache cleared");
+          if (!key.reset()) {
+            // directory is gone, stop caching
+            enabled = false;
+            invalidate();
+            break;
+          }
+        }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        // server is shutting down
+      }
+    }, "static-cache-watcher");
+    thread.setDaemon(true);
+    thread.start();
+    return true;
+  }
+}
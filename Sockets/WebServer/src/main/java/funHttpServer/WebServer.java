@@ -22,48 +22,121 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.Set;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.util.Map;
 import java.util.LinkedHashMap;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 class WebServer {
   public static void main(String args[]) {
-    WebServer server = new WebServer(9000);
+    int port = 9000; // default port
+    String engine = "blocking"; // default engine
+    String workers = "pool"; // default execution mode
+    if (args.length > 0) {
+      try {
+        port = Integer.parseInt(args[0]);
+      } catch (NumberFormatException nfe) {
+        System.out.println("[Port] must be integer");
+        System.exit(2);
+      }
+    }
+    if (args.length > 1) {
+      engine = args[1];
+    }
+    if (args.length > 2) {
+      workers = args[2];
+    }
+
+    // who runs the requests, see WorkerPool
+    WorkerPool pool = WorkerPool.fromName(workers, WORKER_THREADS, WORKER_QUEUE);
+    if (pool == null) {
+      System.out.println("Expected arguments: [port(int)] [engine(blocking|nio)] [workers(inline|pool|virtual)]");
+      System.exit(1);
+    }
+
+    if (engine.equalsIgnoreCase("nio")) {
+      // selector based event loops, see NioEngine
+      int loops = Runtime.getRuntime().availableProcessors();
+      try {
+        new NioEngine(new WebServer(), port, loops, pool).run();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    } else if (engine.equalsIgnoreCase("blocking")) {
+      WebServer server = new WebServer(port, pool);
+    } else {
+      System.out.println("Expected arguments: [port(int)] [engine(blocking|nio)] [workers(inline|pool|virtual)]");
+      System.exit(1);
+    }
   }
 
+  /** platform threads of the worker pool */
+  static final int WORKER_THREADS = 64;
+
+  /** requests that may wait for a worker before we answer with 503 */
+  static final int WORKER_QUEUE = 1000;
+
   /**
-   * Main thread
+   * Creates the server without opening a socket, used by other engines
+   * which only need createResponse
+   */
+  public WebServer() {
+  }
+
+  /**
+   * Main thread, serves one connection after the other
    * @param port to listen on
    */
   public WebServer(int port) {
+    this(port, WorkerPool.inline());
+  }
+
+  /**
+   * Main thread, accepts connections and hands them to the workers
+   * @param port to listen on
+   * @param workers runs serveConnection for every accepted socket
+   */
+  public WebServer(int port, WorkerPool workers) {
     ServerSocket server = null;
     Socket sock = null;
-    InputStream in = null;
-    OutputStream out = null;
 
     try {
-      server = new ServerSocket(port);
-      while (true) {
-        sock = server.accept();
-        out = sock.getOutputStream();
-        in = sock.getInputStream();
-        byte[] response = createResponse(in);
-        out.write(response);
-        out.flush();
-        in.close();
-        out.close();
-        sock.close();
+      // accept() times out now and then so the loop notices a shutdown, see GracefulShutdown
+      server = GracefulShutdown.listen(port);
+      System.out.println("Listening on port " + port + " with " + workers.mode() + " workers");
+      metrics.workers(workers);
+      accessLog.closeManually();
+      shutdown.install(port, this::closeIdleConnections, accessLog::close);
+      while (shutdown.accepting()) {
+        try {
+          sock = server.accept();
+        } catch (SocketTimeoutException e) {
+          if (shutdown.draining()) {
+            break; // nothing is waiting anymore
+          }
+          continue;
+        }
+        Socket client = sock;
+        shutdown.connectionOpened();
+        if (!workers.submit(() -> serveConnection(client))) {
+          // all workers busy and the queue is full
+          rejectConnection(client);
+        }
       }
     } catch (IOException e) {
       e.printStackTrace();
     } finally {
-      if (sock != null) {
+      if (server != null) {
         try {
           server.close();
         } catch (IOException e) {
@@ -71,6 +144,176 @@ class WebServer {
           e.printStackTrace();
         }
       }
+      shutdown.listenerClosed();
+      workers.shutdown();
+    }
+  }
+
+  /**
+   * Closes the keep-alive connections that wait for their next request, called
+   * when the server shuts down. Their threads see a closed socket and end.
+   */
+  private void closeIdleConnections() {
+    for (Socket sock : idleConnections) {
+      if (idleConnections.remove(sock)) {
+        try {
+          sock.close();
+        } catch (IOException e) {
+          // closed anyway
+        }
+      }
+    }
+  }
+
+  /**
+   * Answers requests on one connection until the client closes it, it was idle
+   * for too long or it reached the maximum number of requests (see HttpFraming).
+   * Pipelined requests are read one header at a time and answered in order.
+   * @param sock the accepted client socket, counted as open in shutdown
+   */
+  public void serveConnection(Socket sock) {
+    try (sock) {
+      sock.setSoTimeout(HttpFraming.IDLE_TIMEOUT_MS);
+      InputStream in = sock.getInputStream();
+      OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+
+      String client = sock.getInetAddress().getHostAddress();
+      metrics.connectionOpened();
+
+      // one buffer and one parser for all requests of this connection
+      ByteBuffer buffer = ByteBuffer.allocate(HttpFraming.MAX_HEADER_SIZE);
+      RequestParser parser = new RequestParser(HttpFraming.MAX_HEADER_SIZE);
+
+      int requests = 0;
+      boolean keepAlive = true;
+      while (keepAlive) {
+        RequestParser.Result result;
+        while ((result = parser.parse(buffer)) == RequestParser.Result.INCOMPLETE) {
+          // waiting for the next request: the shutdown may close us, a new
+          // connection gets its first request answered
+          boolean idle = requests > 0 && buffer.position() == 0;
+          if (idle) {
+            idleConnections.add(sock);
+            if (shutdown.draining()) {
+              out.flush();
+              return;
+            }
+          }
+          int read;
+          try {
+            read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+          } finally {
+            if (idle) {
+              idleConnections.remove(sock);
+            }
+          }
+          if (read == -1) {
+            out.flush();
+            return; // client closed the connection
+          }
+          buffer.position(buffer.position() + read);
+        }
+        if (result != RequestParser.Result.DONE) {
+          // no status line for a bad request, frame turns it into a 400 and closes
+          byte[] error = result == RequestParser.Result.TOO_LARGE ? HttpFraming.tooLarge()
+              : HttpFraming.frame("<html>Illegal request</html>".getBytes(), false);
+          out.write(error);
+          accessLog.log(client, null, HttpFraming.statusCode(error), error.length, 0);
+          break;
+        }
+
+        requests++;
+        long start = System.nanoTime();
+        Request request = parser.isGet() ? parser.toRequest() : null;
+        // while shutting down this is the last request of the connection
+        keepAlive = parser.keepAlive() && requests < HttpFraming.MAX_REQUESTS && !shutdown.draining();
+        int status;
+        long written;
+        // too many requests from this client or in total: answer before doing any work
+        byte[] refused = admission.admit(client);
+        if (refused != null) {
+          byte[] framed = HttpFraming.frame(refused, keepAlive);
+          out.write(framed);
+          status = HttpFraming.statusCode(framed);
+          written = framed.length;
+        } else {
+          try {
+            Response response = null;
+            byte[] raw = null;
+            try {
+              response = request == null ? null : respond(request);
+              if (response == null) {
+                raw = illegalRequest();
+              } else if (!response.isStreamed() || !parser.isHttp11()) {
+                raw = response.toBytes();
+              }
+            } catch (Exception e) {
+              // the handler failed, answer like NioEngine.handle does
+              e.printStackTrace();
+              raw = errorPage(e);
+            }
+            if (raw == null) {
+              // headers first, then the body in chunks while the handler makes it
+              written = HttpFraming.writeChunked(response, keepAlive, out);
+              status = response.status();
+            } else {
+              keepAlive = keepAlive && HttpFraming.hasStatusLine(raw);
+              byte[] framed = HttpFraming.frame(raw, keepAlive);
+              out.write(framed);
+              status = HttpFraming.statusCode(framed);
+              written = framed.length;
+            }
+          } finally {
+            admission.release();
+          }
+        }
+        metrics.bytesIn(parser.requestEnd());
+        metrics.bytesOut(written);
+        accessLog.log(client, request == null ? null : request.target(), status, written,
+            System.nanoTime() - start);
+
+        // we do not use request bodies, skip them so the next request starts at the right spot
+        int requestEnd = parser.requestEnd();
+        if (requestEnd > buffer.position()) {
+          in.skipNBytes(requestEnd - buffer.position());
+          requestEnd = buffer.position();
+        }
+        // pipelined requests that were read already move to the front
+        buffer.flip();
+        buffer.position(requestEnd);
+        buffer.compact();
+        parser.reset();
+
+        // only flush when no pipelined request is waiting, so several answers share a packet
+        if (buffer.position() == 0 && in.available() == 0) {
+          out.flush();
+        }
+      }
+      out.flush();
+    } catch (SocketTimeoutException e) {
+      // idle for too long, just close the connection
+    } catch (IOException e) {
+      if (!shutdown.draining()) {
+        System.out.println("Connection error: " + e.getMessage());
+      }
+    } finally {
+      shutdown.connectionClosed();
+    }
+  }
+
+  /**
+   * Answers with 503 and closes the socket, used when there is no free worker
+   * @param sock the accepted client socket
+   */
+  void rejectConnection(Socket sock) {
+    try (sock) {
+      byte[] busy = HttpFraming.busy();
+      sock.getOutputStream().write(busy);
+      accessLog.log(sock.getInetAddress().getHostAddress(), null, 503, busy.length, 0);
+    } catch (IOException e) {
+      // client is gone already
+    } finally {
+      shutdown.connectionClosed();
     }
   }
 
@@ -87,411 +330,378 @@ class WebServer {
   private Random random = new Random();
 
   /**
-   * Reads in socket stream and generates a response
-   * @param inStream HTTP input stream from socket
+   * All routes of the server, keyed by the first path segment (see Router)
+   */
+  private final Router router = new Router(this::unknown)
+      .add("", this::root)
+      .add("json", this::json)
+      .add("random", this::random)
+      .add("file", this::file)
+      .add("multiply", this::multiply)
+      .add("github", this::github)
+      .add("birthday", this::birthday)
+      .add("happyMadison", this::happyMadison)
+      .add("metrics", this::metricsPage);
+
+  /**
+   * Builds the response for a request that a RequestParser already parsed
+   * @param parsed a parser that returned DONE
    * @return the byte encoded HTTP response
    */
-  public byte[] createResponse(InputStream inStream) throws IOException {
+  public byte[] createResponse(RequestParser parsed) throws IOException {
+    return parsed.isGet() ? createResponse(parsed.toRequest()) : illegalRequest();
+  }
 
-    byte[] response = null;
-    BufferedReader in = null;
+  /**
+   * Runs the handler for the request
+   * @return the byte encoded HTTP response, a streamed response is written into memory
+   */
+  public byte[] createResponse(Request request) throws IOException {
+    return respond(request).toBytes();
+  }
 
+  /**
+   * Runs the handler for the request, the engines use this so they can send
+   * streamed responses in chunks. For those the metrics only see the time
+   * until the headers are ready.
+   */
+  Response respond(Request request) throws IOException {
+    Metrics.Route route = metrics.route(request.route());
+    long start = System.nanoTime();
+    route.begin();
+    Response response = null;
     try {
+      // the router picks the handler for the first path segment, big text
+      // bodies are compressed if the client sends Accept-Encoding
+      response = Compression.apply(router.route(request), request);
+      return response;
+    } finally {
+      route.end(response == null ? 500 : response.status(),
+          response == null || response.isStreamed() ? 0 : response.body().length, System.nanoTime() - start);
+    }
+  }
 
-      // Read from socket's input stream. Must use an
-      // InputStreamReader to bridge from streams to a reader
-      in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
+  /**
+   * Answer for everything that is not a GET (no status line, the engines send it as 400)
+   */
+  static byte[] illegalRequest() {
+    return "<html>Illegal request: no GET</html>".getBytes();
+  }
 
-      // Get header and save the request from the GET line:
-      // example GET format: GET /index.html HTTP/1.1
+  /**
+   * Answer when a handler failed, e.g. a file it needs cannot be read (no
+   * status line, the engines send it as 400 and close the connection)
+   */
+  static byte[] errorPage(Exception e) {
+    return ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
+  }
 
-      String request = null;
+  /**
+   * One line per request in logs/access.log (or -Daccess.log), see AccessLog
+   */
+  final AccessLog accessLog = AccessLog.open();
 
-      boolean done = false;
-      while (!done) {
-        String line = in.readLine();
+  /**
+   * Rate limit per client and limit on concurrent requests, see AdmissionControl
+   */
+  final AdmissionControl admission = new AdmissionControl();
 
-        System.out.println("Received: " + line);
+  /**
+   * Direct buffers for the socket reads and writes of the NIO engine, see BufferPool
+   */
+  final BufferPool buffers = new BufferPool();
 
-        // find end of header("\n\n")
-        if (line == null || line.equals(""))
-          done = true;
-        // parse GET format ("GET <path> HTTP/1.1")
-        else if (line.startsWith("GET")) {
-          int firstSpace = line.indexOf(" ");
-          int secondSpace = line.indexOf(" ", firstSpace + 1);
+  /**
+   * Stops the server without cutting off running requests, see GracefulShutdown
+   */
+  final GracefulShutdown shutdown = new GracefulShutdown();
 
-          // extract the request, basically everything after the GET up to HTTP/1.1
-          request = line.substring(firstSpace + 2, secondSpace);
-        }
+  // keep-alive connections of the blocking engine that wait for their next request
+  private final Set<Socket> idleConnections = ConcurrentHashMap.newKeySet();
 
-      }
-      System.out.println("FINISHED PARSING HEADER\n");
-
-      // Generate an appropriate response to the user
-      if (request == null) {
-        response = "<html>Illegal request: no GET</html>".getBytes();
-      } else {
-        // create output buffer
-        StringBuilder builder = new StringBuilder();
-        // NOTE: output from buffer is at the end
-
-        if (request.length() == 0) {
-          // shows the default directory page
-
-          // opens the root.html file
-          String page = new String(readFileInBytes(new File("www/root.html")));
-          // performs a template replacement in the page
-          page = page.replace("${links}", buildFileList());
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(page);
-
-        } else if (request.equalsIgnoreCase("json")) {
-          // shows the JSON of a random image and sets the header name for that image
-
-          // pick a index from the map
-          int index = random.nextInt(_images.size());
-
-          // pull out the information
-          String header = (String) _images.keySet().toArray()[index];
-          String url = _images.get(header);
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: application/json; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("{");
-          builder.append("\"header\":\"").append(header).append("\",");
-          builder.append("\"image\":\"").append(url).append("\"");
-          builder.append("}");
-
-        } else if (request.equalsIgnoreCase("random")) {
-          // opens the random image page
-
-          // open the index.html
-          File file = new File("www/index.html");
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(new String(readFileInBytes(file)));
-
-        } else if (request.contains("file/")) {
-          // tries to find the specified file and shows it or shows an error
-
-          // take the path and clean it. try to open the file
-          File file = new File(request.replace("file/", ""));
-
-          // Generate response
-          if (file.exists()) { // success
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Would theoretically be a file but removed this part, you do not have to do anything with it for the assignment");
-          } else { // failure
-            builder.append("HTTP/1.1 404 Not Found\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("File not found: " + file);
-          }
-        } else if (request.contains("multiply?")) {
-          // This multiplies two numbers, there is NO error handling, so when
-          // wrong data is given this just crashes
+  /**
+   * Pages rendered from www/, kept until something in www/ changes
+   */
+  private final StaticCache staticCache = new StaticCache(Paths.get("www"));
 
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          // extract path parameters
-          query_pairs = splitQuery(request.replace("multiply?", ""));
-          //Set init cars
-          Integer num1;
-          Integer num2;
+  /**
+   * Cached, shared client for the GitHub API, used by "/github"
+   */
+  private final GitHubClient github = new GitHubClient();
 
-          try {
-            // if query is empty
-            if (query_pairs.isEmpty() || query_pairs == null || !query_pairs.containsKey("num1") ||
-              !query_pairs.containsKey("num2") || query_pairs.get("num1").isEmpty() || query_pairs.get("num2").isEmpty()) {
-
-              // Generate response
-              builder.append("HTTP/1.1 400 BAD REQUEST\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("You need to provide two numbers to multiply. You did not provide 2 numbers.");
-            }
+  /**
+   * Counters and latency histograms for every route, shown on "/metrics"
+   */
+  final Metrics metrics = newMetrics();
+
+  private Metrics newMetrics() {
+    Metrics metrics = new Metrics(router.names());
+    metrics.accessLog(accessLog);
+    metrics.github(github);
+    metrics.admission(admission);
+    metrics.buffers(buffers);
+    return metrics;
+  }
 
-            // set vars if parameters are given
-            else if (query_pairs.containsKey("num1") && query_pairs.containsKey("num2")) {
-                num1 = Integer.parseInt(query_pairs.get("num1"));
-                num2 = Integer.parseInt(query_pairs.get("num2"));
-                // do math
-                Integer result = num1 * num2;
-                // Generate response
-                builder.append("HTTP/1.1 200 OK\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-                builder.append("Result is: " + result);
+  /**
+   * "/metrics" shows the counters in the Prometheus text format
+   */
+  Response metricsPage(Request request) {
+    return new Response(200, "OK", "text/plain; version=0.0.4; charset=utf-8",
+        metrics.render().getBytes(StandardCharsets.UTF_8));
+  }
 
-            } else {
-              throw new IllegalArgumentException("You must provide two numbers to multiply");
-            }
-          } catch (NumberFormatException e) {
-            // If num1 or num2 is not a valid integer
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Invalid input: The parameters 'num1' and 'num2' must be integers.");
-          }
+  /**
+   * "/" shows the default directory page
+   */
+  Response root(Request request) throws IOException {
+    return staticCache.respond("root", request, this::renderRoot);
+  }
 
-        } else if (request.contains("github?")) {
+  /**
+   * Builds the default directory page, only called when it is not cached
+   */
+  Response renderRoot() throws IOException {
+    // opens the root.html file
+    String page = new String(readFileInBytes(new File("www/root.html")));
+    // performs a template replacement in the page
+    page = page.replace("${links}", buildFileList());
 
-          try {
-            // pulls the query from the request and runs it with GitHub's REST API
-            // check out https://docs.github.com/rest/reference/
-            //
-            // HINT: REST is organized by nesting topics. Figure out the biggest one first,
-            //     then drill down to what you care about
-            // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
-            //     "/repos/OWNERNAME/REPONAME/contributors"
+    return Response.ok(page);
+  }
 
-            Map<String, String> query_pairs = new LinkedHashMap<String, String>();
+  /**
+   * "/json" shows the JSON of a random image and sets the header name for that image
+   */
+  Response json(Request request) {
+    // pick a index from the map
+    int index = random.nextInt(_images.size());
+
+    // pull out the information
+    String header = (String) _images.keySet().toArray()[index];
+    String url = _images.get(header);
+
+    StringBuilder builder = new StringBuilder();
+    builder.append("{");
+    builder.append("\"header\":\"").append(header).append("\",");
+    builder.append("\"image\":\"").append(url).append("\"");
+    builder.append("}");
+    return new Response(200, "OK", "application/json; charset=utf-8", builder.toString().getBytes(StandardCharsets.UTF_8));
+  }
 
-            query_pairs = splitQuery2(request.replace("github?", ""));
+  /**
+   * "/random" opens the random image page
+   */
+  Response random(Request request) throws IOException {
+    return staticCache.respond("random", request, this::renderRandom);
+  }
 
-            System.out.println(request);
+  /**
+   * Reads the random image page, only called when it is not cached
+   */
+  Response renderRandom() throws IOException {
+    // open the index.html
+    File file = new File("www/index.html");
+    return Response.ok(new String(readFileInBytes(file)));
+  }
 
-            String query = query_pairs.get("query");
-            System.out.println(query);
+  /**
+   * "/file/filename" tries to find the specified file and shows it or shows an error
+   */
+  Response file(Request request) {
+    // take the path and clean it. try to open the file
+    File file = new File(request.rest());
+
+    if (file.exists()) { // success
+      return Response.ok("Would theoretically be a file but removed this part, you do not have to do anything with it for the assignment");
+    } else { // failure
+      return Response.html(404, "Not Found", "File not found: " + file);
+    }
+  }
 
-            String githubUrl = "https://api.github.com/" + query_pairs.get("query");
-            String json = fetchURL(githubUrl);
+  /**
+   * "/multiply?num1=3&num2=4" multiplies the two numbers
+   */
+  Response multiply(Request request) throws IOException {
+    // extract path parameters
+    String first = request.param("num1");
+    String second = request.param("num2");
 
-            System.out.println(json);
+    try {
+      // if query is empty
+      if (first == null || second == null || first.isEmpty() || second.isEmpty()) {
+        return Response.badRequest("You need to provide two numbers to multiply. You did not provide 2 numbers.");
+      }
 
-            if (json == null || json.isEmpty()) { // failure
-              builder.append("HTTP/1.1 400 BAD REQUEST\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Could not fetch json for url: " + githubUrl);
+      Integer num1 = Integer.parseInt(first);
+      Integer num2 = Integer.parseInt(second);
+      // do math
+      Integer result = num1 * num2;
+      return Response.ok("Result is: " + result);
+    } catch (NumberFormatException e) {
+      // If num1 or num2 is not a valid integer
+      return Response.badRequest("Invalid input: The parameters 'num1' and 'num2' must be integers.");
+    }
+  }
 
-            } else { // success
+  /**
+   * "/github?query=users/amehlhase316/repos" lists the repos returned by GitHub
+   */
+  Response github(Request request) {
+    try {
+      // pulls the query from the request and runs it with GitHub's REST API
+      // check out https://docs.github.com/rest/reference/
+      //
+      // HINT: REST is organized by nesting topics. Figure out the biggest one first,
+      //     then drill down to what you care about
+      // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
+      //     "/repos/OWNERNAME/REPONAME/contributors"
+
+      String query = request.param("query");
+      if (query == null || query.isEmpty()) {
+        return Response.badRequest("You need to provide a query, e.g. /github?query=users/amehlhase316/repos");
+      }
 
-              builder.append("HTTP/1.1 200 OK\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              // builder.append("Check the todos mentioned in the Java source file");
+      // cached and shared with other requests for the same query, see GitHubClient
+      String json = github.fetch(query).get(GitHubClient.TIMEOUT.getSeconds() + 5, TimeUnit.SECONDS);
 
-              // TODO: Parse the JSON returned by your fetch and create an appropriate
-              // response based on what the assignment document asks for
+      if (json == null || json.isEmpty()) { // failure
+        return Response.badRequest("Could not fetch json for query: " + query);
+      }
 
-              // Parse the String into a JSONObject
-              JSONArray arr = new JSONArray(json);
+      // TODO: Parse the JSON returned by your fetch and create an appropriate
+      // response based on what the assignment document asks for
 
-              // Loop through the array and print out the name and url
-              for (int i = 0; i < arr.length(); i++) {
-                String fullName = arr.getJSONObject(i).getString("full_name");
-                Long id = arr.getJSONObject(i).getLong("id");
-                JSONObject owner = arr.getJSONObject(i).getJSONObject("owner");
-                String login = owner.getString("login");
+      // the answer must be a JSON array, checked before we commit to a 200
+      JSONTokener tokener = new JSONTokener(json);
+      if (tokener.nextClean() != '[') {
+        return Response.badRequest("Please check the formatting of your url. <br />Expected a JSON array for query: " + query);
+      }
+      // the rows are sent while the array is read, so neither the parsed array
+      // nor the whole page is ever in memory
+      return Response.stream(200, "OK", "text/html; charset=utf-8", out -> writeRepos(tokener, out));
+    } catch (Exception e) {
+      e.printStackTrace();
+      return Response.badRequest("Please check the formatting of your url. <br />" + e.getMessage());
+    }
+  }
 
-                builder.append("full_name: " + fullName + "\tid: " + id + "\towner/login: " + login + "\n<br />");
-              }
-            }
-          } catch (Exception e) {
-            builder.append("HTTP/1.1 400 BAD REQUEST\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Please check the formatting of your url. <br />");
-            builder.append(e.getMessage());
-            e.printStackTrace();
-          }
-        } else if (request.contains("birthday?")) {
-          // This multiplies two numbers, there is NO error handling, so when
-          // wrong data is given this just crashes
+  /**
+   * Writes one line per repo of a JSON array, the "[" is read already
+   */
+  static void writeRepos(JSONTokener tokener, OutputStream out) throws IOException {
+    Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    if (tokener.nextClean() != ']') {
+      tokener.back();
+      while (true) {
+        // Loop through the array and print out the name and url
+        JSONObject repo = (JSONObject) tokener.nextValue();
+        String fullName = repo.getString("full_name");
+        Long id = repo.getLong("id");
+        JSONObject owner = repo.getJSONObject("owner");
+        String login = owner.getString("login");
+
+        writer.write("full_name: " + fullName + "\tid: " + id + "\towner/login: " + login + "\n<br />");
+
+        char next = tokener.nextClean();
+        if (next == ']') {
+          break;
+        }
+        if (next != ',') {
+          throw tokener.syntaxError("Expected , or ]");
+        }
+      }
+    }
+    writer.flush();
+  }
 
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          // extract path parameters
-          query_pairs = splitQuery(request.replace("birthday?", ""));
-          //Set init cars
-          Integer day;
-          Integer month;
+  /**
+   * "/birthday?month=5&day=17" counts the days until the next birthday
+   */
+  Response birthday(Request request) throws IOException {
+    // extract path parameters
+    String dayParam = request.param("day");
+    String monthParam = request.param("month");
 
-          try {
-            // if query is empty
-            if (query_pairs.isEmpty() || query_pairs == null || !query_pairs.containsKey("day") ||
-              !query_pairs.containsKey("month") || query_pairs.get("day").isEmpty() || query_pairs.get("month").isEmpty()) {
-
-              // Generate response
-              builder.append("HTTP/1.1 400 BAD REQUEST\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("You need to provide two numbers, one for the integer representation of the month that you were born and the other for the day in which you were born.");
-            }
+    try {
+      // if query is empty
+      if (dayParam == null || monthParam == null || dayParam.isEmpty() || monthParam.isEmpty()) {
+        return Response.badRequest("You need to provide two numbers, one for the integer representation of the month that you were born and the other for the day in which you were born.");
+      }
 
-            // set vars if parameters are given
-            else if (query_pairs.containsKey("day") && query_pairs.containsKey("month")) {
-                day = Integer.parseInt(query_pairs.get("day"));
-                month = Integer.parseInt(query_pairs.get("month"));
-                // do math
-                LocalDate today = LocalDate.now();
-                int currentYear = today.getYear();
-                LocalDate birthday = LocalDate.of(currentYear, month, day);
-                if (today.isAfter(birthday) || today.isEqual(birthday)) {
-                  birthday = birthday.plusYears(1);
-                }
-                long daysUntilBirthday = today.until(birthday, ChronoUnit.DAYS);
-
-                builder.append("HTTP/1.1 200 OK\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-                builder.append("Days until your next birthday: " + daysUntilBirthday);
-            } else {
-              throw new IllegalArgumentException("You must provide your birthday in the format 'day' and 'month' as integers.");
-              }
-            } catch (NumberFormatException e) {
-              // If num1 or num2 is not a valid integer
-              builder.append("HTTP/1.1 400 Bad Request\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Invalid input");
-          }
-        } else if (request.contains("happyMadison?")) {
+      Integer day = Integer.parseInt(dayParam);
+      Integer month = Integer.parseInt(monthParam);
+      // do math
+      LocalDate today = LocalDate.now();
+      int currentYear = today.getYear();
+      LocalDate birthday = LocalDate.of(currentYear, month, day);
+      if (today.isAfter(birthday) || today.isEqual(birthday)) {
+        birthday = birthday.plusYears(1);
+      }
+      long daysUntilBirthday = today.until(birthday, ChronoUnit.DAYS);
 
-          Map<String, String> query_pairs = splitQuery3(request.replace("happyMadison?", ""));
+      return Response.ok("Days until your next birthday: " + daysUntilBirthday);
+    } catch (NumberFormatException e) {
+      // If day or month is not a valid integer
+      return Response.badRequest("Invalid input");
+    }
+  }
 
-          if (query_pairs.containsKey("movie") && query_pairs.containsKey("quote")) {
-            String movie = query_pairs.get("movie");
-            int quoteNo;
+  /**
+   * "/happyMadison?movie=happy&quote=2" shows a quote from Happy Gilmore or Billy Madison
+   */
+  Response happyMadison(Request request) throws IOException {
+    String movie = request.param("movie");
+    String quote = request.param("quote");
 
-            try {
-              quoteNo = Integer.parseInt(query_pairs.get("quote"));
-            } catch (NumberFormatException e) {
-              builder.append("HTTP/1.1 400 Bad Request\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Invalid quote number");
-              response = builder.toString().getBytes();
-              return response;
-            }
+    if (movie == null || quote == null) {
+      return Response.badRequest("You need to provide a movie and a quote number.");
+    }
 
-            String quote = "";
-                  
-            if (movie.equalsIgnoreCase("happy")) {
-              switch(quoteNo) {
-                case 1: 
-                  quote = "Hey, why don't I just go eat some hay, make things out of clay, lay by the bay? I just may!";
-                  builder.append("HTTP/1.1 200 OK\n");
-                  builder.append("Content-Type: text/html; charset=utf-8\n");
-                  builder.append("\n");
-                  builder.append("<html><body>");
-                  builder.append("<h1>Quote:</h1>");
-                  builder.append("<p>" + quote + "</p>");
-                  builder.append("</body></html>");
-                  break;
-                case 2:
-                  quote = "Yeah, Right, And Grizzly Adams Had A Beard.";
-                  builder.append("HTTP/1.1 200 OK\n");
-                  builder.append("Content-Type: text/html; charset=utf-8\n");
-                  builder.append("\n");
-                  builder.append("<html><body>");
-                  builder.append("<h1>Quote:</h1>");
-                  builder.append("<p>" + quote + "</p>");
-                  builder.append("</body></html>");
-                  break;
-                case 3:
-                  quote = "My fingers hurt. Oh, well, now your back's gonna hurt, 'cause you just pulled landscaping duty. Anybody else's fingers hurt?... I didn't think so.";
-                  builder.append("HTTP/1.1 200 OK\n");
-                  builder.append("Content-Type: text/html; charset=utf-8\n");
-                  builder.append("\n");
-                  builder.append("<html><body>");
-                  builder.append("<h1>Quote:</h1>");
-                  builder.append("<p>" + quote + "</p>");
-                  builder.append("</body></html>");
-                  break;
-                default:
-                  builder.append("HTTP/1.1 400 Bad Request\n");
-                  builder.append("Content-Type: text/html; charset=utf-8\n");
-                  builder.append("\n");
-                  builder.append("Invalid quote number. Try 1, 2, or 3.");
-                  response = builder.toString().getBytes();
-                  return response;
-              }
-            } else if (movie.equalsIgnoreCase("madison")) {
-              switch(quoteNo) {
-                case 1: 
-                  quote = "If peeing your pants is cool, consider me Miles Davis.";
-                  // Generate response
-                  builder.append("HTTP/1.1 200 OK\n");
-                  builder.append("Content-Type: text/html; charset=utf-8\n");
-                  builder.append("\n");
-                  builder.append("<html><body>");
-                  builder.append("<h1>Quote:</h1>");
-                  builder.append("<p>" + quote + "</p>");
-                  builder.append("</body></html>");
-                  break;
-                case 2:
-                  quote = "I award you no points, and may God have mercy on your soul.";
-                  builder.append("HTTP/1.1 200 OK\n");
-                  builder.append("Content-Type: text/html; charset=utf-8\n");
-                  builder.append("\n");
-                  builder.append("<html><body>");
-                  builder.append("<h1>Quote:</h1>");
-                  builder.append("<p>" + quote + "</p>");
-                  builder.append("</body></html>");
-                  break;
-                case 3:
-                  quote = "That Veronica Vaughn is one piece of ace, I know from experience dude. If you know what I mean.";
-                  builder.append("HTTP/1.1 200 OK\n");
-                  builder.append("Content-Type: text/html; charset=utf-8\n");
-                  builder.append("\n");
-                  builder.append("<html><body>");
-                  builder.append("<h1>Quote:</h1>");
-                  builder.append("<p>" + quote + "</p>");
-                  builder.append("</body></html>");
-                  break;
-                default:
-                  builder.append("HTTP/1.1 400 Bad Request\n");
-                  builder.append("Content-Type: text/html; charset=utf-8\n");
-                  builder.append("\n");
-                  builder.append("Invalid quote number. Try 1, 2, or 3.");
-                  response = builder.toString().getBytes();
-                  return response;
-              }
-            }
-            else {
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Invalid movie. Try 'happy' or 'madison'.");
-            response = builder.toString().getBytes();
-            return response;
-            }
-          }
-        }
-        else {
-          // if the request is not recognized at all
+    int quoteNo;
+    try {
+      quoteNo = Integer.parseInt(quote);
+    } catch (NumberFormatException e) {
+      return Response.badRequest("Invalid quote number");
+    }
 
-          builder.append("HTTP/1.1 400 Bad Request\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("I am not sure what you want me to do...");
-        }
+    String[] quotes;
+    if (movie.equalsIgnoreCase("happy")) {
+      quotes = HAPPY_QUOTES;
+    } else if (movie.equalsIgnoreCase("madison")) {
+      quotes = MADISON_QUOTES;
+    } else {
+      return Response.badRequest("Invalid movie. Try 'happy' or 'madison'.");
+    }
 
-        // Output
-        response = builder.toString().getBytes();
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-      response = ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
+    if (quoteNo < 1 || quoteNo > quotes.length) {
+      return Response.badRequest("Invalid quote number. Try 1, 2, or 3.");
     }
+    return Response.ok("<html><body><h1>Quote:</h1><p>" + quotes[quoteNo - 1] + "</p></body></html>");
+  }
 
-    return response;
+  private static final String[] HAPPY_QUOTES = {
+    "Hey, why don't I just go eat some hay, make things out of clay, lay by the bay? I just may!",
+    "Yeah, Right, And Grizzly Adams Had A Beard.",
+    "My fingers hurt. Oh, well, now your back's gonna hurt, 'cause you just pulled landscaping duty. Anybody else's fingers hurt?... I didn't think so."
+  };
+
+  private static final String[] MADISON_QUOTES = {
+    "If peeing your pants is cool, consider me Miles Davis.",
+    "I award you no points, and may God have mercy on your soul.",
+    "That Veronica Vaughn is one piece of ace, I know from experience dude. If you know what I mean."
+  };
+
+  /**
+   * if the request is not recognized at all
+   */
+  Response unknown(Request request) {
+    return Response.badRequest("I am not sure what you want me to do...");
   }
 
   /**
-   * Method to read in a query and split it up correctly
+   * Method to read in a query and split it up correctly. The routes use
+   * Request.param instead, which does not build a map for every request.
    * @param query parameters on path
    * @return Map of all parameters and their specific values
    * @throws UnsupportedEncodingException If the URLs aren't encoded with UTF-8
@@ -519,48 +729,6 @@ class WebServer {
     return query_pairs;
   }
 
-  public static Map<String, String> splitQuery2(String urlString) throws UnsupportedEncodingException {
-
-    Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-
-    System.out.println(urlString);
-
-    String query = urlString;
-    String[] pairs = query.split("&");
-
-    for (String pair : pairs) {
-        int idx = pair.indexOf("=");
-        query_pairs.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"), URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
-    }
-
-    return query_pairs;
-  }
-
-  public static Map<String, String> splitQuery3(String urlString) throws UnsupportedEncodingException {
-    Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-
-    // Print the URL to check if it's correct
-    System.out.println("URL: " + urlString);
-
-    // Remove the "happyMadison?" prefix
-    String query = urlString.replace("happyMadison?", "");
-
-    // Split the query string based on "&"
-    String[] pairs = query.split("&");
-
-    for (String pair : pairs) {
-        int idx = pair.indexOf("=");
-        // Extract key-value pairs and decode them
-        String key = URLDecoder.decode(pair.substring(0, idx), "UTF-8");
-        String value = URLDecoder.decode(pair.substring(idx + 1), "UTF-8");
-        // Put the key-value pair into the map
-        System.out.println("Key: " + key + ", Value: " + value);
-        query_pairs.put(key, value);
-    }
-
-    return query_pairs;
-}
-
 
 
   /**
@@ -610,41 +778,4 @@ class WebServer {
     return result;
   }
 
-  /**
-   *
-   * a method to make a web request. Note that this method will block execution
-   * for up to 20 seconds while the request is being satisfied. Better to use a
-   * non-blocking request.
-   *
-   * @param aUrl the String indicating the query url for the OMDb api search
-   * @return the String result of the http request.
-   *
-   **/
-  public String fetchURL(String aUrl) {
-    StringBuilder sb = new StringBuilder();
-    URLConnection conn = null;
-    InputStreamReader in = null;
-    try {
-      URL url = new URL(aUrl);
-      conn = url.openConnection();
-      if (conn != null)
-        conn.setReadTimeout(20 * 1000); // timeout in 20 seconds
-      if (conn != null && conn.getInputStream() != null) {
-        in = new InputStreamReader(conn.getInputStream(), Charset.defaultCharset());
-        BufferedReader br = new BufferedReader(in);
-        if (br != null) {
-          int ch;
-          // read the next character until end of reader
-          while ((ch = br.read()) != -1) {
-            sb.append((char) ch);
-          }
-          br.close();
-        }
-      }
-      in.close();
-    } catch (Exception ex) {
-      System.out.println("Exception in url request:" + ex.getMessage());
-    }
-    return sb.toString();
-  }
 }
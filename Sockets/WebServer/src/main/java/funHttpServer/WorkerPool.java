@@ -0,0 +1,170 @@
+/*
+Execution layer for the web server.
+
+Runs the work for a connection (or a request) on one of these modes:
+- INLINE:  on the calling thread, which is how the server used to work
+- POOL:    a fixed number of platform threads with a bounded queue. When all
+           threads are busy and the queue is full the task is rejected and
+           the caller answers "503 Service Unavailable" instead of piling up
+           more work than the machine can handle
+- VIRTUAL: one virtual thread per task (needs Java 21+). Virtual threads are
+           cheap, so thousands of requests can wait on a slow upstream call
+           (like /github) without using thousands of OS threads
+
+The pool keeps a few gauges (queue depth, active workers, rejected and
+completed tasks) so you can see how loaded the server is.
+*/
+
+package funHttpServer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+class WorkerPool {
+
+  enum Mode { INLINE, POOL, VIRTUAL }
+
+  private final Mode mode;
+  private final ExecutorService executor;
+  private final ThreadPoolExecutor pool; // only set in POOL mode, used for the queue gauge
+
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  private WorkerPool(Mode mode, ExecutorService executor) {
+    this.mode = mode;
+    this.executor = executor;
+    this.pool = executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor : null;
+  }
+
+  /**
+   * Runs every task on the thread that submits it
+   */
+  static WorkerPool inline() {
+    return new WorkerPool(Mode.INLINE, null);
+  }
+
+  /**
+   * Bounded pool of platform threads
+   * @param threads number of worker threads
+   * @param queueSize how many tasks may wait for a free thread before new ones are rejected
+   */
+  static WorkerPool bounded(int threads, int queueSize) {
+    AtomicInteger count = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueSize), r -> {
+          Thread thread = new Thread(r, "worker-" + count.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    return new WorkerPool(Mode.POOL, executor);
+  }
+
+  /**
+   * One virtual thread per task. Virtual threads only exist on Java 21+, so the
+   * executor is looked up by reflection and on older versions we fall back to
+   * the given bounded pool
+   * @param fallbackThreads threads of the fallback pool
+   * @param fallbackQueue queue size of the fallback pool
+   */
+  static WorkerPool virtual(int fallbackThreads, int fallbackQueue) {
+    try {
+      ExecutorService executor = (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      return new WorkerPool(Mode.VIRTUAL, executor);
+    } catch (ReflectiveOperationException e) {
+      System.out.println("Virtual threads need Java 21 or newer, using a pool of " + fallbackThreads + " threads");
+      return bounded(fallbackThreads, fallbackQueue);
+    }
+  }
+
+  /**
+   * Creates a pool from a command line name
+   * @param name inline, pool or virtual
+   * @param threads threads for the pool modes
+   * @param queueSize queue size for the pool modes
+   * @return the pool or null if the name is unknown
+   */
+  static WorkerPool fromName(String name, int threads, int queueSize) {
+    switch (name.toLowerCase()) {
+      case "inline":
+        return inline();
+      case "pool":
+        return bounded(threads, queueSize);
+      case "virtual":
+        return virtual(threads, queueSize);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Runs the task according to the mode
+   * @param task work to do
+   * @return false if the task was rejected because the pool is full
+   */
+  public boolean submit(Runnable task) {
+    Runnable counted = () -> {
+      active.incrementAndGet();
+      try {
+        task.run();
+      } finally {
+        active.decrementAndGet();
+        completed.incrementAndGet();
+      }
+    };
+
+    if (executor == null) {
+      counted.run();
+      return true;
+    }
+    try {
+      executor.execute(counted);
+      return true;
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      return false;
+    }
+  }
+
+  public Mode mode() {
+    return mode;
+  }
+
+  /** tasks waiting for a free thread, virtual threads never wait */
+  public int queueDepth() {
+    return pool == null ? 0 : pool.getQueue().size();
+  }
+
+  /** tasks that are running right now */
+  public int activeWorkers() {
+    return active.get();
+  }
+
+  public long completed() {
+    return completed.get();
+  }
+
+  public long rejected() {
+    return rejected.get();
+  }
+
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "WorkerPool[mode=" + mode + ", queueDepth=" + queueDepth() + ", activeWorkers=" + activeWorkers()
+        + ", completed=" + completed() + ", rejected=" + rejected() + "]";
+  }
+}
@@ -2,6 +2,11 @@ package httpServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 
 class WebServer {
 
@@ -15,56 +20,143 @@ class WebServer {
         WebServer server = new WebServer(Integer.parseInt(args[0]));
     }
 
+    // sends files with sendfile/memory mapping instead of reading them into a byte[]
+    private final FileSender files = new FileSender();
+
     public WebServer(int port) {
         
         ServerSocket    server = null;
         Socket          sock = null;
-        InputStream     in = null;
-        OutputStream    out = null;
 
         //*** Open the server socket on the specified port
         //*** Loop forever accepting socket requests
-        //***   Get the response bytes from createResponse
-        //***   Write the bytes to the socket's output stream
-        //***   close streams and socket appropriatels
+        //***   Stream the requested file to the socket (see serve)
+        //***   close the socket appropriately
+        try {
+            // opened through a channel so the accepted sockets have a
+            // SocketChannel, which FileChannel.transferTo can write to
+            server = ServerSocketChannel.open().socket();
+            server.bind(new InetSocketAddress(port));
+            while (true) {
+                sock = server.accept();
+                try {
+                    serve(sock);
+                } catch (IOException e) {
+                    System.out.println("Client error: " + e.getMessage());
+                } finally {
+                    sock.close();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
+    /**
+     * Reads the request and streams the file straight from disk to the socket.
+     * Only error messages are built in memory.
+     */
+    public void serve(Socket sock) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String filename = readRequest(sock.getInputStream(), headers);
+
+        byte[] error = null;
+        File file = null;
+        if (filename == null) {
+            error = errorResponse("400 Bad Request", "Illegal request: no GET");
+        } else {
+            file = new File(filename);
+            if (!file.isFile()) {
+                error = errorResponse("404 Not Found", "File not found: " + filename);
+            }
+        }
 
-    public byte[] createResponse(InputStream inStream) {
+        if (error != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(error);
+            while (buffer.hasRemaining()) {
+                sock.getChannel().write(buffer);
+            }
+        } else {
+            // Range / If-Range let a client fetch parts or resume a download
+            files.send(file, sock.getChannel(), headers.get("range"), headers.get("if-range"));
+        }
+    }
 
-        byte[] response = null;
-        BufferedReader in = null;
+    /**
+     * Small html error page with the headers a browser expects
+     */
+    static byte[] errorResponse(String status, String message) {
+        // Content-Length counts bytes, a filename with non-ASCII characters
+        // has more bytes than chars
+        byte[] body = ("<html>" + message + "</html>").getBytes(StandardCharsets.UTF_8);
+        byte[] head = ("HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/html; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        return ByteBuffer.allocate(head.length + body.length).put(head).put(body).array();
+    }
 
-        try {
+    /**
+     * Reads the request header and returns the requested file
+     * @return the file name from the GET line or null if there is none
+     */
+    public static String readRequest(InputStream inStream) throws IOException {
+        return readRequest(inStream, new HashMap<>());
+    }
 
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                        new InputStreamReader(inStream, "UTF-8"));
+    /**
+     * Reads the request header and returns the requested file
+     * @param headers filled with the request headers, names in lower case
+     * @return the file name from the GET line or null if there is none
+     */
+    public static String readRequest(InputStream inStream, Map<String, String> headers) throws IOException {
+        // Read from socket's input stream.  Must use an
+        // InputStreamReader to bridge from streams to a reader
+        BufferedReader in = new BufferedReader(
+                    new InputStreamReader(inStream, "UTF-8"));
 
-            // Get header and save the filename from the GET line:
-            //    example GET format: GET /index.html HTTP/1.1
+        // Get header and save the filename from the GET line:
+        //    example GET format: GET /index.html HTTP/1.1
 
-            String filename = null;
+        String filename = null;
 
-            boolean done = false;
-            while (!done) {
-                String line = in.readLine();
+        boolean done = false;
+        while (!done) {
+            String line = in.readLine();
 
 System.out.println("Received: " + line);
-                if (line == null || line.equals(""))
-                    done = true;
+            if (line == null || line.equals(""))
+                done = true;
 
-                else if (line.startsWith("GET")) {
-                    int firstSpace = line.indexOf(" ");
-                    int secondSpace = line.indexOf(" ", firstSpace+1);
+            else if (line.startsWith("GET")) {
+                int firstSpace = line.indexOf(" ");
+                int secondSpace = line.indexOf(" ", firstSpace+1);
 
-                    // skipt the leading / (our docroot is the current dir)
-                    filename = line.substring(firstSpace+2, secondSpace);
-                }
+                // skipt the leading / (our docroot is the current dir)
+                filename = line.substring(firstSpace+2, secondSpace);
+            }
 
+            else if (line.indexOf(':') > 0) {
+                // e.g. "Range: bytes=0-499"
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
             }
+
+        }
 System.out.println("FINISHED\n");
+        return filename;
+    }
+
+
+    public byte[] createResponse(InputStream inStream) {
+
+        byte[] response = null;
+
+        try {
+
+            String filename = readRequest(inStream);
 
 
             // Generate an appropriate response to the user
@@ -93,6 +185,8 @@ System.out.println("FINISHED\n");
 
     /** Read bytes from a file and return them in the byte array.
         We read in blocks of 512 bytes for efficiency.
+        The server itself streams files with FileSender, this copies the
+        whole file onto the heap.
     */
     public static byte[] readFileInBytes(File f)
         throws IOException {
@@ -0,0 +1,158 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs GitHubClient against a small stub server on localhost instead of
+ * api.github.com. The stub answers every path with a little JSON and an ETag,
+ * and with 304 when the client sends that ETag back.
+ */
+public class GitHubClientTest {
+
+  private HttpServer stub;
+  private String baseUrl;
+  private final AtomicInteger requests = new AtomicInteger();
+  // what the stub answers when the ETag does not match
+  private volatile int status = 200;
+  // when set, the stub waits for it before it answers
+  private volatile CountDownLatch release;
+
+  @Before
+  public void startStub() throws IOException {
+    stub = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    stub.createContext("/", this::answer);
+    stub.start();
+    baseUrl = "http://127.0.0.1:" + stub.getAddress().getPort() + "/";
+  }
+
+  @After
+  public void stopStub() {
+    stub.stop(0);
+  }
+
+  private void answer(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    try {
+      CountDownLatch waitFor = release;
+      if (waitFor != null) {
+        waitFor.await(5, TimeUnit.SECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    String path = exchange.getRequestURI().getPath();
+    String etag = "\"" + Integer.toHexString(path.hashCode()) + "\"";
+    exchange.getResponseHeaders().set("ETag", etag);
+    if (status == 200 && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+      exchange.sendResponseHeaders(304, -1);
+    } else {
+      byte[] body = body(path).getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+    exchange.close();
+  }
+
+  private static String body(String path) {
+    return "{\"path\":\"" + path + "\"}";
+  }
+
+  private static String get(CompletableFuture<String> fetch) throws Exception {
+    return fetch.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void answerIsCachedForTheTtl() throws Exception {
+    GitHubClient client = new GitHubClient(baseUrl, Duration.ofMinutes(1), 16);
+
+    assertEquals(body("/users/a/repos"), get(client.fetch("users/a/repos")));
+    assertEquals(body("/users/a/repos"), get(client.fetch("users/a/repos")));
+
+    assertEquals(1, client.upstreamCalls());
+    assertEquals(1, client.hits());
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void concurrentFetchesShareOneRequest() throws Exception {
+    GitHubClient client = new GitHubClient(baseUrl, Duration.ofMinutes(1), 16);
+    release = new CountDownLatch(1);
+
+    List<CompletableFuture<String>> fetches = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      fetches.add(client.fetch("users/b/repos"));
+    }
+    release.countDown();
+    for (CompletableFuture<String> fetch : fetches) {
+      assertEquals(body("/users/b/repos"), get(fetch));
+    }
+
+    assertEquals(1, client.upstreamCalls());
+    assertEquals(4, client.coalesced());
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  public void leastRecentlyUsedAnswerIsDropped() throws Exception {
+    GitHubClient client = new GitHubClient(baseUrl, Duration.ofMinutes(1), 2);
+
+    get(client.fetch("a"));
+    get(client.fetch("b"));
+    get(client.fetch("a")); // b is the least recently used now
+    get(client.fetch("c"));
+    get(client.fetch("a"));
+    assertEquals(3, client.upstreamCalls());
+
+    get(client.fetch("b"));
+    assertEquals(4, client.upstreamCalls());
+  }
+
+  @Test
+  public void unchangedAnswerIsRevalidated() throws Exception {
+    // every fetch asks the stub again
+    GitHubClient client = new GitHubClient(baseUrl, Duration.ZERO, 16);
+
+    assertEquals(body("/users/c/repos"), get(client.fetch("users/c/repos")));
+    assertEquals(body("/users/c/repos"), get(client.fetch("users/c/repos")));
+
+    assertEquals(2, client.upstreamCalls());
+    assertEquals(1, client.revalidated());
+  }
+
+  @Test
+  public void staleAnswerWhenUpstreamFails() throws Exception {
+    GitHubClient client = new GitHubClient(baseUrl, Duration.ZERO, 16);
+    assertEquals(body("/users/d/repos"), get(client.fetch("users/d/repos")));
+
+    // rate limit used up
+    status = 403;
+    assertEquals(body("/users/d/repos"), get(client.fetch("users/d/repos")));
+    assertEquals("", get(client.fetch("users/e/repos")));
+
+    // not reachable at all
+    stub.stop(0);
+    assertEquals(body("/users/d/repos"), get(client.fetch("users/d/repos")));
+    assertEquals(0, client.revalidated());
+  }
+}
@@ -0,0 +1,95 @@
+package funHttpServer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Feeds RequestParser the way the engines do: bytes are appended to a buffer
+ * and parse() is called after every read.
+ */
+public class RequestParserTest {
+
+  private static void append(ByteBuffer buffer, String bytes) {
+    buffer.put(bytes.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  @Test
+  public void headerSplitOverSeveralReads() {
+    // a direct buffer like the ones from the BufferPool
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+    RequestParser parser = new RequestParser(HttpFraming.MAX_HEADER_SIZE);
+
+    append(buffer, "GET /multiply?num1=3&num2=4 HT");
+    assertEquals(RequestParser.Result.INCOMPLETE, parser.parse(buffer));
+    append(buffer, "TP/1.1\r\nHo");
+    assertEquals(RequestParser.Result.INCOMPLETE, parser.parse(buffer));
+    append(buffer, "st: localhost\r\n");
+    assertEquals(RequestParser.Result.INCOMPLETE, parser.parse(buffer));
+    append(buffer, "\r\n");
+    assertEquals(RequestParser.Result.DONE, parser.parse(buffer));
+
+    assertTrue(parser.isGet());
+    assertTrue(parser.isHttp11());
+    assertTrue(parser.keepAlive());
+    assertEquals("multiply?num1=3&num2=4", parser.target());
+    assertEquals("localhost", parser.header("host"));
+    assertNull(parser.header("connection"));
+    assertEquals(buffer.position(), parser.headerEnd());
+    assertEquals(buffer.position(), parser.requestEnd());
+  }
+
+  @Test
+  public void twoPipelinedRequestsInOneBuffer() {
+    String first = "GET /json HTTP/1.1\r\nHost: a\r\nContent-Length: 5\r\n\r\nhello";
+    String second = "GET /random HTTP/1.0\r\nConnection: close\r\n\r\n";
+    ByteBuffer buffer = ByteBuffer.allocate(1024);
+    append(buffer, first + second);
+    RequestParser parser = new RequestParser(HttpFraming.MAX_HEADER_SIZE);
+
+    assertEquals(RequestParser.Result.DONE, parser.parse(buffer));
+    assertEquals("json", parser.target());
+    assertEquals(5, parser.contentLength());
+    assertEquals(first.length(), parser.requestEnd());
+
+    // what the engines do after a request: move the next one to the front
+    buffer.flip();
+    buffer.position(parser.requestEnd());
+    buffer.compact();
+    parser.reset();
+
+    assertEquals(RequestParser.Result.DONE, parser.parse(buffer));
+    assertEquals("random", parser.target());
+    assertFalse(parser.isHttp11());
+    assertFalse(parser.keepAlive());
+    assertEquals(second.length(), parser.requestEnd());
+  }
+
+  @Test
+  public void headerWithoutEndIsTooLarge() {
+    int max = HttpFraming.MAX_HEADER_SIZE;
+    ByteBuffer buffer = ByteBuffer.allocate(max + 100);
+    RequestParser parser = new RequestParser(max);
+    append(buffer, "GET / HTTP/1.1\r\nX-Long: ");
+    assertEquals(RequestParser.Result.INCOMPLETE, parser.parse(buffer));
+    while (buffer.hasRemaining()) {
+      buffer.put((byte) 'a');
+    }
+    assertEquals(RequestParser.Result.TOO_LARGE, parser.parse(buffer));
+  }
+
+  @Test
+  public void badRequestLine() {
+    String[] bad = { "HELLO\r\n\r\n", "GET index.html HTTP/1.1\r\n\r\n", "GET / FTP/1.1\r\n\r\n",
+        "GET /\r\n\r\n" };
+    for (String request : bad) {
+      ByteBuffer buffer = ByteBuffer.allocate(256);
+      append(buffer, request);
+      RequestParser parser = new RequestParser(HttpFraming.MAX_HEADER_SIZE);
+      assertEquals(request, RequestParser.Result.BAD_REQUEST, parser.parse(buffer));
+    }
+  }
+}